@@ -1,6 +1,7 @@
 package it.unipi.iot.damonitoring.collector;
 
-import it.unipi.iot.damonitoring.DataManager;
+import it.unipi.iot.damonitoring.StorageManager;
+import it.unipi.iot.damonitoring.collector.ingest.IngestSink;
 import it.unipi.iot.damonitoring.exceptions.PersistenceException;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
@@ -15,7 +16,10 @@ public class Collector {
 
         try {
             // Eagle initialization
-            DataManager.getInstance();
+            StorageManager.getInstance();
+
+            // Start database writer
+            IngestSink.getInstance().start();
 
             // Start registration server
             RegistrationServer.getInstance().start();
@@ -40,9 +44,12 @@ public class Collector {
         subscriber.disconnect();
         logger.info("MQTT disconnection completed");
 
+        // Store measurements still queued
+        IngestSink.getInstance().stop();
+
         // Close database connection
         try {
-            DataManager.close();
+            StorageManager.close();
             logger.info("Database disconnection completed");
         } catch (PersistenceException ex) {
             ex.printStackTrace();
@@ -5,11 +5,17 @@ import org.eclipse.californium.core.CoapServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
 public class RegistrationServer {
     private static final Logger logger = LoggerFactory.getLogger(RegistrationServer.class);
     private static final String REGISTRY  = "registry";
+    private static final String CONFIG_FILE = "/collector.properties";
     private static RegistrationServer instance;
     private final CoapServer server;
+    private final boolean enabled;
     public static RegistrationServer getInstance(){
         if(instance == null){
             instance = new RegistrationServer();
@@ -17,15 +23,32 @@ public class RegistrationServer {
         return instance;
     }
     private RegistrationServer(){
+        try(InputStream configFileStream = RegistrationServer.class.getResourceAsStream(CONFIG_FILE)){
+            Properties properties = new Properties();
+            properties.load(configFileStream);
+
+            // Only one collector instance of a shared group can own the registry endpoint
+            enabled = Boolean.parseBoolean(System.getProperty("registryEnabled",
+                    properties.getProperty("registryEnabled")));
+        }
+        catch (IOException ex){
+            throw new RuntimeException(ex);
+        }
         server = new CoapServer();
         server.add(new Registry(REGISTRY));
     }
     public void start(){
+        if(!enabled){
+            logger.info("Registration server disabled");
+            return;
+        }
         server.start();
         logger.info("Registration server started");
     }
 
     public void stop(){
+        if(!enabled)
+            return;
         server.stop();
         logger.info("Registration server stopped");
     }
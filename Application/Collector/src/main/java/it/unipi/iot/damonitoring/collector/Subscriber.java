@@ -1,43 +1,41 @@
 package it.unipi.iot.damonitoring.collector;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import it.unipi.iot.damonitoring.DataManager;
-import it.unipi.iot.damonitoring.collector.senml.Measurement;
-import it.unipi.iot.damonitoring.collector.senml.SensorRecord;
+import it.unipi.iot.damonitoring.collector.ingest.IngestPool;
 import it.unipi.iot.damonitoring.entities.FlowRate;
-import it.unipi.iot.damonitoring.exceptions.PersistenceException;
 import org.eclipse.paho.client.mqttv3.*;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.time.LocalDateTime;
-import java.time.OffsetDateTime;
-import java.time.temporal.ChronoUnit;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.Properties;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 
 public class Subscriber implements MqttCallback {
     private static final Logger logger = LoggerFactory.getLogger(Subscriber.class);
     private static final String CONFIG_FILE = "/collector.properties";
+    private static final String SHARED_PREFIX = "$share/";
+    private static final ObjectMapper mapper = new ObjectMapper();
 
     /* Simulation only  */
     private static final String SIMULATION = "simulation";
     private static final float MAX_INFLOW = 80f;
-    private static Float inflowGate = null;
+    private static volatile Float inflowGate = null;
 
 
     /* Private fields */
     private ScheduledExecutorService scheduler;
-    private final MqttClient client;
-    private final HashMap<String, Date> lastRecord;
+    private final MqttAsyncClient client;
+    private final IngestPool ingestPool;
+    private final Semaphore inflight;
+    private final Integer maxInflight;
 
 
     /* Configuration parameters */
@@ -45,7 +43,9 @@ public class Subscriber implements MqttCallback {
     private final Integer reconnectionTimeout;
     private final TimeUnit unitOfTime;
     private final String[] topics;
-    private final Integer minPeriod;
+    private final Integer qos;
+    private final Long quiesceTimeout;
+    private final Boolean manualAcks;
 
     public Subscriber() throws MqttException {
 
@@ -59,21 +59,50 @@ public class Subscriber implements MqttCallback {
             reconnectionDelay = Integer.parseInt(properties.getProperty("reconnectionDelay"));
             reconnectionTimeout = Integer.parseInt(properties.getProperty("reconnectionTimeout"));
             unitOfTime = TimeUnit.valueOf(properties.getProperty("reconnectionTimeUnit"));
-            minPeriod = Integer.parseInt(properties.getProperty("minPeriod"));
+            qos = Integer.parseInt(properties.getProperty("qos"));
+            quiesceTimeout = Long.parseLong(properties.getProperty("quiesceTimeout"));
+            manualAcks = Boolean.parseBoolean(properties.getProperty("manualAcks"));
+            maxInflight = Integer.parseInt(properties.getProperty("maxInflight"));
+            inflight = new Semaphore(maxInflight);
+
+            // Shared subscription: the broker splits the messages among the instances of the group, per message and not
+            // per sensor (see collector.properties for the guarantees lost). The instance id must be stable across
+            // restarts: the persistent session of the instance, with the messages queued while it was down, is resumed
+            // only by a client with the same id.
+            String clientID = properties.getProperty("clientID");
+            String sharedGroup = System.getProperty("sharedGroup", properties.getProperty("sharedGroup", ""));
+            topics = properties.getProperty("topics").split(",");
+            if(!sharedGroup.isEmpty()){
+                String instanceID = System.getProperty("instanceID", properties.getProperty("instanceID", ""));
+                if(instanceID.isEmpty())
+                    throw new IllegalStateException("instanceID is required with sharedGroup \"" + sharedGroup + "\"");
+                clientID += "-" + instanceID;
+                for(int i = 0; i < topics.length; i++)
+                    topics[i] = SHARED_PREFIX + sharedGroup + "/" + topics[i];
+                logger.info("Shared subscription: group \"{}\", client \"{}\"", sharedGroup, clientID);
+                logger.warn("Shared subscription: per-sensor order, duplicate check and rate limit are per instance");
+            }
 
-            // Open and configure MQTT connect
-            client = new MqttClient(
+            // Open and configure MQTT connect, in memory persistence avoids a disk write per message
+            client = new MqttAsyncClient(
                     properties.getProperty("brokerURI"),
-                    properties.getProperty("clientID"),
-                    new MqttDefaultFilePersistence(".mqtt")
+                    clientID,
+                    properties.getProperty("mqttPersistence").equalsIgnoreCase("memory") ?
+                            new MemoryPersistence() : new MqttDefaultFilePersistence(".mqtt")
             );
             client.setCallback(this);
-            client.connect();
+            client.setManualAcks(manualAcks);
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(Boolean.parseBoolean(properties.getProperty("cleanSession")));
+            client.connect(options).waitForCompletion();
+
+            // Start ingest workers
+            ingestPool = new IngestPool(properties, this::simulate, this::completed);
+            ingestPool.start();
 
             // Subscribe topics
-            topics = properties.getProperty("topics").split(",");
             for(String topic: topics)
-                client.subscribe(topic);
+                client.subscribe(topic, qos).waitForCompletion();
 
             logger.info("Initialization completed");
 
@@ -81,8 +110,6 @@ public class Subscriber implements MqttCallback {
         catch (IOException ex){
             throw new RuntimeException(ex);
         }
-
-        lastRecord = new HashMap<>();
     }
 
     public void reconnect(){
@@ -94,22 +121,43 @@ public class Subscriber implements MqttCallback {
             else {
                 logger.info("Reconnected");
                 for(String topic: topics)
-                    client.subscribe(topic);
+                    client.subscribe(topic, qos).waitForCompletion();
 
                 scheduler.shutdown();
             }
         } catch (MqttException ex) { logger.info("Disconnected"); }
     }
 
+    /**
+     * Leave the broker without losing messages: unsubscribe first, so that (in shared mode) the broker routes the new
+     * messages to the other instances, then let the messages in flight complete before disconnecting. With manual
+     * acknowledgements the messages already received are processed and, once the sink has stored them, acknowledged
+     * before disconnecting; the ones left unacknowledged are delivered again by the broker.
+     */
     public void disconnect() {
+        boolean drained = false;
         if(client.isConnected()){
             try {
-                client.disconnect();
+                client.unsubscribe(topics).waitForCompletion();
+                if(manualAcks){
+                    ingestPool.stop();
+                    drained = true;
+                    if(!inflight.tryAcquire(maxInflight, quiesceTimeout, TimeUnit.MILLISECONDS))
+                        logger.warn("{} messages not stored yet, left unacknowledged",
+                                maxInflight - inflight.availablePermits());
+                }
+                client.disconnect(quiesceTimeout).waitForCompletion();
                 logger.info("Disconnection completed");
             } catch (MqttException ex) {
                 logger.error("Error during disconnection, force closing");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
             }
         }
+
+        // Process messages already received
+        if(!drained)
+            ingestPool.stop();
     }
 
     @Override
@@ -122,63 +170,33 @@ public class Subscriber implements MqttCallback {
         );
     }
 
+    /**
+     * Hand the message to the ingest pool, blocking the delivery while the maximum number of messages in flight are
+     * being processed
+     */
     @Override
-    public void messageArrived(String topic, MqttMessage mqttMessage) {
+    public void messageArrived(String topic, MqttMessage mqttMessage) throws InterruptedException {
+        inflight.acquire();
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            SensorRecord record = mapper.readValue(mqttMessage.getPayload(), SensorRecord.class);
-            Date minNextTime = Date.from(LocalDateTime
-                    .now()
-                    .minus(minPeriod, ChronoUnit.SECONDS)
-                    .toInstant(OffsetDateTime.now().getOffset()));
-
-            // For each record (actually only one attended)
-            for(Measurement measurement : record.getMeasurements()){
-
-                logger.info("New measurement: {}", measurement);
-
-                // Retrieve data from record
-                String baseName = record.getBaseName();
-                String name = measurement.getName();
-                Float value = measurement.getValue();
-
-                // Discard messages arrived roughly at the same time
-                if(lastRecord.containsKey(baseName + name) && minNextTime.before(lastRecord.get(baseName + name))){
-                    logger.warn("Measurement discarded (too fast): {}", measurement);
-                    continue;
-                }
+            ingestPool.dispatch(topic, mqttMessage);
+        } catch (InterruptedException ex) {
+            inflight.release();
+            throw ex;
+        }
+    }
 
-                // Save data on database
-                switch (topic){
-                    case "flow-rate":
-                        // Control unit of measurement
-                        if(!record.getBaseUnit().equals("m3/s")){
-                            throw new RuntimeException("Unit of measurement not supported");
-                        }
-                        // Store measurement
-                        FlowRate flowRate = DataManager.getInstance().recordFlowRate(name, value);
-                        lastRecord.put(baseName + name, flowRate.getTimestamp());
-
-                        //Simulation only
-                        simulate(flowRate);
-                        break;
-                    case "water-level":
-                        // Control unit of measurement
-                        if(!record.getBaseUnit().equals("m")){
-                            throw new RuntimeException("Unit of measurement not supported");
-                        }
-                        // Store measurement
-                        DataManager.getInstance().recordWaterLevel(value);
-                        break;
-                    default:
-                        throw new RuntimeException("Message on unhandled topic");
-                }
-            }
-        } catch (IOException | RuntimeException ex) {
-            logger.error(String.format("Malformed record (%s): %s\n", ex.getMessage(),
-                    new String(mqttMessage.getPayload())));
-        } catch (PersistenceException ex) {
-            logger.error("Data access: {}", ex.getMessage());
+    /**
+     * Acknowledge a message once its measurements have been stored by the sink, so that the broker delivers again the
+     * ones lost by the Collector
+     */
+    private void completed(MqttMessage mqttMessage, boolean consumed) {
+        try {
+            if(manualAcks && consumed)
+                client.messageArrivedComplete(mqttMessage.getId(), mqttMessage.getQos());
+        } catch (MqttException ex) {
+            logger.warn("Acknowledgement of message {}: {}", mqttMessage.getId(), ex.getMessage());
+        } finally {
+            inflight.release();
         }
     }
 
@@ -190,7 +208,7 @@ public class Subscriber implements MqttCallback {
             if(flowRate.getFlowChannel().equalsIgnoreCase("inflow")) {
                 float newValue = Math.round(flowRate.getValue() / MAX_INFLOW * 100);
                 if(inflowGate == null || inflowGate != newValue){
-                    client.publish(SIMULATION, new MqttMessage(new ObjectMapper().createObjectNode()
+                    client.publish(SIMULATION, new MqttMessage(mapper.createObjectNode()
                             .put("gate-inflow", (int)newValue).toString().getBytes()));
                     inflowGate = newValue;
                 }
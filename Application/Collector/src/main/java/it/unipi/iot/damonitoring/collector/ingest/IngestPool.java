@@ -0,0 +1,231 @@
+package it.unipi.iot.damonitoring.collector.ingest;
+
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.senml.SenMLCborDecoder;
+import it.unipi.iot.damonitoring.senml.SenMLDecoder;
+import it.unipi.iot.damonitoring.senml.SenMLFormat;
+import it.unipi.iot.damonitoring.senml.SenMLPack;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Pool of ingest workers. Each record is routed on the hash of its SenML sensor key (base name + name), so the
+ * records of a sensor are processed strictly in order by the same worker while different sensors are decoded,
+ * deduplicated and stored in parallel.
+ * <p>
+ * A pack with records of sensors owned by different workers (e.g. a mote publishing several channels at once) is
+ * dispatched to each of them: every worker processes the records of its own sensors only, and the message is completed
+ * once all of them are done.
+ */
+public class IngestPool {
+    private static final Logger logger = LoggerFactory.getLogger(IngestPool.class);
+
+    /* Private fields */
+    private final IngestWorker[] workers;
+    private final CompletionListener completionListener;
+    private final SenMLDecoder router = new SenMLDecoder();
+    private final SenMLCborDecoder cborRouter = new SenMLCborDecoder();
+    private final SenMLPack pack = new SenMLPack();
+    private final boolean[] owners;
+
+    /* Configuration parameters */
+    private final Long drainTimeout;
+
+    /**
+     * Notified when the processing of a message is over: by the sink once its measurements have been stored, by the
+     * workers otherwise
+     */
+    @FunctionalInterface
+    public interface CompletionListener {
+        /**
+         * @param message Processed message
+         * @param consumed True if the message has been consumed (stored by the sink, or discarded as duplicated or
+         *                 malformed), false if it has not been stored and must be delivered again
+         */
+        void completed(MqttMessage message, boolean consumed);
+    }
+
+    /**
+     * Create the pool of workers
+     * @param properties Collector configuration
+     * @param flowRateListener Callback invoked by the workers for each accepted flow rate measurement
+     * @param completionListener Callback invoked by the workers for each processed message
+     */
+    public IngestPool(Properties properties, Consumer<FlowRate> flowRateListener,
+                      CompletionListener completionListener){
+        this(properties, IngestSink.getInstance(), flowRateListener, completionListener);
+    }
+
+    /**
+     * Create the pool of workers
+     * @param properties Collector configuration
+     * @param sink Destination of the accepted measurements
+     * @param flowRateListener Callback invoked by the workers for each accepted flow rate measurement
+     * @param completionListener Callback invoked by the workers for each processed message
+     */
+    public IngestPool(Properties properties, IngestSink sink, Consumer<FlowRate> flowRateListener,
+                      CompletionListener completionListener){
+        int size = Integer.parseInt(properties.getProperty("ingestWorkers"));
+        int queueSize = Integer.parseInt(properties.getProperty("ingestQueueSize"));
+        int minPeriod = Integer.parseInt(properties.getProperty("minPeriod"));
+        drainTimeout = Long.parseLong(properties.getProperty("ingestDrainTimeout"));
+        boolean reliable = Boolean.parseBoolean(properties.getProperty("manualAcks"));
+        int sensorCapacity = Integer.parseInt(properties.getProperty("sensorStateCapacity"));
+        long sensorIdleTimeout = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("sensorStateIdleTimeout")));
+
+        // Non positive size means one worker per core
+        if(size <= 0)
+            size = Runtime.getRuntime().availableProcessors();
+
+        // The sensor state capacity is split among the workers
+        int workerCapacity = Math.max((sensorCapacity + size - 1) / size, 1);
+        workers = new IngestWorker[size];
+        for(int i = 0; i < size; i++){
+            SensorStateTable sensors = new SensorStateTable(workerCapacity, sensorIdleTimeout);
+            workers[i] = new IngestWorker(i, size, queueSize, minPeriod, reliable, sensors, sink, flowRateListener);
+        }
+        owners = new boolean[size];
+        this.completionListener = completionListener;
+    }
+
+    public void start(){
+        for(IngestWorker worker: workers)
+            worker.start();
+        logger.info("Ingest pool started ({} workers)", workers.length);
+    }
+
+    /**
+     * Stop the workers after the messages already dispatched have been processed
+     */
+    public void stop(){
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        try {
+            for(IngestWorker worker: workers){
+                if(!worker.stop(Math.max(deadline - System.currentTimeMillis(), 1)))
+                    logger.warn("Ingest pool drain timed out, {} messages lost", worker.getQueueDepth());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Ingest pool stopped (sensors: {}, evicted: {}, expired: {})", getSensorCount(),
+                getSensorEvictions(), getSensorExpirations());
+    }
+
+    /**
+     * Route a message to the worker owning its sensors, blocking the caller (MQTT callback thread) while the queue of
+     * that worker is full. A message with sensors of several workers is dispatched to each of them. Must be invoked
+     * by a single thread.
+     * @param topic Topic of the message
+     * @param message MQTT message
+     */
+    public void dispatch(String topic, MqttMessage message) throws InterruptedException {
+        int first = 0;
+        int parts = 1;
+        try {
+            byte[] payload = message.getPayload();
+            if(SenMLFormat.of(topic, payload) == SenMLFormat.CBOR)
+                cborRouter.decode(payload, pack);
+            else
+                router.decode(payload, pack);
+            for(int i = 0; i < pack.size(); i++){
+                int owner = owner(pack.getBaseName(i), pack.getName(i), workers.length);
+                if(i == 0){
+                    first = owner;
+                    owners[owner] = true;
+                }
+                else if(!owners[owner]){
+                    owners[owner] = true;
+                    parts++;
+                }
+            }
+        } catch (IOException ex) {
+            // Malformed records are reported by the worker
+            first = 0;
+            parts = 1;
+        }
+
+        // Usual case: all the sensors of the message are owned by the same worker
+        if(parts == 1){
+            Arrays.fill(owners, false);
+            workers[first].dispatch(topic, message, false, completionListener);
+            return;
+        }
+        CompletionListener split = new SplitCompletion(parts, completionListener);
+        for(int i = 0; i < workers.length; i++){
+            if(owners[i]){
+                owners[i] = false;
+                workers[i].dispatch(topic, message, true, split);
+            }
+        }
+    }
+
+    /**
+     * Worker owning a sensor
+     * @param baseName Base name of the record
+     * @param name Name of the measurement
+     * @param workers Number of workers of the pool
+     */
+    static int owner(CharSequence baseName, CharSequence name, int workers){
+        // Fibonacci hashing: the high bits of the product, independent of the low bits indexing the sensor table
+        long mixed = (SensorStateTable.hash(baseName, name) * 0x9E3779B9) & 0xFFFFFFFFL;
+        return (int) ((mixed * workers) >>> 32);
+    }
+
+    public int getQueueDepth(){
+        int depth = 0;
+        for(IngestWorker worker: workers)
+            depth += worker.getQueueDepth();
+        return depth;
+    }
+
+    public int getSensorCount(){
+        int count = 0;
+        for(IngestWorker worker: workers)
+            count += worker.getSensors().size();
+        return count;
+    }
+
+    public long getSensorEvictions(){
+        long evictions = 0;
+        for(IngestWorker worker: workers)
+            evictions += worker.getSensors().getEvictions();
+        return evictions;
+    }
+
+    public long getSensorExpirations(){
+        long expirations = 0;
+        for(IngestWorker worker: workers)
+            expirations += worker.getSensors().getExpirations();
+        return expirations;
+    }
+
+    /**
+     * Completion of a message split among several workers: the message is consumed only if all the parts are
+     */
+    private static final class SplitCompletion implements CompletionListener {
+        private final AtomicInteger remaining;
+        private final CompletionListener listener;
+        private volatile boolean consumed = true;
+
+        private SplitCompletion(int parts, CompletionListener listener){
+            this.remaining = new AtomicInteger(parts);
+            this.listener = listener;
+        }
+
+        @Override
+        public void completed(MqttMessage message, boolean consumed){
+            if(!consumed)
+                this.consumed = false;
+            if(remaining.decrementAndGet() == 0)
+                listener.completed(message, this.consumed);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package it.unipi.iot.damonitoring.collector.ingest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Destination of the measurements accepted by the ingest workers, in charge of storing them in the database
+ */
+public interface IngestSink {
+
+    /**
+     * Retrieve the sink selected in the configuration ("memory" for the write-behind queue, "spool" for the durable
+     * memory-mapped spool)
+     * @return Configured sink
+     */
+    static IngestSink getInstance(){
+        return Configuration.SPOOL ? Spool.getInstance() : WriteBehind.getInstance();
+    }
+
+    void start();
+
+    /**
+     * Stop accepting new measurements and store the ones already accepted
+     */
+    void stop();
+
+    /**
+     * Accept a measurement to be stored
+     * @param record FlowRate or WaterLevel object to store
+     * @return True if the measurement has been accepted, false otherwise
+     */
+    boolean submit(Object record);
+
+    /**
+     * Accept the measurements of a SenML pack as a whole, to be stored in the same batch
+     * @param records FlowRate or WaterLevel objects to store, owned by the sink after the call
+     * @param stored Invoked once the measurements are safe (stored in the database, or in the spool), or discarded as
+     *               not storable; never invoked for measurements lost on stop
+     * @return True if all the measurements have been accepted, false if none has been accepted
+     */
+    boolean submitAll(List<?> records, Runnable stored);
+
+    final class Configuration {
+        private static final String CONFIG_FILE = "/collector.properties";
+        private static final boolean SPOOL;
+
+        static {
+            try(InputStream configFileStream = IngestSink.class.getResourceAsStream(CONFIG_FILE)){
+                Properties properties = new Properties();
+                properties.load(configFileStream);
+                SPOOL = properties.getProperty("ingestSink").equalsIgnoreCase("spool");
+            }
+            catch (IOException ex){
+                throw new RuntimeException(ex);
+            }
+        }
+
+        private Configuration(){ }
+    }
+}
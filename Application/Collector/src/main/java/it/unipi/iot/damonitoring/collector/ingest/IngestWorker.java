@@ -0,0 +1,291 @@
+package it.unipi.iot.damonitoring.collector.ingest;
+
+import it.unipi.iot.damonitoring.MeasurementWindows;
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.entities.WaterLevel;
+import it.unipi.iot.damonitoring.senml.SenMLCborDecoder;
+import it.unipi.iot.damonitoring.senml.SenMLDecoder;
+import it.unipi.iot.damonitoring.senml.SenMLFormat;
+import it.unipi.iot.damonitoring.senml.SenMLPack;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Single ingest thread: decodes, deduplicates and queues for storage the messages dispatched to it. The pool routes
+ * all the records of a sensor to the same worker, hence the per-sensor state is confined to this thread: of a message
+ * split among several workers, only the records of the sensors owned by this one are processed.
+ */
+class IngestWorker implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(IngestWorker.class);
+    private static final long POLL_PERIOD = 100;
+    private static final int INITIAL_PENDING = 8;
+
+    /* Private fields */
+    private final BlockingQueue<Task> queue;
+    private final Thread thread;
+    private final Consumer<FlowRate> flowRateListener;
+    private final IngestSink sink;
+    private final MeasurementWindows windows = MeasurementWindows.getInstance();
+    private final SensorStateTable sensors;
+    private final SenMLDecoder decoder = new SenMLDecoder();
+    private final SenMLCborDecoder cborDecoder = new SenMLCborDecoder();
+    private final SenMLPack pack = new SenMLPack();
+    private int[] pendingSensors = new int[INITIAL_PENDING];
+    private long[] pendingTimes = new long[INITIAL_PENDING];
+    private int pending;
+    private volatile boolean running;
+
+    /* Configuration parameters */
+    private final int id;
+    private final int poolSize;
+    private final Long minPeriod;
+    private final Boolean reliable;
+
+    /**
+     * @param id Index of the worker in the pool
+     * @param poolSize Number of workers of the pool
+     * @param reliable If true, a pack rejected by the sink is submitted again until accepted (or the worker is stopped)
+     *                 instead of being discarded
+     */
+    IngestWorker(int id, int poolSize, int queueSize, int minPeriod, boolean reliable, SensorStateTable sensors,
+                 IngestSink sink, Consumer<FlowRate> flowRateListener){
+        this.id = id;
+        this.poolSize = poolSize;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.sink = sink;
+        this.minPeriod = TimeUnit.SECONDS.toMillis(minPeriod);
+        this.reliable = reliable;
+        this.sensors = sensors;
+        this.flowRateListener = flowRateListener;
+        this.thread = new Thread(this, "ingest-" + id);
+    }
+
+    void start(){
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stop the worker after the messages still in the queue have been processed
+     * @param timeout Maximum time to wait in milliseconds
+     * @return True if the worker has been stopped, false if the timeout is elapsed
+     */
+    boolean stop(long timeout) throws InterruptedException {
+        running = false;
+        thread.join(timeout);
+        return !thread.isAlive();
+    }
+
+    /**
+     * Enqueue a message, blocking the caller while the queue is full
+     * @param topic Topic of the message
+     * @param message MQTT message
+     * @param split True if the message is split among several workers: only the records of the sensors owned by this
+     *              worker are processed
+     * @param completionListener Notified when the processing of the records of this worker is over
+     */
+    void dispatch(String topic, MqttMessage message, boolean split,
+                  IngestPool.CompletionListener completionListener) throws InterruptedException {
+        queue.put(new Task(topic, message, split, completionListener));
+    }
+
+    int getQueueDepth(){
+        return queue.size();
+    }
+
+    SensorStateTable getSensors(){
+        return sensors;
+    }
+
+    @Override
+    public void run() {
+        while (running || !queue.isEmpty()){
+            try {
+                Task task = queue.poll(POLL_PERIOD, TimeUnit.MILLISECONDS);
+                if(task != null)
+                    process(task.topic, task.message, task.split, task.completionListener);
+            } catch (InterruptedException ex) {
+                running = false;
+            } catch (RuntimeException ex) {
+                logger.error("Ingest failure: {}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Decode a message and submit its measurements to the sink. The message is completed by the sink once its
+     * measurements have been stored, or here if it has nothing to store or its measurements have been discarded.
+     */
+    private void process(String topic, MqttMessage mqttMessage, boolean split,
+                         IngestPool.CompletionListener completionListener) throws InterruptedException {
+        boolean submitted = false;
+        pending = 0;
+        try {
+            byte[] payload = mqttMessage.getPayload();
+            if(SenMLFormat.of(topic, payload) == SenMLFormat.CBOR)
+                cborDecoder.decode(payload, pack);
+            else
+                decoder.decode(payload, pack);
+            long now = System.currentTimeMillis();
+            String measure = SenMLFormat.baseTopic(topic);
+            List<Object> records = new ArrayList<>(pack.size());
+
+            // For each record of the pack (of the sensors of this worker, if split)
+            for(int i = 0; i < pack.size(); i++){
+                if(split && IngestPool.owner(pack.getBaseName(i), pack.getName(i), poolSize) != id)
+                    continue;
+
+                if(logger.isDebugEnabled())
+                    logger.debug("New measurement: {}", pack.toString(i));
+
+                // Retrieve data from record
+                int sensor = sensors.lookup(pack.getBaseName(i), pack.getName(i), now);
+                String name = sensors.getName(sensor);
+                float value = pack.getValue(i);
+                long time = pack.getTime(i, now);
+
+                // Discard messages arrived roughly at the same time: the limit applies to the arrival of the messages,
+                // the records of a sensor in the same pack (taken at different times) are all kept
+                long last = sensors.getLastTime(sensor);
+                if(last != SensorStateTable.NO_TIME && now - last < minPeriod && !inPack(sensor)){
+                    logger.warn("Measurement discarded (too fast): {}", pack.toString(i));
+                    continue;
+                }
+
+                switch (measure){
+                    case "flow-rate":
+                        // Control unit of measurement
+                        if(!"m3/s".contentEquals(pack.getUnit(i))){
+                            throw new RuntimeException("Unit of measurement not supported");
+                        }
+                        // Store measurement
+                        FlowRate flowRate = new FlowRate();
+                        flowRate.setFlowChannel(name);
+                        flowRate.setTimestamp(new Date(time));
+                        flowRate.setValue(value);
+                        records.add(flowRate);
+                        if(!inPack(sensor))
+                            setLastTime(sensor, now);
+                        break;
+                    case "water-level":
+                        // Control unit of measurement
+                        if(!"m".contentEquals(pack.getUnit(i))){
+                            throw new RuntimeException("Unit of measurement not supported");
+                        }
+                        // Store measurement
+                        WaterLevel waterLevel = new WaterLevel();
+                        waterLevel.setTimestamp(new Date(time));
+                        waterLevel.setValue(value);
+                        records.add(waterLevel);
+                        break;
+                    default:
+                        throw new RuntimeException("Message on unhandled topic");
+                }
+            }
+            if(records.isEmpty()){
+                completionListener.completed(mqttMessage, true);
+                return;
+            }
+
+            // Queue the measurements of the pack to be stored on database in the same batch
+            Runnable stored = () -> completionListener.completed(mqttMessage, true);
+            submitted = sink.submitAll(records, stored);
+            if(!submitted && reliable){
+                // Hold the message: the worker queue fills up and the broker slows down the delivery
+                logger.warn("Sink full, waiting to store: {}", pack);
+                while (!submitted && running){
+                    TimeUnit.MILLISECONDS.sleep(POLL_PERIOD);
+                    submitted = sink.submitAll(records, stored);
+                }
+            }
+            if(!submitted){
+                logger.error("Measurements discarded (sink full): {}", pack);
+                completionListener.completed(mqttMessage, false);
+                return;
+            }
+
+            // Recent measurements of the process, then simulation only
+            for(Object record: records){
+                windows.record(record);
+                if(record instanceof FlowRate)
+                    flowRateListener.accept((FlowRate) record);
+            }
+        } catch (IOException | RuntimeException ex) {
+            byte[] payload = mqttMessage.getPayload();
+            logger.error(String.format("Malformed record (%s): %s\n", ex.getMessage(),
+                    (SenMLFormat.of(topic, payload) == SenMLFormat.CBOR) ? toHex(payload) : new String(payload)));
+            if(!submitted)
+                completionListener.completed(mqttMessage, true);
+        } finally {
+            if(!submitted)
+                rollback();
+        }
+    }
+
+    /**
+     * Update the last time of a sensor, keeping the previous one until the pack is accepted by the sink
+     */
+    private void setLastTime(int sensor, long time){
+        if(pending == pendingSensors.length){
+            pendingSensors = Arrays.copyOf(pendingSensors, pending * 2);
+            pendingTimes = Arrays.copyOf(pendingTimes, pending * 2);
+        }
+        pendingSensors[pending] = sensor;
+        pendingTimes[pending++] = sensors.getLastTime(sensor);
+        sensors.setLastTime(sensor, time);
+    }
+
+    /**
+     * Check if the last time of a sensor has been set by the current pack
+     */
+    private boolean inPack(int sensor){
+        for(int i = 0; i < pending; i++){
+            if(pendingSensors[i] == sensor)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Restore the last times of the sensors of a pack not accepted by the sink
+     */
+    private void rollback(){
+        while (pending > 0){
+            pending--;
+            sensors.setLastTime(pendingSensors[pending], pendingTimes[pending]);
+        }
+    }
+
+    private static String toHex(byte[] payload){
+        StringBuilder builder = new StringBuilder(2 * payload.length);
+        for(byte b: payload)
+            builder.append(String.format("%02x", b));
+        return builder.toString();
+    }
+
+    private static final class Task {
+        private final String topic;
+        private final MqttMessage message;
+        private final boolean split;
+        private final IngestPool.CompletionListener completionListener;
+
+        private Task(String topic, MqttMessage message, boolean split,
+                     IngestPool.CompletionListener completionListener) {
+            this.topic = topic;
+            this.message = message;
+            this.split = split;
+            this.completionListener = completionListener;
+        }
+    }
+}
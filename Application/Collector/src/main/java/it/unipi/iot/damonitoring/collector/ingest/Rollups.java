@@ -0,0 +1,201 @@
+package it.unipi.iot.damonitoring.collector.ingest;
+
+import it.unipi.iot.damonitoring.StorageManager;
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.entities.FlowRateRollup;
+import it.unipi.iot.damonitoring.entities.WaterLevel;
+import it.unipi.iot.damonitoring.entities.WaterLevelRollup;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Incremental aggregation of the stored measurements into the rollup tables. The measurements of each batch are
+ * added to the aggregates (min, max, avg, count, last) of their channel and time bucket, one per resolution; the
+ * partial aggregates are merged into the tables periodically, so a dashboard query over a long range reads a row
+ * per bucket instead of the raw measurements.
+ * <p>
+ * The aggregates are kept until merged: if the database is unavailable they keep growing (a row per bucket) and are
+ * merged on the next successful flush. Each merge is applied exactly once: a failed merge is retried unchanged, with
+ * its sequence number, and skipped by the database if the failed attempt had been committed after all; the aggregates
+ * added in the meanwhile wait for the next merge. Not thread-safe: used by the storage thread of a sink only.
+ */
+final class Rollups {
+    private static final Logger logger = LoggerFactory.getLogger(Rollups.class);
+
+    /* Private fields */
+    private final Map<Key, Aggregate> pending = new HashMap<>();
+    private final String source = UUID.randomUUID().toString();
+    private List<Object> merging;
+    private long sequence;
+    private long lastFlush = System.currentTimeMillis();
+
+    /* Configuration parameters */
+    private final int[] resolutions;
+    private final long flushPeriod;
+
+    /**
+     * @param resolutions Widths of the buckets in seconds (e.g. 60, 3600)
+     * @param flushPeriod Period in milliseconds of the merge into the rollup tables
+     */
+    Rollups(int[] resolutions, long flushPeriod){
+        this.resolutions = resolutions.clone();
+        this.flushPeriod = flushPeriod;
+    }
+
+    /**
+     * Create the aggregation configured by the rollupResolutions and rollupFlushPeriod properties
+     */
+    static Rollups of(Properties properties){
+        String resolutions = properties.getProperty("rollupResolutions", "").trim();
+        return new Rollups(
+                resolutions.isEmpty() ? new int[0] :
+                        Arrays.stream(resolutions.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray(),
+                Long.parseLong(properties.getProperty("rollupFlushPeriod"))
+        );
+    }
+
+    /**
+     * Add stored measurements to the aggregates
+     * @param records FlowRate and WaterLevel objects
+     */
+    void add(List<?> records){
+        if(resolutions.length == 0)
+            return;
+        for(Object record: records){
+            String channel;
+            long time;
+            float value;
+            if(record instanceof FlowRate){
+                FlowRate flowRate = (FlowRate) record;
+                channel = flowRate.getFlowChannel();
+                time = flowRate.getTimestamp().getTime();
+                value = flowRate.getValue();
+            }
+            else if(record instanceof WaterLevel){
+                WaterLevel waterLevel = (WaterLevel) record;
+                channel = null;
+                time = waterLevel.getTimestamp().getTime();
+                value = waterLevel.getValue();
+            }
+            else continue;
+
+            for(int resolution: resolutions){
+                long width = resolution * 1000L;
+                Key key = new Key(channel, resolution, Math.floorDiv(time, width) * width);
+                pending.computeIfAbsent(key, k -> new Aggregate()).add(time, value);
+            }
+        }
+    }
+
+    /**
+     * Merge the aggregates into the rollup tables if the flush period is elapsed
+     * @param force Merge regardless of the flush period (e.g. on stop)
+     */
+    void flush(boolean force){
+        long now = System.currentTimeMillis();
+        if((merging == null && pending.isEmpty()) || (!force && now - lastFlush < flushPeriod))
+            return;
+        lastFlush = now;
+
+        // Retry the failed merge as it was, otherwise merge the aggregates pending
+        if(merging == null){
+            merging = new ArrayList<>(pending.size());
+            for(Map.Entry<Key, Aggregate> entry: pending.entrySet())
+                merging.add(entry.getKey().toEntity(entry.getValue()));
+            pending.clear();
+            sequence++;
+        }
+        try {
+            StorageManager.getInstance().recordRollups(merging, source, sequence);
+            merging = null;
+        } catch (PersistenceException ex) {
+            logger.error("Rollup merge {} ({} aggregates pending): {}", sequence, getPending(), ex.getMessage());
+        }
+    }
+
+    int getPending(){
+        return pending.size() + ((merging == null) ? 0 : merging.size());
+    }
+
+    private static final class Key {
+        private final String channel;
+        private final int resolution;
+        private final long bucket;
+
+        private Key(String channel, int resolution, long bucket){
+            this.channel = channel;
+            this.resolution = resolution;
+            this.bucket = bucket;
+        }
+
+        private Object toEntity(Aggregate aggregate){
+            if(channel != null){
+                FlowRateRollup rollup = new FlowRateRollup();
+                rollup.setFlowChannel(channel);
+                rollup.setResolution(resolution);
+                rollup.setBucket(new Date(bucket));
+                rollup.setMinimum(aggregate.minimum);
+                rollup.setMaximum(aggregate.maximum);
+                rollup.setAverage((float) (aggregate.sum / aggregate.samples));
+                rollup.setSamples(aggregate.samples);
+                rollup.setLastValue(aggregate.lastValue);
+                rollup.setLastTimestamp(new Date(aggregate.lastTime));
+                return rollup;
+            }
+            WaterLevelRollup rollup = new WaterLevelRollup();
+            rollup.setResolution(resolution);
+            rollup.setBucket(new Date(bucket));
+            rollup.setMinimum(aggregate.minimum);
+            rollup.setMaximum(aggregate.maximum);
+            rollup.setAverage((float) (aggregate.sum / aggregate.samples));
+            rollup.setSamples(aggregate.samples);
+            rollup.setLastValue(aggregate.lastValue);
+            rollup.setLastTimestamp(new Date(aggregate.lastTime));
+            return rollup;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return resolution == key.resolution && bucket == key.bucket && Objects.equals(channel, key.channel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(channel, resolution, bucket);
+        }
+    }
+
+    private static final class Aggregate {
+        private float minimum = Float.POSITIVE_INFINITY;
+        private float maximum = Float.NEGATIVE_INFINITY;
+        private double sum;
+        private int samples;
+        private float lastValue;
+        private long lastTime = Long.MIN_VALUE;
+
+        private void add(long time, float value){
+            minimum = Math.min(minimum, value);
+            maximum = Math.max(maximum, value);
+            sum += value;
+            samples++;
+            if(time >= lastTime){
+                lastTime = time;
+                lastValue = value;
+            }
+        }
+    }
+}
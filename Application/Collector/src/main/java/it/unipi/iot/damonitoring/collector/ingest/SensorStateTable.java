@@ -0,0 +1,216 @@
+package it.unipi.iot.damonitoring.collector.ingest;
+
+import java.util.Arrays;
+
+/**
+ * Bounded per-sensor ingest state of a worker. Sensors are identified by base name and name, looked up without
+ * building the key string and interned on the first record; the state is kept in primitive arrays sized once at
+ * creation, so the memory footprint is fixed by the capacity.
+ * <p>
+ * Entries are kept in least recently used order: when the table is full the least recently used sensor is evicted,
+ * and sensors silent for longer than the idle timeout (e.g. motes rebooted with a new address) are expired.
+ * <p>
+ * Not thread-safe: the table is confined to the thread of its worker, only the counters may be read by others.
+ */
+final class SensorStateTable {
+    static final long NO_TIME = Long.MIN_VALUE;
+    private static final int NONE = -1;
+
+    /* Hash index */
+    private final int[] buckets;
+    private final int[] chain;
+    private final int[] hashes;
+
+    /* Entries */
+    private final String[] keys;
+    private final String[] names;
+    private final long[] lastTimes;
+    private final long[] accessTimes;
+
+    /* Recency list, from the most (head) to the least (tail) recently used */
+    private final int[] previous;
+    private final int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+    private int free;
+
+    /* Configuration parameters */
+    private final long idleTimeout;
+
+    /* Metrics */
+    private volatile int size;
+    private volatile long evictions;
+    private volatile long expirations;
+
+    /**
+     * @param capacity Maximum number of sensors
+     * @param idleTimeout Time in milliseconds after which a silent sensor is expired
+     */
+    SensorStateTable(int capacity, long idleTimeout){
+        if(capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.idleTimeout = idleTimeout;
+
+        buckets = new int[Integer.highestOneBit(Math.max(capacity * 2 - 1, 1)) << 1];
+        Arrays.fill(buckets, NONE);
+        chain = new int[capacity];
+        hashes = new int[capacity];
+        keys = new String[capacity];
+        names = new String[capacity];
+        lastTimes = new long[capacity];
+        accessTimes = new long[capacity];
+        previous = new int[capacity];
+        next = new int[capacity];
+
+        // Free entries are linked through the chain array
+        for(int i = 0; i < capacity; i++)
+            chain[i] = (i + 1 < capacity) ? i + 1 : NONE;
+        free = 0;
+    }
+
+    /**
+     * Find the entry of a sensor, creating it if missing, and mark it as the most recently used
+     * @param baseName Base name of the record
+     * @param name Name of the measurement
+     * @param now Current time in milliseconds
+     * @return Index of the entry
+     */
+    int lookup(CharSequence baseName, CharSequence name, long now){
+        expire(now);
+
+        int hash = hash(baseName, name);
+        int bucket = hash & (buckets.length - 1);
+        int entry = buckets[bucket];
+        while (entry != NONE && !(hashes[entry] == hash && matches(keys[entry], baseName, name)))
+            entry = chain[entry];
+
+        if(entry == NONE){
+            if(free == NONE)
+                remove(tail, false);
+            entry = free;
+            free = chain[entry];
+
+            hashes[entry] = hash;
+            keys[entry] = baseName.toString() + name;
+            names[entry] = name.toString();
+            lastTimes[entry] = NO_TIME;
+            chain[entry] = buckets[bucket];
+            buckets[bucket] = entry;
+            linkFirst(entry);
+            size++;
+        }
+        else if(entry != head){
+            unlink(entry);
+            linkFirst(entry);
+        }
+        accessTimes[entry] = now;
+        return entry;
+    }
+
+    /**
+     * Interned name of the measurement of the entry
+     */
+    String getName(int entry){
+        return names[entry];
+    }
+
+    long getLastTime(int entry){
+        return lastTimes[entry];
+    }
+
+    void setLastTime(int entry, long time){
+        lastTimes[entry] = time;
+    }
+
+    /* Metrics */
+    int size(){
+        return size;
+    }
+
+    long getEvictions(){
+        return evictions;
+    }
+
+    long getExpirations(){
+        return expirations;
+    }
+
+    private void expire(long now){
+        long limit = now - idleTimeout;
+        while (tail != NONE && accessTimes[tail] < limit)
+            remove(tail, true);
+    }
+
+    private void remove(int entry, boolean expired){
+        // Unlink from the bucket
+        int bucket = hashes[entry] & (buckets.length - 1);
+        if(buckets[bucket] == entry){
+            buckets[bucket] = chain[entry];
+        }
+        else {
+            int current = buckets[bucket];
+            while (chain[current] != entry)
+                current = chain[current];
+            chain[current] = chain[entry];
+        }
+        unlink(entry);
+
+        keys[entry] = null;
+        names[entry] = null;
+        chain[entry] = free;
+        free = entry;
+        size--;
+        if(expired)
+            expirations++;
+        else
+            evictions++;
+    }
+
+    private void linkFirst(int entry){
+        previous[entry] = NONE;
+        next[entry] = head;
+        if(head != NONE)
+            previous[head] = entry;
+        head = entry;
+        if(tail == NONE)
+            tail = entry;
+    }
+
+    private void unlink(int entry){
+        if(previous[entry] != NONE)
+            next[previous[entry]] = next[entry];
+        else
+            head = next[entry];
+        if(next[entry] != NONE)
+            previous[next[entry]] = previous[entry];
+        else
+            tail = previous[entry];
+    }
+
+    /**
+     * Hash of the key of a sensor, the concatenation of base name and name
+     */
+    static int hash(CharSequence baseName, CharSequence name){
+        int hash = 0;
+        for(int i = 0; i < baseName.length(); i++)
+            hash = 31 * hash + baseName.charAt(i);
+        for(int i = 0; i < name.length(); i++)
+            hash = 31 * hash + name.charAt(i);
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String key, CharSequence baseName, CharSequence name){
+        int baseLength = baseName.length();
+        if(key.length() != baseLength + name.length())
+            return false;
+        for(int i = 0; i < baseLength; i++){
+            if(key.charAt(i) != baseName.charAt(i))
+                return false;
+        }
+        for(int i = 0; i < name.length(); i++){
+            if(key.charAt(baseLength + i) != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,584 @@
+package it.unipi.iot.damonitoring.collector.ingest;
+
+import it.unipi.iot.damonitoring.Storage;
+import it.unipi.iot.damonitoring.StorageManager;
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.entities.WaterLevel;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable, append-only ingest spool. Measurements are appended to memory-mapped segment files, so they survive a
+ * database outage (or a crash of the Collector) and are stored by a replayer thread that drains the spool into the
+ * database in large batches, retrying until the database is available again. Segments are rolled over when full and
+ * deleted once completely replayed; the replay position is kept in a checkpoint file.
+ * <p>
+ * A batch is retried as long as the failure is transient (the database is unreachable). A batch failing permanently
+ * (invalid data, constraint violation) maxAttempts times is stored one measurement at a time, and the measurements
+ * rejected again are moved to the quarantine file, in the record layout of the segments, so that a poison
+ * measurement does not stop the replay.
+ * <p>
+ * Record layout: body length (int, written last to publish the record), type (byte), timestamp (long), value (float),
+ * channel length (short) and channel (UTF-8). A length of 0 marks the end of the data, -1 a sealed segment.
+ */
+public class Spool implements IngestSink, Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(Spool.class);
+    private static final String CONFIG_FILE = "/collector.properties";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String QUARANTINE = "quarantine" + SEGMENT_SUFFIX;
+    private static final int SEALED = -1;
+    private static final int HEADER = 4;
+    private static final int FIXED_BODY = 1 + 8 + 4 + 2;
+    private static final byte FLOW_RATE = 1;
+    private static final byte WATER_LEVEL = 2;
+    private static Spool instance;
+
+    /* Private fields */
+    private final Path directory;
+    private final Storage storage;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final MappedByteBuffer checkpoint;
+    private final FileChannel checkpointChannel;
+    private final Thread replayer;
+    private Rollups rollups = new Rollups(new int[0], 0);
+    private Segment writeSegment;
+    private volatile long published;
+    private volatile boolean running;
+
+    /* Configuration parameters */
+    private final Integer segmentSize;
+    private final Integer replayBatchSize;
+    private final Long replayPeriod;
+    private final Long retryPeriod;
+    private final Integer maxAttempts;
+    private final Long syncPeriod;
+    private final Long drainTimeout;
+
+    /* Metrics */
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong quarantined = new AtomicLong();
+
+    public static synchronized Spool getInstance(){
+        if(instance == null){
+            try(InputStream configFileStream = Spool.class.getResourceAsStream(CONFIG_FILE)){
+                Properties properties = new Properties();
+                properties.load(configFileStream);
+
+                instance = new Spool(
+                        Paths.get(properties.getProperty("spoolDirectory")),
+                        Integer.parseInt(properties.getProperty("spoolSegmentSize")),
+                        Integer.parseInt(properties.getProperty("spoolReplayBatchSize")),
+                        Long.parseLong(properties.getProperty("spoolReplayPeriod")),
+                        Long.parseLong(properties.getProperty("spoolRetryPeriod")),
+                        Integer.parseInt(properties.getProperty("spoolMaxAttempts")),
+                        Long.parseLong(properties.getProperty("spoolSyncPeriod")),
+                        Long.parseLong(properties.getProperty("spoolDrainTimeout"))
+                );
+                instance.rollups = Rollups.of(properties);
+            }
+            catch (IOException ex){
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Open (or create) a spool, recovering the segments and the replay position left by a previous run
+     * @param directory Directory of the segment files
+     * @param segmentSize Size of each segment file in bytes
+     * @param replayBatchSize Maximum number of measurements stored by a single replay transaction
+     * @param replayPeriod Wait time in milliseconds of the replayer when the spool is empty
+     * @param retryPeriod Wait time in milliseconds before retrying a failed replay
+     * @param maxAttempts Attempts of a batch failing permanently before its measurements are stored one by one
+     * @param syncPeriod Period in milliseconds of the synchronization of the segments on disk
+     * @param drainTimeout Maximum time in milliseconds to replay the spool on stop
+     * @throws IOException If the spool files cannot be accessed
+     */
+    public Spool(Path directory, int segmentSize, int replayBatchSize, long replayPeriod, long retryPeriod,
+                 int maxAttempts, long syncPeriod, long drainTimeout) throws IOException {
+        this(directory, segmentSize, replayBatchSize, replayPeriod, retryPeriod, maxAttempts, syncPeriod, drainTimeout,
+                null);
+    }
+
+    /**
+     * @param storage Storage of the replayed measurements, null for the one of the StorageManager
+     */
+    Spool(Path directory, int segmentSize, int replayBatchSize, long replayPeriod, long retryPeriod, int maxAttempts,
+          long syncPeriod, long drainTimeout, Storage storage) throws IOException {
+        this.directory = directory;
+        this.storage = storage;
+        this.segmentSize = segmentSize;
+        this.replayBatchSize = replayBatchSize;
+        this.replayPeriod = replayPeriod;
+        this.retryPeriod = retryPeriod;
+        this.maxAttempts = maxAttempts;
+        this.syncPeriod = syncPeriod;
+        this.drainTimeout = drainTimeout;
+
+        Files.createDirectories(directory);
+        checkpointChannel = FileChannel.open(directory.resolve(CHECKPOINT),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        checkpoint = checkpointChannel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES + Integer.BYTES);
+        recover();
+        replayer = new Thread(this, "spool-replayer");
+    }
+
+    /**
+     * Reopen the segments still on disk: fully replayed segments are deleted, the last one is reopened for append
+     */
+    private void recover() throws IOException {
+        long checkpointSequence = checkpoint.getLong(0);
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)){
+            for(Path file: stream){
+                String name = file.getFileName().toString();
+                files.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())),
+                        file);
+            }
+        }
+
+        for(Long sequence: files.keySet()){
+            if(sequence < checkpointSequence)
+                Files.delete(files.get(sequence));
+            else
+                segments.addLast(new Segment(sequence, files.get(sequence), false));
+        }
+
+        if(segments.isEmpty()){
+            writeSegment = new Segment(checkpointSequence, segmentPath(checkpointSequence), true);
+            segments.addLast(writeSegment);
+            commit(checkpointSequence, 0);
+        }
+        else {
+            writeSegment = segments.peekLast();
+            // Find the end of the data of the last segment
+            int position = 0;
+            int length;
+            while (position + HEADER <= segmentSize && (length = writeSegment.buffer.getInt(position)) > 0)
+                position += HEADER + length;
+            writeSegment.buffer.position(position);
+            if(position + HEADER <= segmentSize && writeSegment.buffer.getInt(position) == SEALED)
+                roll();
+
+            // Restart from the segment of the checkpoint, or from the oldest available
+            if(segments.peekFirst().sequence != checkpointSequence)
+                commit(segments.peekFirst().sequence, 0);
+        }
+        publish();
+        logger.info("Spool opened: {} segments, replay from {}:{}", segments.size(), checkpoint.getLong(0),
+                checkpoint.getInt(Long.BYTES));
+    }
+
+    @Override
+    public void start(){
+        running = true;
+        replayer.start();
+        logger.info("Spool started");
+    }
+
+    @Override
+    public void stop(){
+        running = false;
+        try {
+            replayer.join(Math.max(drainTimeout, 1));
+            if(replayer.isAlive()){
+                replayer.interrupt();
+                replayer.join(Math.max(drainTimeout, 1));
+                logger.warn("Spool drain timed out, measurements kept for the next start");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this){
+            for(Segment segment: segments)
+                segment.close();
+        }
+        try {
+            checkpoint.force();
+            checkpointChannel.close();
+        } catch (IOException ex) {
+            logger.error("Spool checkpoint: {}", ex.getMessage());
+        }
+        logger.info("Spool stopped (appended: {}, rejected: {}, replayed: {}, retries: {}, quarantined: {})",
+                appended.get(), rejected.get(), replayed.get(), retries.get(), quarantined.get());
+    }
+
+    /**
+     * Append a measurement to the spool
+     * @param record FlowRate or WaterLevel object to store
+     * @return True if the measurement has been written in the spool, false otherwise
+     */
+    @Override
+    public boolean submit(Object record){
+        return write(Collections.singletonList(record));
+    }
+
+    /**
+     * Append the measurements of a pack to the same segment, making them visible to the replayer at once. The
+     * measurements are safe once appended: the mapped pages survive a crash of the Collector, and are synchronized on
+     * disk within the sync period.
+     * @param records FlowRate or WaterLevel objects to store
+     * @param stored Invoked once the measurements have been written in the spool
+     * @return True if the measurements have been written in the spool, false otherwise
+     */
+    @Override
+    public boolean submitAll(List<?> records, Runnable stored){
+        if(!write(records))
+            return false;
+        stored.run();
+        return true;
+    }
+
+    private synchronized boolean write(List<?> records){
+        if(!running){
+            rejected.addAndGet(records.size());
+            return false;
+        }
+        try {
+            byte[][] channels = new byte[records.size()][];
+            int length = 0;
+            for(int i = 0; i < channels.length; i++){
+                channels[i] = channel(records.get(i));
+                length += HEADER + FIXED_BODY + channels[i].length;
+            }
+
+            // Keep room for the end marker after the records
+            MappedByteBuffer buffer = writeSegment.buffer;
+            if(buffer.position() + length + HEADER > segmentSize){
+                if(length + 2 * HEADER > segmentSize)
+                    throw new IllegalArgumentException("Pack larger than a segment");
+                roll();
+                buffer = writeSegment.buffer;
+            }
+
+            for(int i = 0; i < channels.length; i++)
+                append(buffer, records.get(i), channels[i]);
+            publish();
+            appended.addAndGet(records.size());
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            logger.error("Spool append: {}", ex.getMessage());
+            rejected.addAndGet(records.size());
+            return false;
+        }
+    }
+
+    private static byte[] channel(Object record){
+        if(record instanceof FlowRate)
+            return ((FlowRate) record).getFlowChannel().getBytes(StandardCharsets.UTF_8);
+        if(record instanceof WaterLevel)
+            return new byte[0];
+        throw new IllegalArgumentException("Unsupported record " + record);
+    }
+
+    private static void append(ByteBuffer buffer, Object record, byte[] channel){
+        byte type;
+        Date timestamp;
+        float value;
+        if(record instanceof FlowRate){
+            FlowRate flowRate = (FlowRate) record;
+            type = FLOW_RATE;
+            timestamp = flowRate.getTimestamp();
+            value = flowRate.getValue();
+        }
+        else {
+            WaterLevel waterLevel = (WaterLevel) record;
+            type = WATER_LEVEL;
+            timestamp = waterLevel.getTimestamp();
+            value = waterLevel.getValue();
+        }
+
+        int start = buffer.position();
+        buffer.position(start + HEADER);
+        buffer.put(type).putLong(timestamp.getTime()).putFloat(value).putShort((short) channel.length).put(channel);
+        buffer.putInt(start, FIXED_BODY + channel.length);
+    }
+
+    /**
+     * Seal the current segment and open the next one
+     */
+    private void roll() throws IOException {
+        writeSegment.buffer.putInt(writeSegment.buffer.position(), SEALED);
+        writeSegment.buffer.force();
+        writeSegment = new Segment(writeSegment.sequence + 1, segmentPath(writeSegment.sequence + 1), true);
+        segments.addLast(writeSegment);
+    }
+
+    /**
+     * Make the appended records visible to the replayer
+     */
+    private void publish(){
+        published = (writeSegment.sequence << 32) | writeSegment.buffer.position();
+    }
+
+    @Override
+    public void run() {
+        List<Object> batch = new ArrayList<>(replayBatchSize);
+        long lastSync = System.currentTimeMillis();
+        long deadline = Long.MAX_VALUE;
+        boolean failing = false;
+        int attempts = 0;
+
+        while (System.currentTimeMillis() < deadline){
+            try {
+                if(!running && deadline == Long.MAX_VALUE)
+                    deadline = System.currentTimeMillis() + drainTimeout;
+
+                // Periodic synchronization on disk
+                if(System.currentTimeMillis() - lastSync >= syncPeriod){
+                    synchronized (this){
+                        writeSegment.buffer.force();
+                    }
+                    checkpoint.force();
+                    lastSync = System.currentTimeMillis();
+                }
+
+                Segment segment;
+                synchronized (this){
+                    segment = segments.peekFirst();
+                }
+                int start = checkpoint.getInt(Long.BYTES);
+                int end = read(segment, start, batch);
+
+                if(batch.isEmpty()){
+                    if(end == SEALED){
+                        // Segment completely replayed
+                        synchronized (this){
+                            segments.pollFirst();
+                            segment.close();
+                            commit(segments.peekFirst().sequence, 0);
+                        }
+                        Files.deleteIfExists(segment.path);
+                        continue;
+                    }
+                    rollups.flush(false);
+                    if(!running)
+                        break;
+                    TimeUnit.MILLISECONDS.sleep(replayPeriod);
+                    continue;
+                }
+
+                try {
+                    storage().recordBatch(batch);
+                    commit(segment.sequence, end);
+                    replayed.addAndGet(batch.size());
+                    rollups.add(batch);
+                    rollups.flush(false);
+                    attempts = 0;
+                    if(failing){
+                        logger.info("Spool replay resumed");
+                        failing = false;
+                    }
+                } catch (PersistenceException ex) {
+                    retries.incrementAndGet();
+                    if(ex.isPermanent() && ++attempts >= maxAttempts){
+                        logger.error("Spool replay: batch {}:{} rejected {} times ({}), storing it one by one",
+                                segment.sequence, start, attempts, ex.getMessage());
+                        attempts = 0;
+                        if(isolate(segment, start, end))
+                            continue;
+                    }
+                    if(!failing){
+                        logger.error("Spool replay (retry in {} ms): {}", retryPeriod, ex.getMessage());
+                        failing = true;
+                    }
+                    TimeUnit.MILLISECONDS.sleep(retryPeriod);
+                }
+            } catch (InterruptedException ex) {
+                break;
+            } catch (IOException | RuntimeException ex) {
+                logger.error("Spool replay: {}", ex.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+        rollups.flush(true);
+    }
+
+    /**
+     * Store the records of a batch one at a time, moving the ones rejected permanently to the quarantine file. The
+     * checkpoint follows each record, so a transient failure resumes the replay from the first record not stored.
+     * @return True if the whole batch has been stored or quarantined, false after a transient failure
+     */
+    private boolean isolate(Segment segment, int start, int end) throws IOException {
+        List<Object> record = new ArrayList<>(1);
+        int position = start;
+        while (position < end){
+            record.clear();
+            int next = read(segment, position, record, 1);
+            try {
+                storage().recordBatch(record);
+                replayed.incrementAndGet();
+                rollups.add(record);
+            } catch (PersistenceException ex) {
+                if(!ex.isPermanent())
+                    return false;
+                quarantine(record.get(0));
+                logger.error("Spool replay: measurement {}:{} quarantined: {}", segment.sequence, position,
+                        ex.getMessage());
+            }
+            commit(segment.sequence, next);
+            position = next;
+        }
+        return true;
+    }
+
+    /**
+     * Append a record to the quarantine file, synchronized on disk before the checkpoint moves past it
+     */
+    private void quarantine(Object record) throws IOException {
+        byte[] channel = channel(record);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER + FIXED_BODY + channel.length);
+        append(buffer, record, channel);
+        buffer.flip();
+        try(FileChannel file = FileChannel.open(directory.resolve(QUARANTINE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)){
+            while (buffer.hasRemaining())
+                file.write(buffer);
+            file.force(false);
+        }
+        quarantined.incrementAndGet();
+    }
+
+    private Storage storage() throws PersistenceException {
+        return (storage != null) ? storage : StorageManager.getInstance();
+    }
+
+    private int read(Segment segment, int position, List<Object> batch){
+        return read(segment, position, batch, replayBatchSize);
+    }
+
+    /**
+     * Decode up to a number of published records of the segment
+     * @param segment Segment to read
+     * @param position Position of the first record
+     * @param batch List filled with the decoded records
+     * @param max Maximum number of records to decode
+     * @return Position following the last decoded record, or SEALED if the segment has been completely read
+     */
+    private int read(Segment segment, int position, List<Object> batch, int max){
+        long limit = published;
+        int end = ((limit >>> 32) == segment.sequence) ? (int) limit : segmentSize;
+        MappedByteBuffer buffer = segment.buffer;
+
+        while (batch.size() < max && position + HEADER <= end){
+            int length = buffer.getInt(position);
+            if(length == SEALED)
+                return batch.isEmpty() ? SEALED : position;
+            if(length == 0)
+                break;
+
+            int offset = position + HEADER;
+            byte type = buffer.get(offset);
+            Date timestamp = new Date(buffer.getLong(offset + 1));
+            float value = buffer.getFloat(offset + 9);
+            if(type == FLOW_RATE){
+                byte[] channel = new byte[buffer.getShort(offset + 13)];
+                for(int i = 0; i < channel.length; i++)
+                    channel[i] = buffer.get(offset + FIXED_BODY + i);
+                FlowRate flowRate = new FlowRate();
+                flowRate.setFlowChannel(new String(channel, StandardCharsets.UTF_8));
+                flowRate.setTimestamp(timestamp);
+                flowRate.setValue(value);
+                batch.add(flowRate);
+            }
+            else {
+                WaterLevel waterLevel = new WaterLevel();
+                waterLevel.setTimestamp(timestamp);
+                waterLevel.setValue(value);
+                batch.add(waterLevel);
+            }
+            position = offset + length;
+        }
+        return position;
+    }
+
+    private void commit(long sequence, int position){
+        checkpoint.putLong(0, sequence);
+        checkpoint.putInt(Long.BYTES, position);
+    }
+
+    private Path segmentPath(long sequence){
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    /* Metrics */
+    public long getAppended() {
+        return appended.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getQuarantined() {
+        return quarantined.get();
+    }
+
+    public synchronized int getSegments(){
+        return segments.size();
+    }
+
+    private final class Segment {
+        private final long sequence;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        private Segment(long sequence, Path path, boolean create) throws IOException {
+            this.sequence = sequence;
+            this.path = path;
+            this.channel = create ?
+                    FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE) :
+                    FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        private void close(){
+            try {
+                buffer.force();
+                channel.close();
+            } catch (IOException ex) {
+                logger.error("Spool segment {}: {}", sequence, ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package it.unipi.iot.damonitoring.collector.ingest;
+
+import it.unipi.iot.damonitoring.Storage;
+import it.unipi.iot.damonitoring.StorageManager;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory queue between the MQTT ingest path and the database. A single writer thread drains the queue
+ * and stores the measurements in batches, flushing when the batch is full or the flush period is elapsed.
+ * <p>
+ * A batch is retried while the database is unavailable: the queue fills up and the ingest workers hold the messages,
+ * which are acknowledged only after their measurements have been stored. A batch failing permanently (invalid data) is
+ * stored again pack by pack, so that only the packs that cannot be stored are discarded.
+ */
+public class WriteBehind implements IngestSink, Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehind.class);
+    private static final String CONFIG_FILE = "/collector.properties";
+    private static final Runnable NOTHING = () -> { };
+    private static WriteBehind instance;
+
+    /* Private fields */
+    private final BlockingQueue<Pack> queue;
+    private final Thread writer;
+    private final Rollups rollups;
+    private final Storage storage;
+    private volatile boolean running;
+
+    /* Configuration parameters */
+    private final Integer batchSize;
+    private final Long flushPeriod;
+    private final Long offerTimeout;
+    private final Long retryPeriod;
+    private final Long drainTimeout;
+
+    /* Metrics */
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong totalFlushLatency = new AtomicLong();
+    private final AtomicLong maxFlushLatency = new AtomicLong();
+
+    public static WriteBehind getInstance(){
+        if(instance == null){
+            try(InputStream configFileStream = WriteBehind.class.getResourceAsStream(CONFIG_FILE)){
+                Properties properties = new Properties();
+                properties.load(configFileStream);
+
+                // Load parameters
+                instance = new WriteBehind(
+                        Integer.parseInt(properties.getProperty("writeBehindQueueSize")),
+                        Integer.parseInt(properties.getProperty("writeBehindBatchSize")),
+                        Long.parseLong(properties.getProperty("writeBehindFlushPeriod")),
+                        Long.parseLong(properties.getProperty("writeBehindOfferTimeout")),
+                        Long.parseLong(properties.getProperty("writeBehindRetryPeriod")),
+                        Long.parseLong(properties.getProperty("writeBehindDrainTimeout")),
+                        Rollups.of(properties),
+                        null
+                );
+            }
+            catch (IOException ex){
+                throw new RuntimeException(ex);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param queueSize Maximum number of packs waiting to be stored
+     * @param batchSize Number of measurements that triggers a flush
+     * @param flushPeriod Maximum time in milliseconds a measurement waits for its batch to fill
+     * @param offerTimeout Maximum wait time in milliseconds for free space in the queue
+     * @param retryPeriod Wait time in milliseconds before retrying a batch failed transiently
+     * @param drainTimeout Maximum time in milliseconds to store the queued measurements on stop
+     * @param rollups Aggregation of the stored measurements
+     * @param storage Storage of the measurements, null for the one of the StorageManager
+     */
+    WriteBehind(int queueSize, int batchSize, long flushPeriod, long offerTimeout, long retryPeriod, long drainTimeout,
+                Rollups rollups, Storage storage){
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+        this.flushPeriod = flushPeriod;
+        this.offerTimeout = offerTimeout;
+        this.retryPeriod = retryPeriod;
+        this.drainTimeout = drainTimeout;
+        this.rollups = rollups;
+        this.storage = storage;
+        writer = new Thread(this, "write-behind");
+    }
+
+    @Override
+    public void start(){
+        running = true;
+        writer.start();
+        logger.info("Write-behind started");
+    }
+
+    /**
+     * Stop accepting new measurements and wait for the writer to store the ones still in the queue. The measurements
+     * not stored within the drain timeout are dropped, their messages are left unacknowledged.
+     */
+    @Override
+    public void stop(){
+        running = false;
+        try {
+            writer.join(Math.max(drainTimeout, 1));
+            if(writer.isAlive()){
+                writer.interrupt();
+                writer.join(Math.max(drainTimeout, 1));
+                logger.warn("Write-behind drain timed out, {} packs not stored", queue.size());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Write-behind stopped (accepted: {}, rejected: {}, written: {}, failed: {}, retries: {}, " +
+                "flushes: {}, avg flush: {} ms, max flush: {} ms)", accepted.get(), rejected.get(), written.get(),
+                failed.get(), retries.get(), flushes.get(), getAverageFlushLatency(), getMaxFlushLatency());
+    }
+
+    /**
+     * Enqueue a measurement to be stored, waiting for free space up to the configured timeout
+     * @param record FlowRate or WaterLevel object to store
+     * @return True if the measurement has been accepted, false if the queue is full or the writer is stopped
+     */
+    @Override
+    public boolean submit(Object record){
+        return offer(new Pack(Collections.singletonList(record), NOTHING));
+    }
+
+    /**
+     * Enqueue the measurements of a pack as a single element, so that the writer stores them in the same batch
+     * @param records FlowRate or WaterLevel objects to store
+     * @param stored Invoked by the writer once the measurements have been stored (or discarded as not storable)
+     * @return True if the measurements have been accepted, false if the queue is full or the writer is stopped
+     */
+    @Override
+    public boolean submitAll(List<?> records, Runnable stored){
+        return offer(new Pack(records, stored));
+    }
+
+    private boolean offer(Pack pack){
+        try {
+            if(running && queue.offer(pack, offerTimeout, TimeUnit.MILLISECONDS)){
+                accepted.addAndGet(pack.records.size());
+                return true;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.addAndGet(pack.records.size());
+        return false;
+    }
+
+    @Override
+    public void run() {
+        List<Pack> batch = new ArrayList<>(batchSize);
+        List<Pack> drained = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()){
+            try {
+                // Wait for the first measurement of the batch
+                Pack first = queue.poll(flushPeriod, TimeUnit.MILLISECONDS);
+                if(first == null){
+                    rollups.flush(false);
+                    continue;
+                }
+                batch.add(first);
+                int size = first.records.size();
+
+                // Fill the batch until it is full or the flush period is elapsed, packs are never split
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushPeriod);
+                while (size < batchSize){
+                    queue.drainTo(drained, batchSize - size);
+                    for(Pack pack: drained)
+                        size += pack.records.size();
+                    batch.addAll(drained);
+                    drained.clear();
+                    long remaining = deadline - System.nanoTime();
+                    if(size >= batchSize || remaining <= 0 || !running)
+                        break;
+                    Pack next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null)
+                        break;
+                    batch.add(next);
+                    size += next.records.size();
+                }
+
+                store(batch);
+                rollups.flush(false);
+            } catch (InterruptedException ex) {
+                // Drain timed out: the packs left are not acknowledged, the broker delivers them again
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+        rollups.flush(true);
+    }
+
+    /**
+     * Store a batch, retrying while the failure is transient. A batch failing permanently is stored pack by pack, a
+     * single pack failing permanently is discarded.
+     */
+    private void store(List<Pack> batch) throws InterruptedException {
+        boolean failing = false;
+        while (true){
+            try {
+                flush(batch);
+                if(failing)
+                    logger.info("Write-behind resumed");
+                return;
+            } catch (PersistenceException ex) {
+                if(ex.isPermanent()){
+                    if(batch.size() > 1){
+                        for(Pack pack: batch)
+                            store(Collections.singletonList(pack));
+                    }
+                    else {
+                        Pack pack = batch.get(0);
+                        failed.addAndGet(pack.records.size());
+                        logger.error("Data access ({} measurements discarded): {}", pack.records.size(),
+                                ex.getMessage());
+                        pack.stored.run();
+                    }
+                    return;
+                }
+                retries.incrementAndGet();
+                if(!failing){
+                    logger.error("Data access (retry in {} ms): {}", retryPeriod, ex.getMessage());
+                    failing = true;
+                }
+                TimeUnit.MILLISECONDS.sleep(retryPeriod);
+            }
+        }
+    }
+
+    private void flush(List<Pack> batch) throws PersistenceException {
+        List<Object> records = new ArrayList<>(batchSize);
+        for(Pack pack: batch)
+            records.addAll(pack.records);
+
+        long start = System.nanoTime();
+        try {
+            storage().recordBatch(records);
+        } finally {
+            long latency = System.nanoTime() - start;
+            flushes.incrementAndGet();
+            totalFlushLatency.addAndGet(latency);
+            maxFlushLatency.accumulateAndGet(latency, Math::max);
+            logger.debug("Flushed {} measurements in {} ms (queue depth: {})",
+                    records.size(), TimeUnit.NANOSECONDS.toMillis(latency), queue.size());
+        }
+        written.addAndGet(records.size());
+        rollups.add(records);
+        for(Pack pack: batch)
+            pack.stored.run();
+    }
+
+    private Storage storage() throws PersistenceException {
+        return (storage != null) ? storage : StorageManager.getInstance();
+    }
+
+    /* Metrics */
+    public int getQueueDepth(){
+        return queue.size();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public double getAverageFlushLatency(){
+        long count = flushes.get();
+        return (count == 0) ? 0 : TimeUnit.NANOSECONDS.toMicros(totalFlushLatency.get() / count) / 1000.0;
+    }
+
+    public double getMaxFlushLatency(){
+        return TimeUnit.NANOSECONDS.toMicros(maxFlushLatency.get()) / 1000.0;
+    }
+
+    /**
+     * Measurements of a pack with the notification of their storage
+     */
+    private static final class Pack {
+        private final List<?> records;
+        private final Runnable stored;
+
+        private Pack(List<?> records, Runnable stored){
+            this.records = records;
+            this.stored = stored;
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package it.unipi.iot.damonitoring.collector.resources;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import it.unipi.iot.damonitoring.DataManager;
+import com.fasterxml.jackson.databind.ObjectReader;
+import it.unipi.iot.damonitoring.StorageManager;
 import it.unipi.iot.damonitoring.entities.Resource;
 import it.unipi.iot.damonitoring.exceptions.PersistenceException;
 import org.eclipse.californium.core.CoapResource;
@@ -15,6 +16,9 @@ import java.util.List;
 
 public class Registry extends CoapResource{
     private static final Logger logger = LoggerFactory.getLogger(Registry.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final ObjectReader reader = mapper.readerFor(
+            mapper.getTypeFactory().constructCollectionType(List.class, Resource.class));
 
     public Registry(String name) {
         super(name);
@@ -24,12 +28,9 @@ public class Registry extends CoapResource{
     public void handlePOST(CoapExchange exchange) {
         logger.info("Registration request from: <{}>", exchange.getSourceAddress());
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            List<Resource> resources = mapper.readValue(
-                    exchange.getRequestPayload(),
-                    mapper.getTypeFactory().constructCollectionType(List.class, Resource.class)
-            );
-            DataManager.getInstance().addResources(resources);
+            // The registry is updated in memory, the database in background
+            List<Resource> resources = reader.readValue(exchange.getRequestPayload());
+            StorageManager.getInstance().registerResources(resources);
             exchange.respond(CoAP.ResponseCode.CREATED);
         } catch (IOException | PersistenceException ex) {
             logger.error("Registration: {}", ex.getMessage());
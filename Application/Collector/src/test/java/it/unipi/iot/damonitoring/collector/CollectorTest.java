@@ -1,5 +1,213 @@
 package it.unipi.iot.damonitoring.collector;
 
+import it.unipi.iot.damonitoring.collector.ingest.IngestPool;
+import it.unipi.iot.damonitoring.collector.ingest.IngestSink;
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.senml.SenMLCborDecoder;
+import it.unipi.iot.damonitoring.senml.SenMLDecoder;
+import it.unipi.iot.damonitoring.senml.SenMLFormat;
+import it.unipi.iot.damonitoring.senml.SenMLPack;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+
 public class CollectorTest {
 
+    @Test
+    public void decodeMoteRecord() throws IOException {
+        SenMLDecoder decoder = new SenMLDecoder();
+        SenMLPack pack = new SenMLPack();
+
+        decoder.decode(("{\"bn\":\"urn:dev:mac:f4ce3670c5b1a2e0:\",\"bu\":\"m3/s\", \"e\": [{\"n\":\"inflow\", " +
+                "\"v\":4217e-2}, {\"n\":\"outflow-1\", \"ut\": 10, \"v\":-0.5}]}").getBytes(StandardCharsets.UTF_8), pack);
+
+        assertEquals("urn:dev:mac:f4ce3670c5b1a2e0:", pack.getBaseName().toString());
+        assertEquals("m3/s", pack.getBaseUnit().toString());
+        assertEquals(2, pack.size());
+        assertEquals("inflow", pack.getName(0).toString());
+        assertEquals(42.17f, pack.getValue(0), 0f);
+        assertEquals("outflow-1", pack.getName(1).toString());
+        assertEquals(-0.5f, pack.getValue(1), 0f);
+    }
+
+    @Test
+    public void decodePackWithBaseFields() throws IOException {
+        SenMLPack pack = new SenMLPack();
+
+        // Absolute base time with relative record times, base value and a unit overriding the base one
+        new SenMLDecoder().decode(("[{\"bn\":\"urn:dev:mac:f4ce3670c5b1a2e0:\",\"bt\":1.7e9,\"bu\":\"m3/s\"," +
+                "\"bv\":40,\"n\":\"inflow\",\"v\":2.17,\"t\":-10},{\"n\":\"inflow\",\"v\":2.5}," +
+                "{\"bn\":\"urn:dev:mac:f4ce3670c5b1a2e1:\",\"bt\":-5,\"bv\":0,\"n\":\"water-level\",\"u\":\"m\"," +
+                "\"v\":12}]").getBytes(StandardCharsets.UTF_8), pack);
+
+        assertEquals(3, pack.size());
+        assertEquals("urn:dev:mac:f4ce3670c5b1a2e0:", pack.getBaseName(1).toString());
+        assertEquals(42.17f, pack.getValue(0), 1e-5f);
+        assertEquals(1_699_999_990_000L, pack.getTime(0, 0));
+        assertEquals(42.5f, pack.getValue(1), 0f);
+        assertEquals(1_700_000_000_000L, pack.getTime(1, 0));
+        assertEquals("urn:dev:mac:f4ce3670c5b1a2e1:", pack.getBaseName(2).toString());
+        assertEquals("m", pack.getUnit(2).toString());
+        assertEquals(12f, pack.getValue(2), 0f);
+        assertEquals(995_000L, pack.getTime(2, 1_000_000L));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectMalformedRecord() throws IOException {
+        new SenMLDecoder().decode("{\"bn\":\"urn\",\"e\":[{\"n\":\"inflow\"}]}".getBytes(StandardCharsets.UTF_8),
+                new SenMLPack());
+    }
+
+    @Test
+    public void decodeCborPack() throws IOException {
+        // [{-2: "urn:dev:mac:f4ce3670c5b1a2e0:", -4: "m3/s", 0: "outflow-1", 2: 42.17}]
+        byte[] payload = fromHex("81a421781d75726e3a6465763a6d61633a663463653336373063356231613265303a23646d332f" +
+                "7300696f7574666c6f772d3102fa4228ae14");
+        SenMLPack pack = new SenMLPack();
+
+        assertEquals(SenMLFormat.CBOR, SenMLFormat.of("flow-rate", payload));
+        new SenMLCborDecoder().decode(payload, pack);
+
+        assertEquals("urn:dev:mac:f4ce3670c5b1a2e0:", pack.getBaseName().toString());
+        assertEquals("m3/s", pack.getBaseUnit().toString());
+        assertEquals(1, pack.size());
+        assertEquals("outflow-1", pack.getName(0).toString());
+        assertEquals(42.17f, pack.getValue(0), 0f);
+        assertEquals(new SenMLDecoder().sensorHash(("{\"bn\":\"urn:dev:mac:f4ce3670c5b1a2e0:\",\"e\":[{\"n\":" +
+                "\"outflow-1\",\"v\":1}]}").getBytes(StandardCharsets.UTF_8)), new SenMLCborDecoder().sensorHash(payload));
+    }
+
+    @Test
+    public void keepAllRecordsOfPack() throws IOException, InterruptedException {
+        Properties properties = new Properties();
+        try(InputStream configFileStream = CollectorTest.class.getResourceAsStream("/collector.properties")){
+            properties.load(configFileStream);
+        }
+        List<Object> stored = new ArrayList<>();
+        IngestSink sink = new IngestSink() {
+            @Override
+            public void start(){ }
+
+            @Override
+            public void stop(){ }
+
+            @Override
+            public boolean submit(Object record){ return stored.add(record); }
+
+            @Override
+            public synchronized boolean submitAll(List<?> records, Runnable done){
+                stored.addAll(records);
+                done.run();
+                return true;
+            }
+        };
+        IngestPool pool = new IngestPool(properties, sink, flowRate -> { }, (message, consumed) -> { });
+
+        // Ten measurements of the same sensor taken one second apart, sent in a single pack
+        StringBuilder payload = new StringBuilder("[{\"bn\":\"urn:dev:mac:f4ce3670c5b1a2e0:\",\"bt\":1.7e9," +
+                "\"bu\":\"m3/s\",\"n\":\"inflow\",\"v\":40,\"t\":0}");
+        for(int i = 1; i < 10; i++)
+            payload.append(",{\"n\":\"inflow\",\"v\":").append(40 + i).append(",\"t\":").append(i).append("}");
+        payload.append("]");
+
+        pool.start();
+        pool.dispatch("flow-rate", new MqttMessage(payload.toString().getBytes(StandardCharsets.UTF_8)));
+        pool.stop();
+
+        assertEquals(10, stored.size());
+        for(int i = 0; i < 10; i++){
+            FlowRate flowRate = (FlowRate) stored.get(i);
+            assertEquals(1_700_000_000_000L + 1000L * i, flowRate.getTimestamp().getTime());
+            assertEquals(40f + i, flowRate.getValue(), 0f);
+        }
+    }
+
+    @Test
+    public void splitPackAmongWorkers() throws IOException, InterruptedException {
+        Properties properties = new Properties();
+        try(InputStream configFileStream = CollectorTest.class.getResourceAsStream("/collector.properties")){
+            properties.load(configFileStream);
+        }
+        properties.setProperty("ingestWorkers", "4");
+        properties.setProperty("manualAcks", "false");
+        List<String> stored = Collections.synchronizedList(new ArrayList<>());
+        IngestSink sink = new IngestSink() {
+            @Override
+            public void start(){ }
+
+            @Override
+            public void stop(){ }
+
+            @Override
+            public boolean submit(Object record){ return false; }
+
+            @Override
+            public boolean submitAll(List<?> records, Runnable done){
+                // The measurements of the channel "rejected" cannot be stored
+                for(Object record: records){
+                    if(((FlowRate) record).getFlowChannel().equals("rejected"))
+                        return false;
+                }
+                for(Object record: records)
+                    stored.add(((FlowRate) record).getFlowChannel());
+                done.run();
+                return true;
+            }
+        };
+        Map<MqttMessage, List<Boolean>> completions = new ConcurrentHashMap<>();
+        IngestPool pool = new IngestPool(properties, sink, flowRate -> { }, (message, consumed) ->
+                completions.computeIfAbsent(message, m -> new CopyOnWriteArrayList<>()).add(consumed));
+
+        // A mote publishing several channels at once, owned by different workers
+        List<String> channels = new ArrayList<>();
+        StringBuilder records = new StringBuilder();
+        for(int i = 0; i < 16; i++){
+            channels.add("outflow-" + i);
+            records.append(",{\"n\":\"outflow-").append(i).append("\",\"v\":").append(i).append("}");
+        }
+        String payload = "[{\"bn\":\"urn:dev:mac:f4ce3670c5b1a2e0:\",\"bu\":\"m3/s\",\"n\":\"inflow\",\"v\":1}" +
+                records + "]";
+        channels.add("inflow");
+        MqttMessage accepted = new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
+
+        pool.start();
+        pool.dispatch("flow-rate", accepted);
+        pool.stop();
+
+        // Every record stored by the worker of its sensor, the message completed once
+        List<String> actual = new ArrayList<>(stored);
+        Collections.sort(channels);
+        Collections.sort(actual);
+        assertEquals(channels, actual);
+        assertEquals(Collections.singletonList(true), completions.get(accepted));
+
+        // A part not stored: the whole message is not consumed
+        pool = new IngestPool(properties, sink, flowRate -> { }, (message, consumed) ->
+                completions.computeIfAbsent(message, m -> new CopyOnWriteArrayList<>()).add(consumed));
+        MqttMessage rejected = new MqttMessage(payload.replace("]", ",{\"n\":\"rejected\",\"v\":1}]")
+                .getBytes(StandardCharsets.UTF_8));
+        pool.start();
+        pool.dispatch("flow-rate", rejected);
+        pool.stop();
+        assertEquals(Collections.singletonList(false), completions.get(rejected));
+    }
+
+    private static byte[] fromHex(String hex){
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
 }
@@ -0,0 +1,83 @@
+package it.unipi.iot.damonitoring.collector.benchmark;
+
+import it.unipi.iot.damonitoring.DataManager;
+import it.unipi.iot.damonitoring.collector.ingest.Spool;
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Ingest throughput of the spool (append to the memory-mapped segments) against a direct database write of each
+ * measurement. The database benchmark requires the MySQL instance configured in hibernate.cfg.xml.
+ * <p>
+ * Run from the Collector module with: {@code mvn -P benchmark test-compile exec:java -Dexec.args="SpoolBenchmark"}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpoolBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SpoolState {
+        Path directory;
+        Spool spool;
+        FlowRate flowRate;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("spool-benchmark");
+            spool = new Spool(directory, 64 * 1024 * 1024, 1000, 200, 60000, 5, 1000, 0);
+            spool.start();
+            flowRate = newFlowRate();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            spool.stop();
+            try(Stream<Path> files = Files.walk(directory)){
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class DatabaseState {
+        @Setup(Level.Trial)
+        public void setup() throws PersistenceException {
+            DataManager.getInstance();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws PersistenceException {
+            DataManager.close();
+        }
+    }
+
+    @Benchmark
+    public boolean spoolAppend(SpoolState state) {
+        return state.spool.submit(state.flowRate);
+    }
+
+    @Benchmark
+    public FlowRate directDatabaseWrite(DatabaseState state) throws PersistenceException {
+        return DataManager.getInstance().recordFlowRate("outflow-1", new Date(), 42.17f);
+    }
+
+    private static FlowRate newFlowRate(){
+        FlowRate flowRate = new FlowRate();
+        flowRate.setFlowChannel("outflow-1");
+        flowRate.setTimestamp(new Date());
+        flowRate.setValue(42.17f);
+        return flowRate;
+    }
+}
@@ -0,0 +1,103 @@
+package it.unipi.iot.damonitoring.collector.ingest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class SensorStateTableTest {
+
+    private static final long IDLE = 60_000;
+
+    @Test
+    public void sameEntryForSameSensor() {
+        SensorStateTable table = new SensorStateTable(4, IDLE);
+        int entry = table.lookup(new StringBuilder("mote-1/"), "inflow", 0);
+        assertEquals(SensorStateTable.NO_TIME, table.getLastTime(entry));
+        table.setLastTime(entry, 10);
+
+        // Looked up by content, the name is interned on the first record
+        String name = table.getName(entry);
+        assertEquals(entry, table.lookup("mote-1/", new StringBuilder("inflow"), 1));
+        assertSame(name, table.getName(entry));
+        assertEquals(10, table.getLastTime(entry));
+
+        // The sensor is the resolved SenML name, base name and name concatenated
+        assertEquals(entry, table.lookup("mote-1/in", "flow", 2));
+        assertNotEquals(entry, table.lookup("mote-1/", "outflow-1", 3));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() {
+        SensorStateTable table = new SensorStateTable(3, IDLE);
+        int first = table.lookup("mote-1/", "inflow", 0);
+        table.setLastTime(first, 100);
+        int second = table.lookup("mote-2/", "outflow-1", 1);
+        table.setLastTime(second, 200);
+        table.lookup("mote-3/", "outflow-2", 2);
+
+        // The first sensor is used again: the second is the least recently used one
+        assertEquals(first, table.lookup("mote-1/", "inflow", 3));
+        table.lookup("mote-4/", "level", 4);
+        assertEquals(1, table.getEvictions());
+        assertEquals(3, table.size());
+        assertEquals(100, table.getLastTime(table.lookup("mote-1/", "inflow", 5)));
+
+        // The evicted sensor starts over without state, evicting the next least recently used one
+        int evicted = table.lookup("mote-2/", "outflow-1", 6);
+        assertEquals(SensorStateTable.NO_TIME, table.getLastTime(evicted));
+        assertEquals(2, table.getEvictions());
+        assertEquals(0, table.getExpirations());
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    public void idleSensorsExpired() {
+        SensorStateTable table = new SensorStateTable(8, IDLE);
+        table.lookup("mote-1/", "inflow", 0);
+        table.lookup("mote-2/", "outflow-1", 1000);
+        int active = table.lookup("mote-3/", "outflow-2", 2000);
+        table.setLastTime(active, 2000);
+
+        // Any lookup expires the sensors silent for longer than the idle timeout
+        assertEquals(active, table.lookup("mote-3/", "outflow-2", IDLE + 1500));
+        assertEquals(2, table.getExpirations());
+        assertEquals(0, table.getEvictions());
+        assertEquals(1, table.size());
+        assertEquals(2000, table.getLastTime(active));
+
+        // A sensor used within the timeout is kept
+        table.lookup("mote-3/", "outflow-2", 2 * IDLE + 1000);
+        assertEquals(1, table.size());
+        table.lookup("mote-1/", "inflow", 4 * IDLE);
+        assertEquals(3, table.getExpirations());
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void collidingSensorsRemovedFromTheirChain() {
+        // "Aa" and "BB" have the same hash: the entries share a bucket
+        SensorStateTable table = new SensorStateTable(2, IDLE);
+        int first = table.lookup("Aa", "", 0);
+        int second = table.lookup("BB", "", 1);
+        assertNotEquals(first, second);
+
+        // The first entry is behind the second in the bucket: evicted from the middle of the chain
+        table.lookup("C", "", 2);
+        assertEquals(1, table.getEvictions());
+        assertEquals(second, table.lookup("BB", "", 3));
+        assertEquals(1, table.getEvictions());
+
+        // Back in the bucket ahead of the second entry, then evicted from the head of the chain
+        table.lookup("Aa", "", 4);
+        assertEquals(2, table.getEvictions());
+        table.lookup("BB", "", 5);
+        table.lookup("C", "", 6);
+        assertEquals(3, table.getEvictions());
+        assertEquals(second, table.lookup("BB", "", 7));
+        assertEquals(3, table.getEvictions());
+        assertEquals(2, table.size());
+    }
+}
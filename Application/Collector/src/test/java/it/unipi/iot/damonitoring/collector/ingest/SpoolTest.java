@@ -0,0 +1,156 @@
+package it.unipi.iot.damonitoring.collector.ingest;
+
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static it.unipi.iot.damonitoring.collector.ingest.TestStorage.await;
+import static it.unipi.iot.damonitoring.collector.ingest.TestStorage.flowRate;
+import static it.unipi.iot.damonitoring.collector.ingest.TestStorage.flowRates;
+import static it.unipi.iot.damonitoring.collector.ingest.TestStorage.values;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpoolTest {
+
+    /* Records of the "inflow" channel take 25 bytes: 4 records per segment of 128 bytes */
+    private static final int RECORD_SIZE = 25;
+    private static final int SMALL_SEGMENT = 128;
+    private static final int SEGMENT = 4096;
+    private static final int BATCH = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayAfterCrash() throws IOException, InterruptedException {
+        Path directory = folder.getRoot().toPath();
+
+        // The database fails after the first batch: the checkpoint stays after it
+        TestStorage.Recorder first = new TestStorage.Recorder();
+        AtomicInteger failures = new AtomicInteger();
+        Spool spool = spool(directory, SEGMENT, 3, records -> {
+            if(first.batches() > 0){
+                failures.incrementAndGet();
+                throw new PersistenceException("Database unavailable");
+            }
+            first.recordBatch(records);
+        });
+        spool.start();
+        assertTrue(spool.submitAll(flowRates(0, 10), () -> { }));
+        await(() -> failures.get() > 0);
+        spool.stop();
+        assertEquals(values(0, BATCH), first.values());
+
+        // Crash while appending: the body of a record written without its length
+        Path segment = segments(directory).get(0);
+        try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)){
+            channel.write(ByteBuffer.wrap(new byte[]{ 1, 0, 0, 1, -117, -49, -26, -64, 0 }), 10 * RECORD_SIZE + 4);
+        }
+
+        // The torn record is overwritten, the replay restarts from the checkpoint
+        TestStorage.Recorder second = new TestStorage.Recorder();
+        Spool reopened = spool(directory, SEGMENT, 3, second);
+        reopened.start();
+        assertTrue(reopened.submit(flowRate(10)));
+        await(() -> second.values().size() >= 7);
+        reopened.stop();
+        assertEquals(values(BATCH, 11), second.values());
+        assertEquals(7, reopened.getReplayed());
+    }
+
+    @Test
+    public void rolloverAndCheckpointRestart() throws IOException, InterruptedException {
+        Path directory = folder.getRoot().toPath();
+        AtomicBoolean available = new AtomicBoolean();
+        TestStorage.Recorder recorder = new TestStorage.Recorder();
+        Spool spool = spool(directory, SMALL_SEGMENT, 3, records -> {
+            if(!available.get())
+                throw new PersistenceException("Database unavailable");
+            recorder.recordBatch(records);
+        });
+        spool.start();
+        for(int i = 0; i < 10; i++)
+            assertTrue(spool.submit(flowRate(i)));
+        assertEquals(3, spool.getSegments());
+        assertEquals(3, segments(directory).size());
+
+        // A pack is never split between segments
+        assertTrue(spool.submitAll(flowRates(10, 13), () -> { }));
+        assertEquals(4, spool.getSegments());
+
+        // Replayed segments are deleted, the last one is kept for append
+        available.set(true);
+        await(() -> spool.getReplayed() == 13);
+        await(() -> spool.getSegments() == 1);
+        spool.stop();
+        assertEquals(values(0, 13), recorder.values());
+        assertEquals(1, segments(directory).size());
+
+        // Nothing replayed twice after a restart
+        TestStorage.Recorder restarted = new TestStorage.Recorder();
+        Spool reopened = spool(directory, SMALL_SEGMENT, 3, restarted);
+        reopened.start();
+        assertTrue(reopened.submit(flowRate(13)));
+        await(() -> reopened.getReplayed() == 1);
+        reopened.stop();
+        assertEquals(values(13, 14), restarted.values());
+    }
+
+    @Test
+    public void quarantineAfterMaxAttempts() throws IOException, InterruptedException {
+        Path directory = folder.getRoot().toPath();
+        TestStorage.Recorder recorder = new TestStorage.Recorder();
+        AtomicInteger rejections = new AtomicInteger();
+        Spool spool = spool(directory, SEGMENT, 2, records -> {
+            if(containsNegative(records)){
+                rejections.incrementAndGet();
+                throw new PersistenceException("Out of range value", true);
+            }
+            recorder.recordBatch(records);
+        });
+        spool.start();
+        assertTrue(spool.submitAll(Arrays.asList(flowRate(1), flowRate(2), flowRate(-1), flowRate(4)),
+                () -> { }));
+        await(() -> spool.getReplayed() == 3 && spool.getQuarantined() == 1);
+        spool.stop();
+
+        // Two attempts of the batch, then the poison measurement alone
+        assertEquals(3, rejections.get());
+        assertEquals(values(1, 3), recorder.values().subList(0, 2));
+        assertEquals(4f, recorder.values().get(2), 0);
+        assertEquals(RECORD_SIZE, Files.size(directory.resolve("quarantine.spool")));
+    }
+
+    private static Spool spool(Path directory, int segmentSize, int maxAttempts, TestStorage.BatchHandler handler)
+            throws IOException {
+        return new Spool(directory, segmentSize, BATCH, 5, 5, maxAttempts, 1000, 50, TestStorage.of(handler));
+    }
+
+    private static boolean containsNegative(Collection<?> records){
+        return records.stream().anyMatch(record -> ((FlowRate) record).getValue() < 0);
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try(Stream<Path> files = Files.list(directory)){
+            return files.filter(file -> file.getFileName().toString().startsWith("segment-")).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package it.unipi.iot.damonitoring.collector.ingest;
+
+import it.unipi.iot.damonitoring.Storage;
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Storage of the ingest tests: the batches are passed to a handler, the other operations are not supported
+ */
+final class TestStorage {
+
+    interface BatchHandler {
+        void recordBatch(Collection<?> records) throws PersistenceException;
+    }
+
+    private TestStorage(){ }
+
+    static Storage of(BatchHandler handler){
+        return (Storage) Proxy.newProxyInstance(Storage.class.getClassLoader(), new Class<?>[]{ Storage.class },
+                (proxy, method, arguments) -> {
+                    if(!method.getName().equals("recordBatch"))
+                        throw new UnsupportedOperationException(method.getName());
+                    handler.recordBatch((Collection<?>) arguments[0]);
+                    return null;
+                });
+    }
+
+    /**
+     * Storage keeping the values of the batches stored, in order
+     */
+    static final class Recorder implements BatchHandler {
+        private final List<Float> values = Collections.synchronizedList(new ArrayList<>());
+        private volatile int batches;
+
+        @Override
+        public void recordBatch(Collection<?> records) throws PersistenceException {
+            for(Object record: records)
+                values.add(((FlowRate) record).getValue());
+            batches++;
+        }
+
+        List<Float> values(){
+            synchronized (values){
+                return new ArrayList<>(values);
+            }
+        }
+
+        int batches(){
+            return batches;
+        }
+    }
+
+    static FlowRate flowRate(float value){
+        FlowRate flowRate = new FlowRate();
+        flowRate.setFlowChannel("inflow");
+        flowRate.setTimestamp(new Date(1_700_000_000_000L + (long) (value * 1000)));
+        flowRate.setValue(value);
+        return flowRate;
+    }
+
+    static List<FlowRate> flowRates(int from, int to){
+        List<FlowRate> flowRates = new ArrayList<>();
+        for(int i = from; i < to; i++)
+            flowRates.add(flowRate(i));
+        return flowRates;
+    }
+
+    static List<Float> values(int from, int to){
+        List<Float> values = new ArrayList<>();
+        for(int i = from; i < to; i++)
+            values.add((float) i);
+        return values;
+    }
+
+    /**
+     * Wait for a condition, failing after 5 seconds
+     */
+    static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()){
+            assertTrue("Condition not met in time", System.nanoTime() < deadline);
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+    }
+}
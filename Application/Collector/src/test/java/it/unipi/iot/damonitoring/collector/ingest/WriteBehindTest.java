@@ -0,0 +1,118 @@
+package it.unipi.iot.damonitoring.collector.ingest;
+
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static it.unipi.iot.damonitoring.collector.ingest.TestStorage.await;
+import static it.unipi.iot.damonitoring.collector.ingest.TestStorage.flowRate;
+import static it.unipi.iot.damonitoring.collector.ingest.TestStorage.flowRates;
+import static it.unipi.iot.damonitoring.collector.ingest.TestStorage.values;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindTest {
+
+    private static final long FLUSH_PERIOD = 1000;
+
+    @Test
+    public void flushWhenBatchFull() throws InterruptedException {
+        TestStorage.Recorder recorder = new TestStorage.Recorder();
+        WriteBehind writeBehind = writeBehind(4, FLUSH_PERIOD, 5000, recorder);
+        writeBehind.start();
+        long start = System.nanoTime();
+        for(int i = 0; i < 6; i++)
+            assertTrue(writeBehind.submit(flowRate(i)));
+
+        // The full batch is stored before the flush period, the rest once it is elapsed
+        await(() -> recorder.batches() == 1);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(FLUSH_PERIOD));
+        assertEquals(values(0, 4), recorder.values());
+        await(() -> recorder.batches() == 2);
+        assertEquals(values(0, 6), recorder.values());
+        writeBehind.stop();
+        assertEquals(6, writeBehind.getWritten());
+        assertEquals(2, writeBehind.getFlushes());
+    }
+
+    @Test
+    public void flushAfterPeriod() throws InterruptedException {
+        long flushPeriod = 100;
+        TestStorage.Recorder recorder = new TestStorage.Recorder();
+        WriteBehind writeBehind = writeBehind(100, flushPeriod, 1000, recorder);
+        writeBehind.start();
+        long start = System.nanoTime();
+        for(int i = 0; i < 3; i++)
+            assertTrue(writeBehind.submit(flowRate(i)));
+
+        // The partial batch waits for the flush period, then is stored at once
+        await(() -> recorder.batches() == 1);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(flushPeriod));
+        assertEquals(values(0, 3), recorder.values());
+        writeBehind.stop();
+        assertEquals(1, writeBehind.getFlushes());
+    }
+
+    @Test
+    public void drainOnStop() throws InterruptedException {
+        AtomicInteger stored = new AtomicInteger();
+        TestStorage.Recorder recorder = new TestStorage.Recorder();
+        WriteBehind writeBehind = writeBehind(4, 50, 5000, records -> {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+            recorder.recordBatch(records);
+        });
+        writeBehind.start();
+        for(int i = 0; i < 20; i += 2)
+            assertTrue(writeBehind.submitAll(flowRates(i, i + 2), stored::incrementAndGet));
+
+        // The queued packs are stored before stop returns, the ones submitted afterwards are rejected
+        writeBehind.stop();
+        assertEquals(values(0, 20), recorder.values());
+        assertEquals(10, stored.get());
+        assertEquals(0, writeBehind.getQueueDepth());
+        assertFalse(writeBehind.submit(flowRate(20)));
+        assertEquals(20, writeBehind.getAccepted());
+        assertEquals(1, writeBehind.getRejected());
+    }
+
+    @Test
+    public void splitOnPermanentFailure() throws InterruptedException {
+        AtomicInteger stored = new AtomicInteger();
+        AtomicInteger transients = new AtomicInteger();
+        TestStorage.Recorder recorder = new TestStorage.Recorder();
+        WriteBehind writeBehind = writeBehind(6, FLUSH_PERIOD, 5000, records -> {
+            // A transient failure first, then the pack with the value 3 is not storable
+            if(transients.getAndIncrement() == 0)
+                throw new PersistenceException("Database unavailable");
+            for(Object record: records){
+                if(((FlowRate) record).getValue() == 3)
+                    throw new PersistenceException("Invalid value", true);
+            }
+            recorder.recordBatch(records);
+        });
+        writeBehind.start();
+        assertTrue(writeBehind.submitAll(flowRates(0, 3), stored::incrementAndGet));
+        assertTrue(writeBehind.submitAll(flowRates(3, 5), stored::incrementAndGet));
+        assertTrue(writeBehind.submitAll(flowRates(5, 6), stored::incrementAndGet));
+
+        // Only the pack that cannot be stored is discarded, every pack is notified
+        await(() -> stored.get() == 3);
+        assertEquals(Arrays.asList(0f, 1f, 2f, 5f), recorder.values());
+        assertEquals(1, writeBehind.getRetries());
+        assertEquals(2, writeBehind.getFailed());
+        assertEquals(4, writeBehind.getWritten());
+        writeBehind.stop();
+    }
+
+    private static WriteBehind writeBehind(int batchSize, long flushPeriod, long drainTimeout,
+                                           TestStorage.BatchHandler handler){
+        return new WriteBehind(64, batchSize, flushPeriod, 100, 10, drainTimeout, new Rollups(new int[0], 0),
+                TestStorage.of(handler));
+    }
+}
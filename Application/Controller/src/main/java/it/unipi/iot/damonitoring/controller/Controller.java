@@ -1,12 +1,16 @@
 package it.unipi.iot.damonitoring.controller;
 
-import it.unipi.iot.damonitoring.DataManager;
+import it.unipi.iot.damonitoring.StorageManager;
+import it.unipi.iot.damonitoring.controller.coap.ActuatorObserver;
+import it.unipi.iot.damonitoring.controller.coap.CoapManager;
 import it.unipi.iot.damonitoring.controller.control.AutomaticControlUnit;
 import it.unipi.iot.damonitoring.controller.control.ControlLogic;
 import it.unipi.iot.damonitoring.controller.control.exceptions.ControlException;
+import it.unipi.iot.damonitoring.controller.mqtt.MeasurementSubscriber;
 import it.unipi.iot.damonitoring.controller.user.Shell;
 import it.unipi.iot.damonitoring.exceptions.PersistenceException;
 
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,7 +24,7 @@ public class Controller {
 
 		// Eagle initialization
 		try {
-			DataManager.getInstance();
+			StorageManager.getInstance();
 			AutomaticControlUnit.init();
 		} catch (PersistenceException ex) {
 			System.out.println(("Something went wrong: " + ex.getMessage()));
@@ -28,6 +32,20 @@ public class Controller {
 			System.exit(-1);
 		}
 
+		// Recent measurements from the sensors, the storage is used if unavailable
+		try {
+			MeasurementSubscriber.start();
+		} catch (MqttException ex) {
+			logger.warn("Measurement subscription unavailable: {}", ex.getMessage());
+		}
+
+		// Live state of the actuators, requested to the devices if unavailable
+		try {
+			ActuatorObserver.start();
+		} catch (PersistenceException ex) {
+			logger.warn("Actuator observation unavailable: {}", ex.getMessage());
+		}
+
 		// Infinite REPL loop
 		Shell.getInstance().repl();
 	}
@@ -42,9 +60,16 @@ public class Controller {
 			logger.error("Automatic control unit failed to gracefully stop: {}", ex.getMessage());
 		}
 
+		// Stop receiving measurements
+		MeasurementSubscriber.stop();
+
+		// Cancel the observations, then close the CoAP endpoint shared by the requests to the actuators
+		ActuatorObserver.stop();
+		CoapManager.close();
+
 		// Close database connection
 		try {
-			DataManager.close();
+			StorageManager.close();
 			logger.info("Database disconnection completed");
 		} catch (PersistenceException ex) {
 			logger.error("Database connection failed to close: {} " + ex.getMessage());
@@ -0,0 +1,210 @@
+package it.unipi.iot.damonitoring.controller.coap;
+
+import it.unipi.iot.damonitoring.ResourceRegistry;
+import it.unipi.iot.damonitoring.StorageManager;
+import it.unipi.iot.damonitoring.controller.coap.exceptions.CoapException;
+import it.unipi.iot.damonitoring.entities.Resource;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live state of the actuators (gate opening levels, alarm states), kept by CoAP Observe relations on the registered
+ * gate and alarm resources: the devices notify the changes, the reads are served from memory. A relation is created
+ * when a resource is registered, created again when its device registers with a new URI or after a failure, and
+ * renewed periodically, so that a device restarted with the same URI is observed again.
+ */
+public final class ActuatorObserver {
+
+    private static final Logger logger = LoggerFactory.getLogger(ActuatorObserver.class);
+    private static final String CONFIG_FILE = "/controller.properties";
+    private static final String GATE = "gate";
+    private static final String ALARM = "alarm";
+
+    /* Observed state by resource name: opening level of the gates, 1/0 for the alarms */
+    private static final Map<String, Integer> states = new ConcurrentHashMap<>();
+    private static final Map<String, Observation> observations = new ConcurrentHashMap<>();
+    private static final ResourceRegistry.Listener listener = ActuatorObserver::sync;
+    private static ScheduledExecutorService renewal;
+    private static ResourceRegistry registry;
+
+    private ActuatorObserver(){ }
+
+    /**
+     * Observe the registered gates and alarms, then follow the changes of the registry
+     * @throws PersistenceException If the registry is not accessible
+     */
+    public static synchronized void start() throws PersistenceException {
+        if(renewal != null)
+            return;
+
+        long renewalPeriod;
+        try (InputStream inputStream = ActuatorObserver.class.getResourceAsStream(CONFIG_FILE)){
+            Properties properties = new Properties();
+            properties.load(inputStream);
+            renewalPeriod = Long.parseLong(properties.getProperty("observeRenewalPeriod"));
+        }
+        catch (IOException ex){
+            throw new RuntimeException(ex);
+        }
+
+        registry = StorageManager.getInstance().getResourceRegistry();
+        renewal = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "actuator-observe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        renewal.scheduleWithFixedDelay(ActuatorObserver::renew, renewalPeriod, renewalPeriod, TimeUnit.MILLISECONDS);
+
+        registry.addListener(listener);
+        sync(registry);
+    }
+
+    /**
+     * Cancel the relations (the devices stop notifying) and forget the observed state
+     */
+    public static synchronized void stop(){
+        if(renewal == null)
+            return;
+        registry.removeListener(listener);
+        renewal.shutdownNow();
+        renewal = null;
+        for(Observation observation: observations.values())
+            observation.relation.proactiveCancel();
+        observations.clear();
+        states.clear();
+    }
+
+    /**
+     * Retrieve the last state notified by an actuator
+     * @param name Resource name
+     * @return Opening level of a gate, 1 (on) or 0 (off) for an alarm, null if not observed or not notified yet
+     */
+    public static Integer getState(String name){
+        return states.get(name);
+    }
+
+    /**
+     * Record the state set by a successful request, before the notification
+     */
+    static void changed(String name, int value){
+        if(observations.containsKey(name))
+            states.put(name, value);
+    }
+
+    /**
+     * Align the relations to the registry: drop the ones of the resources removed, moved to a new URI or failed, then
+     * observe the resources without a relation
+     */
+    private static synchronized void sync(ResourceRegistry registry){
+        if(renewal == null)
+            return;
+
+        Map<String, Resource> actuators = new HashMap<>();
+        for(Resource resource: registry.byType(GATE))
+            actuators.put(resource.getName(), resource);
+        for(Resource resource: registry.byType(ALARM))
+            actuators.put(resource.getName(), resource);
+
+        for(Iterator<Observation> it = observations.values().iterator(); it.hasNext(); ){
+            Observation observation = it.next();
+            Resource resource = actuators.get(observation.name);
+            if(resource == null || !resource.getUri().equals(observation.uri) || observation.failed
+                    || observation.relation.isCanceled()){
+                it.remove();
+                states.remove(observation.name);
+                observation.relation.proactiveCancel();
+                logger.info("Observation of \"{}\" dropped", observation.name);
+            }
+        }
+
+        for(Resource resource: actuators.values()){
+            if(!observations.containsKey(resource.getName()))
+                observe(resource);
+        }
+    }
+
+    private static void observe(Resource resource){
+        // Registered before the request, so that the first notification is accepted
+        Observation observation = new Observation(resource.getName(), resource.getUri(),
+                resource.getType().equals(GATE));
+        observations.put(resource.getName(), observation);
+        try {
+            observation.relation = CoapManager.client(resource.getUri()).observe(observation);
+            logger.info("Observing \"{}\" <{}>", resource.getName(), resource.getUri());
+        } catch (CoapException ex) {
+            observations.remove(resource.getName());
+            logger.warn("Observation of \"{}\": {}", resource.getName(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Observe again the failed resources and renew the other relations (a device restarted lost its observers)
+     */
+    private static synchronized void renew(){
+        if(renewal == null)
+            return;
+        sync(registry);
+        for(Observation observation: observations.values())
+            observation.relation.reregister();
+    }
+
+    /**
+     * Relation with a resource, receiving its notifications
+     */
+    private static final class Observation implements CoapHandler {
+        private final String name;
+        private final String uri;
+        private final boolean gate;
+        private volatile CoapObserveRelation relation;
+        private volatile boolean failed;
+
+        private Observation(String name, String uri, boolean gate){
+            this.name = name;
+            this.uri = uri;
+            this.gate = gate;
+        }
+
+        @Override
+        public void onLoad(CoapResponse response) {
+            // Late notification of a dropped relation
+            if(observations.get(name) != this)
+                return;
+            if(!response.isSuccess()){
+                logger.warn("Observation of \"{}\": {}", name, response.getCode().name());
+                return;
+            }
+            try {
+                byte[] payload = response.getPayload();
+                states.put(name, gate ? CoapManager.gateOpening(payload) :
+                        (CoapManager.alarmStatus(payload) ? 1 : 0));
+            } catch (CoapException | IOException ex) {
+                logger.warn("Notification of \"{}\": {}", name, ex.getMessage());
+            }
+        }
+
+        @Override
+        public void onError() {
+            // Observed again on the next registry change or renewal
+            failed = true;
+            if(observations.get(name) == this)
+                states.remove(name);
+            logger.warn("Observation of \"{}\" failed", name);
+        }
+    }
+}
@@ -2,38 +2,140 @@ package it.unipi.iot.damonitoring.controller.coap;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import it.unipi.iot.damonitoring.DataManager;
+import it.unipi.iot.damonitoring.ResourceRegistry;
+import it.unipi.iot.damonitoring.StorageManager;
 import it.unipi.iot.damonitoring.controller.coap.exceptions.CoapException;
 import it.unipi.iot.damonitoring.entities.Resource;
 import it.unipi.iot.damonitoring.exceptions.PersistenceException;
 
 import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
 import org.eclipse.californium.core.CoapResponse;
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.network.CoapEndpoint;
 import org.eclipse.californium.elements.exception.ConnectorException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Requests to the actuators. The requests share a long-lived endpoint (a UDP socket and its threads) and a client per
+ * resource URI, created on the first request: a request costs the round trip only. The clients of the URIs no longer
+ * registered are evicted when the registry changes, the endpoint is closed by {@link #close()}.
+ */
 public final class CoapManager {
 
     private static final Logger logger = LoggerFactory.getLogger(CoapManager.class);
     private static final ObjectMapper mapper = new ObjectMapper();
 
+    /* Shared endpoint and clients by URI */
+    private static final Map<String, CoapClient> clients = new ConcurrentHashMap<>();
+    private static final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+    private static CoapEndpoint endpoint;
+    private static boolean closed;
+
     private CoapManager(){ }
 
     /**
-     * Retrieve resource URI from registry stored in the database
+     * Retrieve the client of a resource URI, creating the shared endpoint on the first request
+     * @param uri Resource URI
+     * @return Client bound to the shared endpoint
+     * @throws CoapException If the endpoint cannot be started or is closed
+     */
+    static CoapClient client(String uri) throws CoapException {
+        CoapClient client = clients.get(uri);
+        if(client != null)
+            return client;
+
+        synchronized (CoapManager.class){
+            if(closed)
+                throw new CoapException("CoAP endpoint closed");
+            if(endpoint == null){
+                CoapEndpoint newEndpoint = new CoapEndpoint.Builder().build();
+                try {
+                    newEndpoint.start();
+                    StorageManager.getInstance().getResourceRegistry().addListener(CoapManager::evict);
+                } catch (IOException | PersistenceException ex) {
+                    newEndpoint.destroy();
+                    throw new CoapException("CoAP endpoint unavailable: " + ex.getMessage());
+                }
+                endpoint = newEndpoint;
+                logger.info("CoAP endpoint started on {}", endpoint.getAddress());
+            }
+            return clients.computeIfAbsent(uri, key -> {
+                CoapClient newClient = new CoapClient(key);
+                newClient.setEndpoint(endpoint);
+                return newClient;
+            });
+        }
+    }
+
+    /**
+     * Evict the clients of the URIs no longer registered (e.g. a device registered again with a new address)
+     */
+    private static void evict(ResourceRegistry registry){
+        Set<String> registered = registry.all().stream().map(Resource::getUri).collect(Collectors.toSet());
+        for(Iterator<Map.Entry<String, CoapClient>> it = clients.entrySet().iterator(); it.hasNext(); ){
+            Map.Entry<String, CoapClient> entry = it.next();
+            if(!registered.contains(entry.getKey())){
+                it.remove();
+                entry.getValue().shutdown();
+                logger.info("CoAP client of {} evicted", entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Close the clients and the shared endpoint, the requests in progress are cancelled
+     */
+    public static synchronized void close(){
+        closed = true;
+        for(CoapClient client: clients.values())
+            client.shutdown();
+        clients.clear();
+        if(endpoint != null){
+            endpoint.destroy();
+            endpoint = null;
+        }
+        for(Map.Entry<String, Latency> entry: latencies.entrySet())
+            logger.info("CoAP {}: {}", entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Latency of the requests sent, by resource URI
+     * @return Unmodifiable view of the counters
+     */
+    public static Map<String, Latency> getLatencies(){
+        return Collections.unmodifiableMap(latencies);
+    }
+
+    private static void record(String uri, long start, boolean success){
+        latencies.computeIfAbsent(uri, key -> new Latency()).add(System.nanoTime() - start, success);
+    }
+
+    /**
+     * Retrieve resource URI from the in-memory registry
      * @param  resName Resource friendly name
      * @return Resource URI
      * @throws CoapException If the resource is not available
      * @throws PersistenceException If the registry is not accessible
      */
     static private String URILookup(String resName) throws CoapException, PersistenceException {
-        Resource resource = DataManager.getInstance().lookupResource(resName);
+        Resource resource = StorageManager.getInstance().lookupResource(resName);
         if(resource == null)
             throw new CoapException("Resource unavailable");
 
@@ -49,8 +151,11 @@ public final class CoapManager {
     public static int getGateOpening(String gate) throws CoapException {
         try {
             // Send GET request
-            CoapClient client = new CoapClient(URILookup(gate));
+            String uri = URILookup(gate);
+            CoapClient client = client(uri);
+            long start = System.nanoTime();
             CoapResponse response = client.get();
+            record(uri, start, response != null && response.isSuccess());
 
             // Check response code
             if(response == null || !response.isSuccess())
@@ -58,16 +163,7 @@ public final class CoapManager {
                         "no response from server" : response.getCode().name()));
 
             // Parse response
-            JsonNode node = mapper.readTree(response.getPayload());
-            String[] nameSplit = node.get("n").asText().split("/");
-            String name = nameSplit[nameSplit.length - 1];
-            String unit = node.get("u").asText();
-            int value = node.get("v").asInt();
-
-            // Check expected values
-            if(!name.equals("opening_level") || !unit.equals("percent")){
-                throw new CoapException("Bad record");
-            }
+            int value = gateOpening(response.getPayload());
 
             logger.info("Gate \"{}\" opening level {}", gate, value);
 
@@ -85,24 +181,29 @@ public final class CoapManager {
      * @throws CoapException In case of failure of the request
      */
     public static String setGateOpening(String gate, Integer level) throws CoapException{
-        try {
-
-            // Build request payload
-            String requestPayload = mapper
-                    .createObjectNode()
-                    .put("opening_level", level)
-                    .toString();
-
-            // Send request
-            String message = coapPutRequest(gate, requestPayload);
+        return await(setGateOpeningAsync(gate, level));
+    }
 
+    /**
+     * Set the opening level of the specified gate without waiting for the response
+     * @param gate Gate name
+     * @param level Target opening level
+     * @return Success message received from the server, completed exceptionally with a CoapException in case of
+     * failure of the request
+     */
+    public static CompletableFuture<String> setGateOpeningAsync(String gate, Integer level){
+        // Build request payload
+        String requestPayload = mapper
+                .createObjectNode()
+                .put("opening_level", level)
+                .toString();
+
+        // Send request
+        return coapPutRequest(gate, requestPayload).thenApply(message -> {
+            ActuatorObserver.changed(gate, level);
             logger.info("Gate \"{}\" opening level set to {}", gate, level);
-
             return message;
-
-        } catch (ConnectorException | IOException | PersistenceException ex) {
-            throw new CoapException(ex.getMessage());
-        }
+        });
     }
 
     /**
@@ -113,8 +214,10 @@ public final class CoapManager {
     public static Boolean getAlarmStatus(String URI) throws CoapException {
         try {
             // Send GET request
-            CoapClient client = new CoapClient(URI);
+            CoapClient client = client(URI);
+            long start = System.nanoTime();
             CoapResponse response = client.get();
+            record(URI, start, response != null && response.isSuccess());
 
             // Check response code
             if(response == null || !response.isSuccess())
@@ -122,17 +225,7 @@ public final class CoapManager {
                         "no response from server" : response.getCode().name()));
 
             // Parse response
-            JsonNode node = mapper.readTree(response.getPayload());
-            String[] nameSplit = node.get("n").asText().split("/");
-            String name = nameSplit[nameSplit.length - 1];
-            boolean value = node.get("vb").asBoolean();
-
-            // Check expected values
-            if(!name.equals("state")){
-                throw new CoapException("Bad record");
-            }
-
-            return value;
+            return alarmStatus(response.getPayload());
         } catch (ConnectorException | IOException ex) {
             throw new CoapException("Alarm: " + ex.getMessage());
         }
@@ -145,44 +238,140 @@ public final class CoapManager {
      * @throws CoapException In case of failure of the request
      */
     public static String setAlarmStatus(String name, Boolean state) throws CoapException {
-        try {
-
-            // Build request payload
-            String requestPayload = mapper
-                    .createObjectNode()
-                    .put("state", state)
-                    .toString();
-
-            // Send request
-            String message = coapPutRequest(name, requestPayload);
+        return await(setAlarmStatusAsync(name, state));
+    }
 
+    /**
+     * Set the alarm status without waiting for the response
+     * @param state Target status of the alarm (true = on, false = off)
+     * @return Success message received from the server, completed exceptionally with a CoapException in case of
+     * failure of the request
+     */
+    public static CompletableFuture<String> setAlarmStatusAsync(String name, Boolean state) {
+        // Build request payload
+        String requestPayload = mapper
+                .createObjectNode()
+                .put("state", state)
+                .toString();
+
+        // Send request
+        return coapPutRequest(name, requestPayload).thenApply(message -> {
+            ActuatorObserver.changed(name, state ? 1 : 0);
             logger.info("Alarm {}", state);
-
             return message;
+        });
+    }
 
-        } catch (ConnectorException | IOException | PersistenceException ex) {
-            throw new CoapException(ex.getMessage());
+    /**
+     * Parse the representation of a gate (SenML record of the opening level)
+     * @param payload Payload of a response or of a notification
+     * @return Opening level expressed in percentage (0-100)
+     * @throws CoapException If the record is not an opening level
+     * @throws IOException In case of malformed payload
+     */
+    static int gateOpening(byte[] payload) throws CoapException, IOException {
+        JsonNode node = mapper.readTree(payload);
+        String[] nameSplit = node.path("n").asText().split("/");
+        String name = nameSplit[nameSplit.length - 1];
+        String unit = node.path("u").asText();
+
+        // Check expected values
+        if(!name.equals("opening_level") || !unit.equals("percent") || !node.has("v")){
+            throw new CoapException("Bad record");
         }
+        return node.get("v").asInt();
     }
 
     /**
-     * Utility function to send PUT requests
-     * @param resource Resource URI
-     * @param requestPayload Request payload
+     * Parse the representation of an alarm (SenML record of the state)
+     * @param payload Payload of a response or of a notification
+     * @return Status of the alarm (true = on, false = off)
+     * @throws CoapException If the record is not a state
+     * @throws IOException In case of malformed payload
+     */
+    static boolean alarmStatus(byte[] payload) throws CoapException, IOException {
+        JsonNode node = mapper.readTree(payload);
+        String[] nameSplit = node.path("n").asText().split("/");
+        String name = nameSplit[nameSplit.length - 1];
+
+        // Check expected values
+        if(!name.equals("state") || !node.has("vb")){
+            throw new CoapException("Bad record");
+        }
+        return node.get("vb").asBoolean();
+    }
+
+    /**
+     * Wait for the result of an asynchronous request
+     * @param request Request future
      * @return Success message received from the server
      * @throws CoapException In case of failure of the request
-     * @throws IOException In case of failure of the request
-     * @throws ConnectorException In case of failure of the request
-     * @throws PersistenceException If the registry is not accessible
      */
-    private static String coapPutRequest(String resource, String requestPayload) throws CoapException,
-            PersistenceException, IOException, ConnectorException {
+    public static String await(CompletableFuture<String> request) throws CoapException {
+        try {
+            return request.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw (cause instanceof CoapException) ? (CoapException) cause : new CoapException(cause.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CoapException("Interrupted while waiting for the response");
+        }
+    }
 
-        CoapClient client = new CoapClient(URILookup(resource));
+    /**
+     * Utility function to send PUT requests with Californium's asynchronous API: the response is handled on the
+     * threads of the endpoint, the calling thread is not blocked
+     * @param resource Resource name
+     * @param requestPayload Request payload
+     * @return Success message received from the server, completed exceptionally with a CoapException in case of
+     * failure of the request or if the registry is not accessible
+     */
+    private static CompletableFuture<String> coapPutRequest(String resource, String requestPayload) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        String uri;
+        CoapClient client;
+        try {
+            uri = URILookup(resource);
+            client = client(uri);
+        } catch (CoapException | PersistenceException ex) {
+            result.completeExceptionally(new CoapException(ex.getMessage()));
+            return result;
+        }
 
         // Send PUT request
-        CoapResponse response = client.put(requestPayload, MediaTypeRegistry.APPLICATION_JSON);
+        long start = System.nanoTime();
+        client.put(new CoapHandler() {
+            @Override
+            public void onLoad(CoapResponse response) {
+                record(uri, start, response != null && response.isSuccess());
+                try {
+                    result.complete(putResponse(response));
+                } catch (CoapException ex) {
+                    result.completeExceptionally(ex);
+                } catch (IOException | RuntimeException ex) {
+                    result.completeExceptionally(new CoapException("Bad response: " + ex.getMessage()));
+                }
+            }
 
+            @Override
+            public void onError() {
+                record(uri, start, false);
+                result.completeExceptionally(new CoapException("Request failed: no response from server"));
+            }
+        }, requestPayload, MediaTypeRegistry.APPLICATION_JSON);
+
+        return result;
+    }
+
+    /**
+     * Parse the response to a PUT request
+     * @param response Response received from the server
+     * @return Success message received from the server
+     * @throws CoapException In case of failure of the request
+     * @throws IOException In case of malformed response
+     */
+    private static String putResponse(CoapResponse response) throws CoapException, IOException {
         // Check response code
         String message;
         if(response != null && (response.isSuccess() || response.getCode().equals(CoAP.ResponseCode.BAD_REQUEST))){
@@ -200,4 +389,51 @@ public final class CoapManager {
         return message;
 
     }
-}
\ No newline at end of file
+
+    /**
+     * Latency counters of the requests to a resource, failed requests included
+     */
+    public static final class Latency {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private void add(long nanos, boolean success){
+            requests.increment();
+            if(!success)
+                failures.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getRequests(){
+            return requests.sum();
+        }
+
+        public long getFailures(){
+            return failures.sum();
+        }
+
+        /**
+         * Mean latency in milliseconds
+         */
+        public double getMean(){
+            long count = requests.sum();
+            return (count == 0) ? 0 : totalNanos.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        /**
+         * Maximum latency in milliseconds
+         */
+        public double getMax(){
+            return maxNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%d requests, %d failed, mean %.1f ms, max %.1f ms",
+                    getRequests(), getFailures(), getMean(), getMax());
+        }
+    }
+}
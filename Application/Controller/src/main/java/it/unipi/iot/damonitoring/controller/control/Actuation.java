@@ -0,0 +1,99 @@
+package it.unipi.iot.damonitoring.controller.control;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Commands of a control run, sent to the actuators concurrently and awaited up to a common deadline: the run lasts
+ * as the slowest device that answers in time, a device not answering does not delay the others. The commands not
+ * completed by the deadline keep running in background and are reported as pending.
+ */
+final class Actuation {
+
+    private final Map<String, CompletableFuture<?>> commands = new LinkedHashMap<>();
+    private final long deadline;
+    private final List<String> failed = new ArrayList<>();
+    private final List<String> pending = new ArrayList<>();
+    private int completed;
+
+    /**
+     * @param timeout Time in milliseconds from now to the deadline of the commands
+     */
+    Actuation(long timeout){
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Add the command sent to a device
+     */
+    void add(String device, CompletableFuture<?> command){
+        commands.put(device, command);
+    }
+
+    void addAll(Map<String, ? extends CompletableFuture<?>> commands){
+        this.commands.putAll(commands);
+    }
+
+    /**
+     * Wait for the commands until they are all completed or the deadline is reached
+     * @return True if all the commands completed successfully
+     */
+    boolean await(){
+        try {
+            long timeout = deadline - System.nanoTime();
+            CompletableFuture.allOf(commands.values().toArray(new CompletableFuture<?>[0]))
+                    .get(Math.max(timeout, 0), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            // Reported per device
+        }
+
+        for(Map.Entry<String, CompletableFuture<?>> command: commands.entrySet()){
+            CompletableFuture<?> future = command.getValue();
+            if(!future.isDone())
+                pending.add(command.getKey());
+            else if(future.isCompletedExceptionally())
+                failed.add(command.getKey() + ": " + cause(future));
+            else
+                completed++;
+        }
+        return failed.isEmpty() && pending.isEmpty();
+    }
+
+    boolean isEmpty(){
+        return commands.isEmpty();
+    }
+
+    /**
+     * Outcome of the commands, after {@link #await()}
+     */
+    @Override
+    public String toString(){
+        StringBuilder report = new StringBuilder()
+                .append(commands.size()).append(" commands, ").append(completed).append(" completed");
+        if(!failed.isEmpty())
+            report.append(", ").append(failed.size()).append(" failed ").append(failed);
+        if(!pending.isEmpty())
+            report.append(", ").append(pending.size()).append(" pending at the deadline ").append(pending);
+        return report.toString();
+    }
+
+    private static String cause(CompletableFuture<?> future){
+        try {
+            future.get();
+            return "";
+        } catch (ExecutionException ex) {
+            return ex.getCause().getMessage();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return ex.getMessage();
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package it.unipi.iot.damonitoring.controller.control;
 
-import it.unipi.iot.damonitoring.DataManager;
-import it.unipi.iot.damonitoring.controller.coap.exceptions.CoapException;
+import it.unipi.iot.damonitoring.MeasurementWindow;
+import it.unipi.iot.damonitoring.MeasurementWindows;
+import it.unipi.iot.damonitoring.Storage;
+import it.unipi.iot.damonitoring.StorageManager;
 import it.unipi.iot.damonitoring.controller.control.enumerates.OperativeMode;
+import it.unipi.iot.damonitoring.entities.FlowRate;
 import it.unipi.iot.damonitoring.entities.Resource;
 import it.unipi.iot.damonitoring.entities.WaterLevel;
 import it.unipi.iot.damonitoring.exceptions.PersistenceException;
@@ -16,8 +19,11 @@ import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 
 import static it.unipi.iot.damonitoring.controller.control.ControlLogic.*;
 
@@ -31,6 +37,8 @@ public class AutomaticControlUnit implements Runnable {
     private static final String INFLOW = "inflow";
     private static final Logger logger = LoggerFactory.getLogger(AutomaticControlUnit.class);
     private static final Integer maxStale;
+    private static final Long actuationDeadline;
+    private static final Long stepInterval;
 
     static {
         try (InputStream inputStream = AutomaticControlUnit.class.getResourceAsStream(CONFIG_FILE)){
@@ -38,6 +46,8 @@ public class AutomaticControlUnit implements Runnable {
             properties.load(inputStream);
 
             maxStale = Integer.parseInt(properties.getProperty("maxStale"));
+            actuationDeadline = Long.parseLong(properties.getProperty("actuationDeadline"));
+            stepInterval = Long.parseLong(properties.getProperty("controlStepInterval"));
         }
         catch (IOException | IllegalArgumentException ex){
             System.out.println("Error during initialization: " + ex.getMessage());
@@ -45,14 +55,14 @@ public class AutomaticControlUnit implements Runnable {
         }
     }
 
+    /* Time of the last step of each gate, accessed only by the control thread */
+    private final Map<String, Long> lastSteps = new HashMap<>();
+
     public static void init(){ }
     @Override
     public void run() {
         try {
-            // Retrieve water level
-            WaterLevel waterLevel = DataManager.getInstance().retrieveWaterLevel();
-            Float inflowRate = DataManager.getInstance().retrieveFlowRate(INFLOW).getValue();
-            Float outFlowRate = DataManager.getInstance().retrieveOutFlowRate();
+            long now = System.currentTimeMillis();
 
             // Check data timestamp
             Date fiveMinutesAgo = Date.from(LocalDateTime
@@ -60,6 +70,35 @@ public class AutomaticControlUnit implements Runnable {
                     .minus(maxStale, ChronoUnit.MINUTES)
                     .toInstant(OffsetDateTime.now().getOffset()));
 
+            // Retrieve water level and flow rates from the recent measurements, each one only if fresh
+            long freshSince = fiveMinutesAgo.getTime();
+            MeasurementWindows windows = MeasurementWindows.getInstance();
+            MeasurementWindow level = windows.waterLevel();
+            MeasurementWindow inflow = windows.flowRate(INFLOW);
+            WaterLevel waterLevel = null;
+            if(level.latestTimestamp() >= freshSince){
+                waterLevel = new WaterLevel();
+                waterLevel.setTimestamp(new Date(level.latestTimestamp()));
+                waterLevel.setValue(level.latestValue());
+            }
+            Float inflowRate = (inflow.latestTimestamp() >= freshSince) ? inflow.latestValue() : null;
+            Float outFlowRate = freshOutFlow(windows, freshSince);
+
+            // The stale ones from the database, the queries run concurrently, each on a connection of the storage
+            if(waterLevel == null || inflowRate == null || outFlowRate == null){
+                Storage storage = StorageManager.getInstance();
+                CompletableFuture<WaterLevel> waterLevelQuery = (waterLevel == null) ?
+                        storage.retrieveWaterLevelAsync() : CompletableFuture.completedFuture(waterLevel);
+                CompletableFuture<Float> inflowQuery = (inflowRate == null) ?
+                        storage.retrieveFlowRateAsync(INFLOW).thenApply(FlowRate::getValue) :
+                        CompletableFuture.completedFuture(inflowRate);
+                CompletableFuture<Float> outFlowQuery = (outFlowRate == null) ?
+                        storage.retrieveOutFlowRateAsync() : CompletableFuture.completedFuture(outFlowRate);
+                waterLevel = Storage.await(waterLevelQuery);
+                inflowRate = Storage.await(inflowQuery);
+                outFlowRate = Storage.await(outFlowQuery);
+            }
+
             // Do nothing if no fresh data are available
             if(waterLevel == null || waterLevel.getTimestamp().before(fiveMinutesAgo)){
                 logger.warn("No fresh data");
@@ -69,21 +108,25 @@ public class AutomaticControlUnit implements Runnable {
             logger.info("Water level: {}", waterLevel);
             logger.info("Inflow: {}, Outflow: {}", inflowRate, outFlowRate);
 
+            // Commands sent to all the actuators at once, awaited together up to the deadline
+            Actuation actuation = new Actuation(actuationDeadline);
+
             // Turn on\off alarm
-            ControlLogic.setAlarmStatus(waterLevel.getValue() > ControlLogic.getSafeThreshold());
+            actuation.addAll(ControlLogic.setAlarmStatusAsync(waterLevel.getValue() > ControlLogic.getSafeThreshold()));
 
             // If running mode is auto not action is taken
             if(ControlLogic.getRunningMode().equals(OperativeMode.MANUAL)){
+                report(actuation);
                 return;
             }
 
             // Retrieve available gates
-            List<Resource> onlineGates = DataManager.getInstance().gateResources();
+            List<Resource> onlineGates = StorageManager.getInstance().gateResources();
 
             if(waterLevel.getValue() > ControlLogic.getSafeThreshold()){
                 // Open all gates (those not already opened)
                 for(Resource gate: onlineGates){
-                    ControlLogic.setGateOpening(gate.getName(), FULL_OPEN);
+                    actuation.add(gate.getName(), ControlLogic.setGateOpeningAsync(gate.getName(), FULL_OPEN));
                 }
             }
             else if(waterLevel.getValue() > ControlLogic.getMaxThreshold()){
@@ -93,11 +136,11 @@ public class AutomaticControlUnit implements Runnable {
                 for(Resource gate: onlineGates){
                     if(gate.getTag().equalsIgnoreCase("emergency")){
                         // Close emergency gates (those not already closed)
-                        ControlLogic.setGateOpening(gate.getName(), FULL_CLOSE);
+                        actuation.add(gate.getName(), ControlLogic.setGateOpeningAsync(gate.getName(), FULL_CLOSE));
                     }
-                    else{
+                    else if(stepDue(gate.getName(), now)){
                         // Increase opening level of primary gates (if not already to 100)
-                        ControlLogic.increaseGateOpening(gate.getName(), step);
+                        actuation.add(gate.getName(), ControlLogic.automaticStepAsync(gate.getName(), step));
                     }
                 }
             }
@@ -108,11 +151,11 @@ public class AutomaticControlUnit implements Runnable {
                 for(Resource gate: onlineGates){
                     // Close emergency gates (those not already closed)
                     if(gate.getTag().equalsIgnoreCase("emergency")){
-                        ControlLogic.setGateOpening(gate.getName(), FULL_CLOSE);
+                        actuation.add(gate.getName(), ControlLogic.setGateOpeningAsync(gate.getName(), FULL_CLOSE));
                     }
-                    else{
+                    else if(stepDue(gate.getName(), now)){
                         // Decrease opening level of primary gates (if not already to 0)
-                        ControlLogic.decreaseGateOpening(gate.getName(), step);
+                        actuation.add(gate.getName(), ControlLogic.automaticStepAsync(gate.getName(), -step));
                     }
                 }
             }
@@ -131,28 +174,72 @@ public class AutomaticControlUnit implements Runnable {
                 for(Resource gate: onlineGates){
                     // Close emergency gates (those not already closed)
                     if(gate.getTag().equalsIgnoreCase("emergency")){
-                        ControlLogic.setGateOpening(gate.getName(), FULL_CLOSE);
+                        actuation.add(gate.getName(), ControlLogic.setGateOpeningAsync(gate.getName(), FULL_CLOSE));
                     }
-                    else{
+                    else if(Math.abs(outFlowRate - inflowRate) > 1 && stepDue(gate.getName(), now)){
                         if(outFlowRate < inflowRate - 1){
                             // Increase opening level of primary gates (if not already to 100)
-                            ControlLogic.increaseGateOpening(gate.getName(), step);
+                            actuation.add(gate.getName(), ControlLogic.automaticStepAsync(gate.getName(), step));
                         }
                         else if(outFlowRate > inflowRate + 1){
                             // Reduce opening level of primary gates (if not already to 0)
-                            ControlLogic.decreaseGateOpening(gate.getName(), step);
+                            actuation.add(gate.getName(), ControlLogic.automaticStepAsync(gate.getName(), -step));
                         }
                     }
                 }
             }
+            report(actuation);
         } catch (PersistenceException ex) {
             logger.error("Database error: {}", ex.getMessage());
         }
-        catch (CoapException ex){
-            logger.error("Server error: {}", ex.getMessage());
-        }
         catch (Exception ex){
             logger.error("Error: {}", ex.getMessage());
         }
     }
+
+    /**
+     * Total outflow from the recent measurements
+     * @param since Oldest time of a fresh measurement
+     * @return Sum of the latest values of the outflow channels, null if none is known or any of them has no fresh
+     *         measurement
+     */
+    private static Float freshOutFlow(MeasurementWindows windows, long since){
+        float outFlow = 0;
+        int channels = 0;
+        for(String channel: windows.flowChannels()){
+            if(channel.equals(INFLOW))
+                continue;
+            MeasurementWindow window = windows.flowRate(channel);
+            if(window.latestTimestamp() < since)
+                return null;
+            outFlow += window.latestValue();
+            channels++;
+        }
+        return (channels > 0) ? outFlow : null;
+    }
+
+    /**
+     * Check whether a gate can take a new step: the control runs on every new measurement, more often than the gates
+     * respond, so the steps of a gate are limited to one per step interval to keep the gain of the control
+     * @return True if the step interval of the gate has elapsed, the time of the step is recorded
+     */
+    private boolean stepDue(String gate, long now){
+        Long last = lastSteps.get(gate);
+        if(last != null && now - last < stepInterval)
+            return false;
+        lastSteps.put(gate, now);
+        return true;
+    }
+
+    /**
+     * Wait for the commands of the run and log their outcome
+     */
+    private static void report(Actuation actuation){
+        if(actuation.isEmpty())
+            return;
+        if(actuation.await())
+            logger.info("Actuation: {}", actuation);
+        else
+            logger.warn("Actuation: {}", actuation);
+    }
 }
@@ -1,7 +1,9 @@
 package it.unipi.iot.damonitoring.controller.control;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import it.unipi.iot.damonitoring.DataManager;
+import it.unipi.iot.damonitoring.Storage;
+import it.unipi.iot.damonitoring.StorageManager;
+import it.unipi.iot.damonitoring.controller.coap.ActuatorObserver;
 import it.unipi.iot.damonitoring.controller.coap.CoapManager;
 import it.unipi.iot.damonitoring.controller.coap.exceptions.CoapException;
 import it.unipi.iot.damonitoring.controller.control.enumerates.OperativeMode;
@@ -10,16 +12,28 @@ import it.unipi.iot.damonitoring.entities.Resource;
 import it.unipi.iot.damonitoring.exceptions.PersistenceException;
 
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 public final class ControlLogic {
@@ -35,16 +49,33 @@ public final class ControlLogic {
     private static final AtomicReference<Float> safeThreshold;
     private static final AtomicReference<OperativeMode> mode;
 
+    /* Commands to the gates, by gate name */
+    private static final Map<String, GateMailbox> mailboxes = new ConcurrentHashMap<>();
 
-    /* Scheduled worker for automatic controller */
+
+    /* Scheduled worker for automatic controller: run on new measurements, periodic tick as staleness fallback */
     private static final Integer taskPeriod;
     private static final TimeUnit taskUnitOfTime;
+    private static final long controlDebounce;
+    private static final long controlMinInterval;
     private static final ScheduledExecutorService automaticControlUnit;
+    private static final Runnable controlTask = new AutomaticControlUnit();
+    private static final AtomicBoolean controlPending = new AtomicBoolean();
+    private static volatile long lastControl;
 
 
-    /* Simulation */
+    /* Simulation: a single client, used only by the simulation thread */
+    private static final int SIMULATION_QUEUE = 100;
+    private static final int SIMULATION_TIMEOUT = 5;
     private static final String brokerURI;
     private static final String clientID;
+    private static final ExecutorService simulation = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(SIMULATION_QUEUE), r -> {
+                Thread t = Executors.defaultThreadFactory().newThread(r);
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    private static MqttClient simulationClient;
 
     static {
         try (InputStream inputStream = ControlLogic.class.getResourceAsStream((CONFIG_FILE))){
@@ -63,6 +94,8 @@ public final class ControlLogic {
             safeThreshold = new AtomicReference<>(Float.parseFloat(properties.getProperty("safeThreshold")));
             taskPeriod = Integer.parseInt(properties.getProperty("taskPeriod"));
             taskUnitOfTime = TimeUnit.valueOf(properties.getProperty("taskUnitOfTime").toUpperCase());
+            controlDebounce = Long.parseLong(properties.getProperty("controlDebounce"));
+            controlMinInterval = Long.parseLong(properties.getProperty("controlMinInterval"));
 
             mode = new AtomicReference<>(OperativeMode.valueOf(properties.getProperty("mode").toUpperCase()));
 
@@ -72,7 +105,7 @@ public final class ControlLogic {
                 t.setDaemon(false);
                 return t;
             });
-            automaticControlUnit.scheduleAtFixedRate(new AutomaticControlUnit(), 0, taskPeriod, taskUnitOfTime);
+            automaticControlUnit.scheduleAtFixedRate(ControlLogic::staleControl, 0, taskPeriod, taskUnitOfTime);
 
         } catch (Exception ex) {
             System.out.println("Error during initialization: " + ex.getMessage());
@@ -145,6 +178,37 @@ public final class ControlLogic {
         return mode.get();
     }
 
+    /**
+     * Notify new measurements: the control runs after the debounce delay, so that the measurements published together
+     * (water level, flow rates) are evaluated by a single run, and no earlier than the minimum interval from the
+     * previous run. The notifications received before the run are coalesced into it.
+     */
+    public static void measurementArrived(){
+        if(controlPending.compareAndSet(false, true)){
+            long delay = Math.max(controlDebounce, lastControl + controlMinInterval - System.currentTimeMillis());
+            try {
+                automaticControlUnit.schedule(ControlLogic::runControl, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                controlPending.set(false); // Shutting down
+            }
+        }
+    }
+
+    /**
+     * Periodic tick: run the control only if no measurement triggered it in the last period (e.g. subscription lost)
+     */
+    private static void staleControl(){
+        if(!controlPending.get() && System.currentTimeMillis() - lastControl >= taskUnitOfTime.toMillis(taskPeriod))
+            runControl();
+    }
+
+    private static void runControl(){
+        // Measurements arriving from now on trigger a new run
+        controlPending.set(false);
+        lastControl = System.currentTimeMillis();
+        controlTask.run();
+    }
+
     public static void shutdown() throws ControlException{
         if(automaticControlUnit != null && !automaticControlUnit.isShutdown()){
             automaticControlUnit.shutdown();
@@ -156,6 +220,14 @@ public final class ControlLogic {
                 throw new ControlException(ex.getMessage());
             }
         }
+        if(!simulation.isShutdown()){
+            try {
+                simulation.submit(ControlLogic::closeSimulation).get(SIMULATION_TIMEOUT, TimeUnit.SECONDS);
+            } catch (Exception ex) {
+                logger.warn("Simulation: {}", ex.getMessage());
+            }
+            simulation.shutdown();
+        }
     }
 
     public static OperativeMode getRunningMode(){
@@ -174,12 +246,19 @@ public final class ControlLogic {
      * @throws CoapException In case of failure of the request
      */
     public static void setGateOpening(String gateName, Integer openingLevel) throws PersistenceException, CoapException {
-        Integer currentOpeningLevel = DataManager.getInstance().getResourceValue(gateName);
-        if(!currentOpeningLevel.equals(openingLevel)){
-            CoapManager.setGateOpening(gateName, openingLevel); // Update actuator
-            DataManager.getInstance().setResourceValue(gateName, openingLevel); // Update database value (used by grafana)
-            simulate(gateName, openingLevel); // Simulation only purpose
-        }
+        await(setGateOpeningAsync(gateName, openingLevel));
+    }
+
+    /**
+     * Set the opening level of the specified gate without waiting for the gate controller. The command is queued in
+     * the mailbox of the gate, replacing the commands not started yet
+     * @param gateName Name of the target gate
+     * @param openingLevel Opening level to set
+     * @return Completed when the gate and the registry are updated, exceptionally with a PersistenceException or a
+     * CoapException in case of failure
+     */
+    public static CompletableFuture<Void> setGateOpeningAsync(String gateName, Integer openingLevel) {
+        return mailbox(gateName).set(openingLevel);
     }
 
     /**
@@ -191,19 +270,21 @@ public final class ControlLogic {
      * @throws CoapException In case of failure of the request
      */
     public static void decreaseGateOpening(String gateName, Integer step) throws PersistenceException, CoapException {
-        Integer currentOpeningLevel = DataManager.getInstance().getResourceValue(gateName);
-        if(!currentOpeningLevel.equals(FULL_CLOSE) && step > 0){
-            int newLevel = Math.max(currentOpeningLevel - step, FULL_CLOSE);
-
-            // Update actuator
-            CoapManager.setGateOpening(gateName, newLevel);
-
-            // Update database value (used by grafana)
-            DataManager.getInstance().setResourceValue(gateName, newLevel);
+        await(decreaseGateOpeningAsync(gateName, step));
+    }
 
-            // Simulation only purpose
-            simulate(gateName, newLevel);
-        }
+    /**
+     * Decrease the opening level of the specified gate without waiting for the gate controller. The command is queued
+     * in the mailbox of the gate, coalesced with the commands not started yet
+     * @param gateName Name of the target gate
+     * @param step Decrease step level
+     * @return Completed when the gate and the registry are updated, exceptionally with a PersistenceException or a
+     * CoapException in case of failure
+     */
+    public static CompletableFuture<Void> decreaseGateOpeningAsync(String gateName, Integer step) {
+        if(step <= 0)
+            return CompletableFuture.completedFuture(null);
+        return mailbox(gateName).step(-step);
     }
 
     /**
@@ -215,19 +296,36 @@ public final class ControlLogic {
      * @throws CoapException In case of failure of the request
      */
     public static void increaseGateOpening(String gateName, Integer step) throws PersistenceException, CoapException {
-        Integer currentOpeningLevel = DataManager.getInstance().getResourceValue(gateName);
-        if(!currentOpeningLevel.equals(FULL_OPEN) && step > 0){
-            int newLevel = Math.min(currentOpeningLevel + step, FULL_OPEN);
-
-            // Update actuator
-            CoapManager.setGateOpening(gateName, newLevel);
+        await(increaseGateOpeningAsync(gateName, step));
+    }
 
-            // Update database value (used by grafana)
-            DataManager.getInstance().setResourceValue(gateName, newLevel);
+    /**
+     * Increase the opening level of the specified gate without waiting for the gate controller. The command is queued
+     * in the mailbox of the gate, coalesced with the commands not started yet
+     * @param gateName Name of the target gate
+     * @param step Increase step level
+     * @return Completed when the gate and the registry are updated, exceptionally with a PersistenceException or a
+     * CoapException in case of failure
+     */
+    public static CompletableFuture<Void> increaseGateOpeningAsync(String gateName, Integer step) {
+        if(step <= 0)
+            return CompletableFuture.completedFuture(null);
+        return mailbox(gateName).step(step);
+    }
 
-            // Simulation only purpose
-            simulate(gateName, newLevel);
-        }
+    /**
+     * Change the opening level of the specified gate by a step of the automatic control unit. The command is queued
+     * in the mailbox of the gate, replacing the automatic step not started yet: the automatic steps are not added up
+     * while a request is in flight
+     * @param gateName Name of the target gate
+     * @param step Step level, negative to decrease
+     * @return Completed when the gate and the registry are updated, exceptionally with a PersistenceException or a
+     * CoapException in case of failure
+     */
+    static CompletableFuture<Void> automaticStepAsync(String gateName, int step) {
+        if(step == 0)
+            return CompletableFuture.completedFuture(null);
+        return mailbox(gateName).automaticStep(step);
     }
 
     /**
@@ -238,26 +336,144 @@ public final class ControlLogic {
      * @throws CoapException In case of failure of the request
      */
     public static void setAlarmStatus(Boolean status) throws PersistenceException, CoapException {
-        for(Resource alarm: DataManager.getInstance().alarmResources()){
-            boolean currentStatus = DataManager.getInstance().getResourceValue(alarm.getName()) == 1;
+        // Requests sent to all the alarms before waiting for the first
+        for(CompletableFuture<Void> update: setAlarmStatusAsync(status).values())
+            await(update);
+    }
+
+    /**
+     * Set the status of the alarms without waiting for the alarm controllers
+     * @param status Status to set (true = on, false = off)
+     * @return Commands sent by alarm name, each completed when the alarm and the registry are updated, exceptionally
+     * with a PersistenceException or a CoapException in case of failure
+     * @throws PersistenceException In case of registry unavailable
+     */
+    public static Map<String, CompletableFuture<Void>> setAlarmStatusAsync(Boolean status) throws PersistenceException {
+        Storage storage = StorageManager.getInstance();
+        Map<String, CompletableFuture<Void>> commands = new LinkedHashMap<>();
+        for(Resource alarm: storage.alarmResources()){
+            boolean currentStatus = currentValue(storage, alarm.getName()) == 1;
             if(currentStatus != status){
-                CoapManager.setAlarmStatus(alarm.getName(), status);
-                DataManager.getInstance().setResourceValue(alarm.getName(), status ? 1:0);
+                commands.put(alarm.getName(), CoapManager.setAlarmStatusAsync(alarm.getName(), status)
+                        .thenCompose(message -> storage.setResourceValueAsync(alarm.getName(), status ? 1:0)));
             }
         }
+        return commands;
+    }
+
+    /**
+     * Mailbox of a gate: the commands to the same gate are serialized and coalesced, the gates run in parallel
+     */
+    private static GateMailbox mailbox(String gateName) {
+        return mailboxes.computeIfAbsent(gateName, gate -> new GateMailbox(gate, ControlLogic::execute));
+    }
+
+    /**
+     * Execute a command of a mailbox: compute the opening level from the current one, sending it to the gate
+     * controller only if different
+     */
+    private static CompletableFuture<Void> execute(String gateName, GateMailbox.Target target) {
+        try {
+            Storage storage = StorageManager.getInstance();
+            int currentOpeningLevel = currentValue(storage, gateName);
+            int openingLevel = target.apply(currentOpeningLevel);
+            if(openingLevel == currentOpeningLevel)
+                return CompletableFuture.completedFuture(null);
+            return actuate(storage, gateName, openingLevel);
+        } catch (PersistenceException ex) {
+            return failed(ex);
+        }
+    }
+
+    /**
+     * Current value of an actuator: the state notified by the device if observed, the registry value otherwise
+     */
+    private static Integer currentValue(Storage storage, String name) throws PersistenceException {
+        Integer state = ActuatorObserver.getState(name);
+        return (state != null) ? state : storage.getResourceValue(name);
+    }
+
+    /**
+     * Send the opening level to the gate controller, then update the database value (used by grafana) overlapped with
+     * the simulation. The continuation runs on the storage threads, not on the CoAP ones; the simulation is published
+     * by its own thread.
+     */
+    private static CompletableFuture<Void> actuate(Storage storage, String gateName, int level) {
+        return CoapManager.setGateOpeningAsync(gateName, level).thenComposeAsync(message -> {
+            CompletableFuture<Void> update = storage.setResourceValueAsync(gateName, level);
+            simulate(gateName, level); // Simulation only purpose, overlapped with the database update
+            return update;
+        }, storage.getAsyncExecutor());
+    }
+
+    /**
+     * Wait for an actuation command, rethrowing the cause of its failure
+     */
+    private static void await(CompletableFuture<Void> command) throws PersistenceException, CoapException {
+        try {
+            command.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof PersistenceException)
+                throw (PersistenceException) cause;
+            throw (cause instanceof CoapException) ? (CoapException) cause : new CoapException(cause.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CoapException("Interrupted while waiting for the actuator");
+        }
+    }
+
+    private static CompletableFuture<Void> failed(Throwable cause) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
     }
 
 
     /* Simulation only */
+
+    /**
+     * Queue the publication of an opening level to the simulation thread. When the queue is full, the oldest
+     * publications are discarded.
+     */
     private static void simulate(String gate, int level){
-        try(MqttClient client = new MqttClient(brokerURI, clientID)) {
-            client.connect();
-            client.publish("simulation",
+        try {
+            simulation.execute(() -> publishSimulation(gate, level));
+        } catch (RejectedExecutionException ex) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Publish an opening level with the simulation client, connected on the first use and again after a failure.
+     * The client has a fixed id, so a single client must be used: the broker closes the older session of an id.
+     */
+    private static void publishSimulation(String gate, int level){
+        try {
+            if(simulationClient == null)
+                simulationClient = new MqttClient(brokerURI, clientID, new MemoryPersistence());
+            if(!simulationClient.isConnected()){
+                MqttConnectOptions options = new MqttConnectOptions();
+                options.setCleanSession(true);
+                options.setConnectionTimeout(SIMULATION_TIMEOUT);
+                simulationClient.connect(options);
+            }
+            simulationClient.publish("simulation",
                     new MqttMessage(new ObjectMapper().createObjectNode()
                             .put("gate-" + gate, level)
                             .toString()
                             .getBytes()));
-            client.disconnect();
         } catch (MqttException ex) { logger.warn("Simulation: {}", ex.getMessage()); }
     }
+
+    private static void closeSimulation(){
+        if(simulationClient == null)
+            return;
+        try {
+            if(simulationClient.isConnected())
+                simulationClient.disconnect();
+            simulationClient.close();
+        } catch (MqttException ex) { logger.warn("Simulation: {}", ex.getMessage()); }
+        simulationClient = null;
+    }
 }
@@ -0,0 +1,151 @@
+package it.unipi.iot.damonitoring.controller.control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
+
+/**
+ * Commands to a gate (the shell and the automatic control unit), executed one at a time: a command reads the current
+ * opening level when it starts, after the previous command has updated the gate and the registry. The commands
+ * submitted while a command is running are coalesced last-write-wins into the next one, so a burst of changes costs
+ * a single request with the final level. Mailboxes of different gates run in parallel.
+ * <p>
+ * The steps of the users are added to the pending command, so the next request reaches the final target. An automatic
+ * step instead replaces the pending automatic step: the automatic steps are decided on measurements that do not
+ * reflect the commands still in flight yet, so adding them up would wind the gate up by several steps at once. The
+ * automatic step is applied after the pending commands of the users.
+ * <p>
+ * There is no thread of its own: the next command is started by the completion of the previous one.
+ */
+final class GateMailbox {
+
+    private final String gate;
+    private final BiFunction<String, Target, CompletableFuture<Void>> executor;
+
+    /* Pending commands of the users (null if none), pending automatic step (0 if none) and their submitters,
+       guarded by this */
+    private Target pending;
+    private int pendingAutomatic;
+    private List<CompletableFuture<Void>> waiting = new ArrayList<>();
+    private boolean running;
+
+    /**
+     * @param gate Gate name
+     * @param executor Execution of a command: sets the opening level computed from the current one
+     */
+    GateMailbox(String gate, BiFunction<String, Target, CompletableFuture<Void>> executor){
+        this.gate = gate;
+        this.executor = executor;
+    }
+
+    /**
+     * Set the opening level, replacing the pending commands
+     */
+    CompletableFuture<Void> set(int level){
+        return submit(() -> {
+            pending = new Target(level, level, 0);
+            pendingAutomatic = 0;
+        });
+    }
+
+    /**
+     * Change the opening level by a step (negative to close), after the pending commands
+     */
+    CompletableFuture<Void> step(int step){
+        return submit(() -> pending = ((pending == null) ? Target.IDENTITY : pending).then(step));
+    }
+
+    /**
+     * Change the opening level by an automatic step (negative to close), replacing the pending automatic step
+     */
+    CompletableFuture<Void> automaticStep(int step){
+        return submit(() -> pendingAutomatic = step);
+    }
+
+    private CompletableFuture<Void> submit(Runnable command){
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        boolean start;
+        synchronized (this){
+            command.run();
+            waiting.add(result);
+            start = !running;
+            running = true;
+        }
+        if(start)
+            next();
+        return result;
+    }
+
+    /**
+     * Execute the pending command, completing all the commands coalesced into it with its outcome
+     */
+    private void next(){
+        Target command;
+        List<CompletableFuture<Void>> completing;
+        synchronized (this){
+            if(waiting.isEmpty()){
+                running = false;
+                return;
+            }
+            command = ((pending == null) ? Target.IDENTITY : pending).then(pendingAutomatic);
+            completing = waiting;
+            pending = null;
+            pendingAutomatic = 0;
+            waiting = new ArrayList<>();
+        }
+
+        CompletableFuture<Void> execution;
+        try {
+            execution = executor.apply(gate, command);
+        } catch (RuntimeException ex) {
+            execution = new CompletableFuture<>();
+            execution.completeExceptionally(ex);
+        }
+        execution.whenComplete((result, ex) -> {
+            Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+            for(CompletableFuture<Void> future: completing){
+                if(cause == null)
+                    future.complete(null);
+                else
+                    future.completeExceptionally(cause);
+            }
+            next();
+        });
+    }
+
+    /**
+     * Opening level as a function of the current one: {@code min(high, max(low, current + delta))}. A set is a
+     * constant, a step adds the delta within 0-100; the composition of the two forms is of the same form, so any
+     * sequence of commands is coalesced exactly into one.
+     */
+    static final class Target {
+        private static final Target IDENTITY = new Target(ControlLogic.FULL_CLOSE, ControlLogic.FULL_OPEN, 0);
+
+        private final int low;
+        private final int high;
+        private final int delta;
+
+        private Target(int low, int high, int delta){
+            this.low = low;
+            this.high = high;
+            this.delta = delta;
+        }
+
+        /**
+         * Compose with a following step, clamped to 0-100 as a step on its own
+         */
+        private Target then(int step){
+            return new Target(clamp(low + step), clamp(high + step), delta + step);
+        }
+
+        int apply(int current){
+            return Math.min(high, Math.max(low, current + delta));
+        }
+
+        private static int clamp(int level){
+            return Math.max(ControlLogic.FULL_CLOSE, Math.min(ControlLogic.FULL_OPEN, level));
+        }
+    }
+}
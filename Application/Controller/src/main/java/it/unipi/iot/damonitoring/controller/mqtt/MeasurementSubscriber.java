@@ -0,0 +1,154 @@
+package it.unipi.iot.damonitoring.controller.mqtt;
+
+import it.unipi.iot.damonitoring.MeasurementWindows;
+import it.unipi.iot.damonitoring.controller.control.ControlLogic;
+import it.unipi.iot.damonitoring.senml.SenMLCborDecoder;
+import it.unipi.iot.damonitoring.senml.SenMLDecoder;
+import it.unipi.iot.damonitoring.senml.SenMLFormat;
+import it.unipi.iot.damonitoring.senml.SenMLPack;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Subscription of the Controller to the measurements published by the sensors (SenML JSON and CBOR topics), filling
+ * the in-memory windows of recent measurements: the control unit and the shell read the latest data from the windows
+ * instead of querying the database. New measurements trigger the automatic control. Measurements are not stored, the
+ * Collector is in charge of it.
+ * <p>
+ * The packs are decoded by the same SenML decoders of the Collector, hence with the same resolution of base name,
+ * time and value. Messages are delivered by a single client thread, so the decoders and the pack are reused.
+ */
+public final class MeasurementSubscriber implements MqttCallbackExtended {
+
+    private static final Logger logger = LoggerFactory.getLogger(MeasurementSubscriber.class);
+    private static final String CONFIG_FILE = "/controller.properties";
+    private static MeasurementSubscriber instance;
+
+    /* Private fields */
+    private final MqttAsyncClient client;
+    private final String[] topics;
+    private final MeasurementWindows windows = MeasurementWindows.getInstance();
+    private final SenMLDecoder decoder = new SenMLDecoder();
+    private final SenMLCborDecoder cborDecoder = new SenMLCborDecoder();
+    private final SenMLPack pack = new SenMLPack();
+
+    private MeasurementSubscriber() throws MqttException {
+        try (InputStream inputStream = MeasurementSubscriber.class.getResourceAsStream(CONFIG_FILE)){
+            Properties properties = new Properties();
+            properties.load(inputStream);
+
+            topics = properties.getProperty("measurementTopics").split(",");
+            client = new MqttAsyncClient(properties.getProperty("brokerURI"),
+                    properties.getProperty("measurementClientID"), new MemoryPersistence());
+            client.setCallback(this);
+        }
+        catch (IOException ex){
+            throw new RuntimeException(ex);
+        }
+
+        // Only recent data matter: no session kept by the broker, automatic reconnection
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setAutomaticReconnect(true);
+        client.connect(options, null, new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken token) { }
+
+            @Override
+            public void onFailure(IMqttToken token, Throwable ex) {
+                logger.warn("Measurement subscription unavailable, data read from storage: {}", ex.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Connect to the broker and subscribe the measurement topics, the connection is completed in background
+     * @throws MqttException If the client cannot be created or the connection started
+     */
+    public static synchronized void start() throws MqttException {
+        if(instance == null)
+            instance = new MeasurementSubscriber();
+    }
+
+    public static synchronized void stop(){
+        if(instance != null){
+            try {
+                if(instance.client.isConnected())
+                    instance.client.disconnect().waitForCompletion();
+                instance.client.close();
+            } catch (MqttException ex) {
+                logger.warn("Measurement subscription: {}", ex.getMessage());
+            }
+            instance = null;
+        }
+    }
+
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI) {
+        try {
+            for(String topic: topics)
+                client.subscribe(topic.trim(), 0);
+            logger.info("Measurement subscription {}", reconnect ? "restored" : "started");
+        } catch (MqttException ex) {
+            logger.error("Measurement subscription: {}", ex.getMessage());
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable throwable) {
+        logger.warn("Measurement subscription lost: {}", throwable.getMessage());
+    }
+
+    /**
+     * Add the measurements of a SenML pack (JSON or CBOR, selected by the topic suffix) to the windows: the name of a
+     * flow rate record is its channel. The automatic control is notified once per pack.
+     */
+    @Override
+    public void messageArrived(String topic, MqttMessage mqttMessage) {
+        try {
+            byte[] payload = mqttMessage.getPayload();
+            if(SenMLFormat.of(topic, payload) == SenMLFormat.CBOR)
+                cborDecoder.decode(payload, pack);
+            else
+                decoder.decode(payload, pack);
+            long now = System.currentTimeMillis();
+            String measure = SenMLFormat.baseTopic(topic);
+            boolean added = false;
+            for(int i = 0; i < pack.size(); i++){
+                float value = pack.getValue(i);
+                if(Float.isNaN(value))
+                    continue;
+                long timestamp = pack.getTime(i, now);
+
+                if(measure.equals("flow-rate"))
+                    windows.flowRate(pack.getName(i).toString()).append(timestamp, value);
+                else if(measure.equals("water-level"))
+                    windows.waterLevel().append(timestamp, value);
+                else
+                    continue;
+                added = true;
+            }
+            if(added)
+                ControlLogic.measurementArrived();
+        } catch (IOException ex) {
+            logger.warn("Malformed measurement on \"{}\": {}", topic, ex.getMessage());
+        }
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) { }
+}
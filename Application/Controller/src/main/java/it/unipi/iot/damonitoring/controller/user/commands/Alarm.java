@@ -1,6 +1,7 @@
 package it.unipi.iot.damonitoring.controller.user.commands;
 
-import it.unipi.iot.damonitoring.DataManager;
+import it.unipi.iot.damonitoring.StorageManager;
+import it.unipi.iot.damonitoring.controller.coap.ActuatorObserver;
 import it.unipi.iot.damonitoring.controller.coap.CoapManager;
 import it.unipi.iot.damonitoring.entities.Resource;
 import picocli.CommandLine.*;
@@ -15,10 +16,12 @@ public class Alarm implements BaseCommand {
 
     @Override
     public Integer call() throws Exception {
-        for(Resource alarm: DataManager.getInstance().alarmResources()){
+        for(Resource alarm: StorageManager.getInstance().alarmResources()){
+            // Observed state if available, request to the alarm otherwise
+            Integer state = ActuatorObserver.getState(alarm.getName());
             System.out.printf("* %s: %s%n",
                     alarm.getName().toUpperCase(),
-                    CoapManager.getAlarmStatus(alarm.getUri()) ? "On": "Off");
+                    ((state != null) ? state == 1 : CoapManager.getAlarmStatus(alarm.getUri())) ? "On": "Off");
         }
 
         return 0;
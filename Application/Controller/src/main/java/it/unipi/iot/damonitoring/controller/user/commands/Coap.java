@@ -0,0 +1,25 @@
+package it.unipi.iot.damonitoring.controller.user.commands;
+
+import it.unipi.iot.damonitoring.controller.coap.CoapManager;
+import picocli.CommandLine.*;
+
+import java.util.Map;
+
+@Command(
+        name = "Coap",
+        mixinStandardHelpOptions = true,
+        description = "Show the latency of the requests to the actuators.",
+        version = "Controller 1.0"
+)
+public class Coap implements BaseCommand {
+
+    @Override
+    public Integer call() {
+        if(CoapManager.getLatencies().isEmpty())
+            System.out.println("No requests sent");
+        for(Map.Entry<String, CoapManager.Latency> entry: CoapManager.getLatencies().entrySet())
+            System.out.printf("* %s: %s%n", entry.getKey(), entry.getValue());
+
+        return 0;
+    }
+}
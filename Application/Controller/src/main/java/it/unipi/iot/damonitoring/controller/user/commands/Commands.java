@@ -12,6 +12,7 @@ import picocli.CommandLine.Command;
             Level.class,
             Alarm.class,
             Gate.class,
+            Coap.class,
             Commands.Shutdown.class,
             Commands.Help.class
         }
@@ -1,11 +1,15 @@
 package it.unipi.iot.damonitoring.controller.user.commands;
-import it.unipi.iot.damonitoring.DataManager;
+import it.unipi.iot.damonitoring.MeasurementWindow;
+import it.unipi.iot.damonitoring.MeasurementWindows;
+import it.unipi.iot.damonitoring.StorageManager;
 import it.unipi.iot.damonitoring.entities.FlowRate;
 import it.unipi.iot.damonitoring.exceptions.PersistenceException;
 import picocli.CommandLine.*;
 
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 @Command(
         name = "Flow",
@@ -22,6 +26,9 @@ public class Flow implements BaseCommand {
     @Option(names = {"-l", "--list"}, description = "Retrieve list of available channels.")
     Boolean list = false;
 
+    @Option(names = {"-w", "--window"}, description = "Show min, max, mean and trend of the last minutes.")
+    Integer minutes;
+
     @Parameters(index="0", description = "Channel identifier.", arity = "0,1")
     String channel;
 
@@ -47,7 +54,16 @@ public class Flow implements BaseCommand {
     }
 
     private void lastRecord(String channel) throws PersistenceException {
-        FlowRate flowRate = DataManager.getInstance().retrieveFlowRate(channel);
+        // Latest measurement received by the Controller, from the database if none
+        MeasurementWindow window = MeasurementWindows.getInstance().flowRate(channel);
+        FlowRate flowRate;
+        if(window.size() > 0){
+            flowRate = new FlowRate();
+            flowRate.setFlowChannel(channel);
+            flowRate.setTimestamp(new Date(window.latestTimestamp()));
+            flowRate.setValue(window.latestValue());
+        }
+        else flowRate = StorageManager.getInstance().retrieveFlowRate(channel);
 
         if(flowRate == null){
             System.out.printf("Channel \"%s\": no available data%n",
@@ -56,5 +72,12 @@ public class Flow implements BaseCommand {
         }
         System.out.printf("Flow rate at %s in channel \"%s\" = %.2f [m^3/s]%n",
                 formatter.format(flowRate.getTimestamp()), channel.toUpperCase(), flowRate.getValue());
+
+        MeasurementWindow.Stats stats = new MeasurementWindow.Stats();
+        if(minutes != null && window.since(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(minutes), stats)){
+            System.out.printf("  last %d minutes (%d measurements): min %.2f, max %.2f, mean %.2f [m^3/s], " +
+                    "trend %+.3f [m^3/s/min]%n", minutes, stats.getCount(), stats.getMin(), stats.getMax(),
+                    stats.getMean(), stats.getSlope() * 60);
+        }
     }
 }
@@ -1,6 +1,7 @@
 package it.unipi.iot.damonitoring.controller.user.commands;
 
-import it.unipi.iot.damonitoring.DataManager;
+import it.unipi.iot.damonitoring.StorageManager;
+import it.unipi.iot.damonitoring.controller.coap.ActuatorObserver;
 import it.unipi.iot.damonitoring.controller.coap.CoapManager;
 import it.unipi.iot.damonitoring.controller.coap.exceptions.CoapException;
 import it.unipi.iot.damonitoring.controller.control.ControlLogic;
@@ -39,7 +40,7 @@ public class Gate implements BaseCommand{
             list();
         }
         else if(gateName == null){
-            for(Resource gate: DataManager.getInstance().gateResources()){
+            for(Resource gate: StorageManager.getInstance().gateResources()){
                 getLevel(gate.getName());
             }
         } else if (openingLevel == null) {
@@ -51,7 +52,7 @@ public class Gate implements BaseCommand{
     }
 
     private void list() throws PersistenceException {
-        System.out.println("Online gates: \n" + DataManager.getInstance()
+        System.out.println("Online gates: \n" + StorageManager.getInstance()
                 .gateResources().stream()
                 .map(res -> String.format("* %s [%s]\t%s", res.getName().toUpperCase(), res.getTag(), res.getDescription()))
                 .collect(Collectors.joining("\n")));
@@ -66,7 +67,9 @@ public class Gate implements BaseCommand{
     }
 
     private void getLevel(String gateName) throws CoapException {
+        // Observed state if available, request to the gate otherwise
+        Integer level = ActuatorObserver.getState(gateName);
         System.out.printf("Gate \"%s\" opening level = %d%%%n",
-                gateName.toUpperCase(), CoapManager.getGateOpening(gateName));
+                gateName.toUpperCase(), (level != null) ? level : CoapManager.getGateOpening(gateName));
     }
 }
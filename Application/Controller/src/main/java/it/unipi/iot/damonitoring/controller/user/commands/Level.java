@@ -1,10 +1,15 @@
 package it.unipi.iot.damonitoring.controller.user.commands;
-import it.unipi.iot.damonitoring.DataManager;
+import it.unipi.iot.damonitoring.MeasurementWindow;
+import it.unipi.iot.damonitoring.MeasurementWindows;
+import it.unipi.iot.damonitoring.StorageManager;
 import it.unipi.iot.damonitoring.entities.WaterLevel;
 import it.unipi.iot.damonitoring.exceptions.PersistenceException;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 
 import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 @Command(
         name = "Level",
@@ -16,14 +21,27 @@ public class Level implements BaseCommand {
 
     private static final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
+    @Option(names = {"-w", "--window"}, description = "Show min, max, mean and trend of the last minutes.")
+    Integer minutes;
+
     @Override
     public Integer call() throws Exception {
         lastRecord();
+        if(minutes != null)
+            window();
         return 0;
     }
 
     private void lastRecord() throws PersistenceException {
-        WaterLevel waterLevel = DataManager.getInstance().retrieveWaterLevel();
+        // Latest measurement received by the Controller, from the database if none
+        MeasurementWindow window = MeasurementWindows.getInstance().waterLevel();
+        WaterLevel waterLevel;
+        if(window.size() > 0){
+            waterLevel = new WaterLevel();
+            waterLevel.setTimestamp(new Date(window.latestTimestamp()));
+            waterLevel.setValue(window.latestValue());
+        }
+        else waterLevel = StorageManager.getInstance().retrieveWaterLevel();
 
         if(waterLevel == null){
             System.out.println("No available data");
@@ -32,4 +50,15 @@ public class Level implements BaseCommand {
         System.out.printf("Water level at %s = %.2f [m]%n", formatter.format(waterLevel.getTimestamp()),
                 waterLevel.getValue());
     }
+
+    private void window() {
+        MeasurementWindow.Stats stats = new MeasurementWindow.Stats();
+        if(!MeasurementWindows.getInstance().waterLevel()
+                .since(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(minutes), stats)){
+            System.out.printf("No measurement received in the last %d minutes%n", minutes);
+            return;
+        }
+        System.out.printf("Last %d minutes (%d measurements): min %.2f, max %.2f, mean %.2f [m], trend %+.3f [m/min]%n",
+                minutes, stats.getCount(), stats.getMin(), stats.getMax(), stats.getMean(), stats.getSlope() * 60);
+    }
 }
@@ -0,0 +1,177 @@
+package it.unipi.iot.damonitoring.controller.control;
+
+import it.unipi.iot.damonitoring.controller.coap.exceptions.CoapException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GateMailboxTest {
+
+    /**
+     * Gates of the test: the requests stay in flight until completed by the test
+     */
+    private static final class Gates {
+        private final Map<String, Integer> levels = new HashMap<>();
+        private final Map<String, List<Integer>> requests = new HashMap<>();
+        private final Map<String, List<CompletableFuture<Void>>> inFlight = new HashMap<>();
+
+        Gates(int level, String... gates){
+            for(String gate: gates){
+                levels.put(gate, level);
+                requests.put(gate, new ArrayList<>());
+                inFlight.put(gate, new ArrayList<>());
+            }
+        }
+
+        GateMailbox mailbox(String gate){
+            return new GateMailbox(gate, this::execute);
+        }
+
+        private CompletableFuture<Void> execute(String gate, GateMailbox.Target target){
+            int level = target.apply(levels.get(gate));
+            levels.put(gate, level);
+            requests.get(gate).add(level);
+            CompletableFuture<Void> request = new CompletableFuture<>();
+            inFlight.get(gate).add(request);
+            return request;
+        }
+
+        void complete(String gate, int request){
+            inFlight.get(gate).get(request).complete(null);
+        }
+
+        void fail(String gate, int request, Throwable cause){
+            inFlight.get(gate).get(request).completeExceptionally(cause);
+        }
+
+        List<Integer> requests(String gate){
+            return requests.get(gate);
+        }
+    }
+
+    @Test
+    public void stepsCoalescedDuringPut() {
+        Gates gates = new Gates(50, "outflow-1");
+        GateMailbox mailbox = gates.mailbox("outflow-1");
+
+        CompletableFuture<Void> first = mailbox.step(5);
+        List<CompletableFuture<Void>> coalesced = new ArrayList<>();
+        for(int i = 0; i < 3; i++)
+            coalesced.add(mailbox.step(5));
+        gates.complete("outflow-1", 0);
+        assertTrue(first.isDone());
+        for(CompletableFuture<Void> future: coalesced)
+            assertFalse(future.isDone());
+
+        // The steps of the users are added up: a single request to the final target
+        gates.complete("outflow-1", 1);
+        assertEquals(2, gates.requests("outflow-1").size());
+        assertEquals(70, (int) gates.requests("outflow-1").get(1));
+        for(CompletableFuture<Void> future: coalesced)
+            assertTrue(future.isDone() && !future.isCompletedExceptionally());
+    }
+
+    @Test
+    public void automaticStepsReplacedDuringPut() {
+        Gates gates = new Gates(50, "outflow-1");
+        GateMailbox mailbox = gates.mailbox("outflow-1");
+
+        mailbox.automaticStep(5);
+        for(int i = 0; i < 3; i++)
+            mailbox.automaticStep(5);
+        gates.complete("outflow-1", 0);
+        gates.complete("outflow-1", 1);
+
+        // No wind-up: one automatic step behind the one in flight
+        assertEquals(2, gates.requests("outflow-1").size());
+        assertEquals(55, (int) gates.requests("outflow-1").get(0));
+        assertEquals(60, (int) gates.requests("outflow-1").get(1));
+    }
+
+    @Test
+    public void setFollowedByStep() {
+        Gates gates = new Gates(50, "outflow-1");
+        GateMailbox mailbox = gates.mailbox("outflow-1");
+
+        mailbox.set(80);
+        mailbox.step(10);
+        mailbox.set(20);
+        mailbox.step(-5);
+        mailbox.automaticStep(-10);
+        gates.complete("outflow-1", 0);
+        assertEquals(5, (int) gates.requests("outflow-1").get(1));
+        gates.complete("outflow-1", 1);
+
+        // A set replaces the pending automatic step, the steps are clamped to 0-100
+        mailbox.automaticStep(10);
+        mailbox.set(100);
+        mailbox.step(20);
+        gates.complete("outflow-1", 2);
+        assertEquals(100, (int) gates.requests("outflow-1").get(3));
+        assertEquals(4, gates.requests("outflow-1").size());
+    }
+
+    @Test
+    public void failureToCoalescedCommands() throws InterruptedException {
+        Gates gates = new Gates(50, "outflow-1");
+        GateMailbox mailbox = gates.mailbox("outflow-1");
+
+        mailbox.set(10);
+        List<CompletableFuture<Void>> coalesced = new ArrayList<>();
+        coalesced.add(mailbox.step(5));
+        coalesced.add(mailbox.automaticStep(5));
+        coalesced.add(mailbox.set(30));
+        gates.complete("outflow-1", 0);
+
+        CoapException cause = new CoapException("Gate unreachable");
+        gates.fail("outflow-1", 1, cause);
+        for(CompletableFuture<Void> future: coalesced){
+            try {
+                future.get();
+                fail("Command completed after a failure");
+            } catch (ExecutionException ex) {
+                assertSame(cause, ex.getCause());
+            }
+        }
+
+        // The mailbox keeps serving the next commands
+        CompletableFuture<Void> next = mailbox.step(5);
+        gates.complete("outflow-1", 2);
+        assertEquals(35, (int) gates.requests("outflow-1").get(2));
+        assertTrue(next.isDone() && !next.isCompletedExceptionally());
+    }
+
+    @Test
+    public void gatesInParallel() {
+        Gates gates = new Gates(50, "outflow-1", "outflow-2");
+        GateMailbox first = gates.mailbox("outflow-1");
+        GateMailbox second = gates.mailbox("outflow-2");
+
+        first.set(10);
+        first.step(5);
+        second.set(90);
+        second.step(-5);
+
+        // A request in flight on a gate does not hold the other one
+        assertEquals(1, gates.requests("outflow-1").size());
+        assertEquals(1, gates.requests("outflow-2").size());
+        gates.complete("outflow-2", 0);
+        assertEquals(2, gates.requests("outflow-2").size());
+        assertEquals(85, (int) gates.requests("outflow-2").get(1));
+        assertEquals(1, gates.requests("outflow-1").size());
+
+        gates.complete("outflow-1", 0);
+        assertEquals(15, (int) gates.requests("outflow-1").get(1));
+    }
+}
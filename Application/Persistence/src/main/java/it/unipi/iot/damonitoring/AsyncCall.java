@@ -0,0 +1,79 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Execution of the storage operations on the bounded executor of a backend, for the asynchronous variants of
+ * {@link Storage}
+ */
+final class AsyncCall {
+    private static final long KEEP_ALIVE = 60;
+
+    interface Call<T> {
+        T call() throws PersistenceException;
+    }
+
+    private AsyncCall(){ }
+
+    /**
+     * Run an operation on the executor
+     * @return Future completed with the result of the operation, exceptionally with a PersistenceException if the
+     *         operation fails or the executor is saturated
+     */
+    static <T> CompletableFuture<T> submit(Executor executor, Call<T> call){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (PersistenceException | RuntimeException ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(new PersistenceException("Storage busy, operation rejected"));
+        }
+        return future;
+    }
+
+    /**
+     * Executor of daemon threads, started on demand and stopped when idle, with a bounded queue: the operations
+     * submitted when the queue is full are rejected
+     * @param name Prefix of the names of the threads
+     * @param threads Maximum number of operations run concurrently
+     * @param queueSize Maximum number of operations waiting for a thread
+     */
+    static ThreadPoolExecutor executor(String name, int threads, int queueSize){
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Let the operations already submitted complete, waiting at most the given time
+     */
+    static void shutdown(ThreadPoolExecutor executor, long timeout){
+        executor.shutdown();
+        try {
+            if(!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+                executor.shutdownNow();
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,27 +1,116 @@
 package it.unipi.iot.damonitoring;
 
+import it.unipi.iot.damonitoring.compression.GorillaDecoder;
 import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.entities.FlowRateLatest;
+import it.unipi.iot.damonitoring.entities.MeasurementBlock;
 import it.unipi.iot.damonitoring.entities.Resource;
 import it.unipi.iot.damonitoring.entities.WaterLevel;
+import it.unipi.iot.damonitoring.entities.WaterLevelLatest;
 import it.unipi.iot.damonitoring.exceptions.PersistenceException;
 
 import org.hibernate.HibernateException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.boot.MetadataSources;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
-public class DataManager {
+public class DataManager implements Storage {
+    private static final Logger logger = LoggerFactory.getLogger(DataManager.class);
+    private static final String BATCH_SIZE = "hibernate.jdbc.batch_size";
+    private static final String REGISTRY_FLUSH_PERIOD = "damonitoring.registry.flush_period";
+    private static final String REGISTRY_REFRESH_PERIOD = "damonitoring.registry.refresh_period";
+    private static final String BULK_BATCH_SIZE = "damonitoring.bulk.batch_size";
+    private static final int DEFAULT_BATCH_SIZE = 50;
+    private static final int DEFAULT_BULK_BATCH_SIZE = 1000;
+    private static final long DEFAULT_REGISTRY_FLUSH_PERIOD = 500;
+    private static final long DEFAULT_REGISTRY_REFRESH_PERIOD = 5000;
+    private static final String PARTITION_INTERVAL = "damonitoring.partition.interval";
+    private static final String PARTITION_RETENTION = "damonitoring.partition.retention";
+    private static final String PARTITION_AHEAD = "damonitoring.partition.ahead";
+    private static final String PARTITION_MAINTENANCE_PERIOD = "damonitoring.partition.maintenance_period";
+    private static final long DEFAULT_PARTITION_AHEAD = 3;
+    private static final long DEFAULT_PARTITION_MAINTENANCE_PERIOD = 3600000;
+    private static final String POOL_SIZE = "hibernate.c3p0.max_size";
+    private static final String ASYNC_QUEUE_SIZE = "damonitoring.async.queue_size";
+    private static final int DEFAULT_POOL_SIZE = 5;
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
+    private static final long ASYNC_DRAIN_TIMEOUT = 5000;
+    private static final String ARCHIVE_AGE = "damonitoring.archive.age";
+    private static final String ARCHIVE_BLOCK_SIZE = "damonitoring.archive.block_size";
+    private static final String ARCHIVE_MAINTENANCE_PERIOD = "damonitoring.archive.maintenance_period";
+    private static final int DEFAULT_ARCHIVE_BLOCK_SIZE = 3600;
+    private static final long DEFAULT_ARCHIVE_MAINTENANCE_PERIOD = 3600000;
+    private static final String FLOW_RATE_INSERT = "INSERT INTO flowRate (flowChannel, timestamp, value) " +
+            "VALUES (?, ?, ?)";
+    private static final String WATER_LEVEL_INSERT = "INSERT INTO waterLevel (timestamp, value) VALUES (?, ?)";
+    private static final String LATEST_MERGE = " ON DUPLICATE KEY UPDATE " +
+            "recordId = IF(VALUES(timestamp) >= timestamp, VALUES(recordId), recordId), " +
+            "value = IF(VALUES(timestamp) >= timestamp, VALUES(value), value), " +
+            "timestamp = GREATEST(timestamp, VALUES(timestamp))";
+    private static final String FLOW_RATE_LATEST_UPSERT = "INSERT INTO flowRateLatest (flowChannel, recordId, " +
+            "timestamp, value) VALUES (?, ?, ?, ?)" + LATEST_MERGE;
+    private static final String WATER_LEVEL_LATEST_UPSERT = "INSERT INTO waterLevelLatest (id, recordId, " +
+            "timestamp, value) VALUES (?, ?, ?, ?)" + LATEST_MERGE;
+    private static final String GATE = "gate";
+    private static final String ALARM = "alarm";
     private static DataManager instance;
     private final SessionFactory sessionFactory;
+    private final int bulkBatchSize;
+
+    /* Asynchronous operations, a thread per connection of the pool */
+    private final ThreadPoolExecutor asyncExecutor;
+
+    /* Resource registry */
+    private final RegistrySync registrySync;
+
+    /* Rollup tables */
+    private final RollupWriter rollupWriter;
+
+    /* Time partitioning and archive of the measurement tables */
+    private final PartitionManager partitionManager;
+    private final HistoryArchive historyArchive;
+    private final ScheduledExecutorService maintenanceExecutor;
 
     public static DataManager getInstance() throws PersistenceException {
+        return getInstance(Collections.emptyMap());
+    }
+
+    /**
+     * Open the data manager with settings overriding the ones of hibernate.cfg.xml (e.g. to disable the background
+     * maintenance in a benchmark). The settings are ignored if the data manager is already open.
+     */
+    static DataManager getInstance(Map<String, ?> settings) throws PersistenceException {
         try {
             if(instance == null || instance.sessionFactory.isClosed()){
-                instance = new DataManager();
+                instance = new DataManager(settings);
             }
         }
         catch (HibernateException ex){
@@ -33,6 +122,10 @@ public class DataManager {
     public static void close() throws PersistenceException{
         try {
             if(instance != null && instance.sessionFactory.isOpen()){
+                AsyncCall.shutdown(instance.asyncExecutor, ASYNC_DRAIN_TIMEOUT);
+                if(instance.maintenanceExecutor != null)
+                    instance.maintenanceExecutor.shutdownNow();
+                instance.registrySync.close();
                 instance.sessionFactory.close();
                 instance = null;
             }
@@ -42,19 +135,108 @@ public class DataManager {
         }
     }
 
-    private DataManager() {
+    private DataManager(Map<String, ?> settings) {
         sessionFactory = new MetadataSources(
                 new StandardServiceRegistryBuilder()
                     .configure()
+                    .applySettings(settings)
                     .build())
                 .buildMetadata()
                 .buildSessionFactory();
+
+        bulkBatchSize = (int) property(BULK_BATCH_SIZE, DEFAULT_BULK_BATCH_SIZE);
+        initLatest();
+        asyncExecutor = AsyncCall.executor("storage-async", (int) property(POOL_SIZE, DEFAULT_POOL_SIZE),
+                (int) property(ASYNC_QUEUE_SIZE, DEFAULT_ASYNC_QUEUE_SIZE));
+
+        // Load the registry, then keep the database and the registry of the other processes aligned in background
+        registrySync = new RegistrySync(sessionFactory, (int) property(BATCH_SIZE, DEFAULT_BATCH_SIZE),
+                property(REGISTRY_FLUSH_PERIOD, DEFAULT_REGISTRY_FLUSH_PERIOD),
+                property(REGISTRY_REFRESH_PERIOD, DEFAULT_REGISTRY_REFRESH_PERIOD));
+        rollupWriter = new RollupWriter(sessionFactory);
+
+        // Create the partitions in advance and drop the expired ones, the first run partitions the tables if needed
+        String interval = property(PARTITION_INTERVAL, "NONE").toUpperCase();
+        partitionManager = interval.equals("NONE") ? null : new PartitionManager(sessionFactory,
+                PartitionManager.Interval.valueOf(interval), (int) property(PARTITION_RETENTION, 0),
+                (int) property(PARTITION_AHEAD, DEFAULT_PARTITION_AHEAD));
+        long partitionPeriod = property(PARTITION_MAINTENANCE_PERIOD, DEFAULT_PARTITION_MAINTENANCE_PERIOD);
+
+        // Seal the measurements older than the archive age into compressed blocks
+        historyArchive = new HistoryArchive(sessionFactory,
+                (int) property(ARCHIVE_BLOCK_SIZE, DEFAULT_ARCHIVE_BLOCK_SIZE), bulkBatchSize);
+        long archiveAge = property(ARCHIVE_AGE, 0);
+        long archivePeriod = property(ARCHIVE_MAINTENANCE_PERIOD, DEFAULT_ARCHIVE_MAINTENANCE_PERIOD);
+
+        boolean partitioning = partitionManager != null && partitionPeriod > 0;
+        boolean archiving = archiveAge > 0 && archivePeriod > 0;
+        if(partitioning || archiving){
+            maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "storage-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if(partitioning){
+                maintenanceExecutor.scheduleWithFixedDelay(partitionManager::maintain, 0, partitionPeriod,
+                        TimeUnit.MILLISECONDS);
+            }
+            if(archiving){
+                maintenanceExecutor.scheduleWithFixedDelay(() -> historyArchive.archive(archiveAge), 0, archivePeriod,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        else maintenanceExecutor = null;
+    }
+
+    private long property(String name, long defaultValue){
+        Object value = sessionFactory.getProperties().get(name);
+        return (value == null) ? defaultValue : Long.parseLong(value.toString());
+    }
+
+    private String property(String name, String defaultValue){
+        Object value = sessionFactory.getProperties().get(name);
+        return (value == null) ? defaultValue : value.toString().trim();
+    }
+
+    /**
+     * Executor of the asynchronous operations: as many threads as the connections of the pool
+     * (hibernate.c3p0.max_size), at most damonitoring.async.queue_size operations waiting
+     */
+    public Executor getAsyncExecutor(){
+        return asyncExecutor;
+    }
+
+    /**
+     * Run the maintenance of the partitions of the measurement tables now: partition the tables if needed, create
+     * the partitions of the next periods and drop the ones older than the retention. The maintenance is also run
+     * periodically in background, errors are logged and retried on the next run.
+     */
+    public void maintainPartitions(){
+        if(partitionManager != null)
+            partitionManager.maintain();
+    }
+
+    /**
+     * Seal the measurements older than the given time into compressed blocks (delta of delta timestamps, XOR encoded
+     * values), a day of a series per transaction: the blocks are inserted and the measurements deleted together, so
+     * a range query reads each measurement exactly once. The archived measurements are still returned by
+     * streamFlowRate and streamWaterLevel, without record identifier.
+     * <p>
+     * Also run periodically in background if damonitoring.archive.age is set. A process at a time seals the history:
+     * the call returns immediately if another process holds the archive lock.
+     * @param before Measurements with timestamp before it are sealed
+     * @return Number of measurements sealed
+     * @throws PersistenceException In case of failure of the operation (the days already sealed are kept)
+     */
+    public long sealHistory(Date before) throws PersistenceException {
+        return historyArchive.seal(before);
     }
 
     private Object record(Object record) throws PersistenceException {
         try (Session session = sessionFactory.openSession()){
             session.beginTransaction();
             Object id = session.save(record);
+            updateLatest(session, Collections.singletonList(record));
             session.getTransaction().commit();
             return id;
         }
@@ -63,6 +245,219 @@ public class DataManager {
         }
     }
 
+    /**
+     * Fill the latest measurement tables from the measurement tables, if empty (e.g. on the first start)
+     */
+    private void initLatest() {
+        try (Session session = sessionFactory.openSession()){
+            session.beginTransaction();
+            if(session.createQuery("select count(*) from FlowRateLatest", Long.class).uniqueResult() == 0){
+                session.createNativeQuery("INSERT IGNORE INTO flowRateLatest (flowChannel, recordId, timestamp, " +
+                        "value) SELECT f.flowChannel, f.recordId, f.timestamp, f.value FROM flowRate f JOIN " +
+                        "(SELECT flowChannel, MAX(timestamp) AS latest FROM flowRate GROUP BY flowChannel) l " +
+                        "ON f.flowChannel = l.flowChannel AND f.timestamp = l.latest").executeUpdate();
+            }
+            if(session.get(WaterLevelLatest.class, WaterLevelLatest.SINGLETON) == null){
+                session.createNativeQuery("INSERT IGNORE INTO waterLevelLatest (id, recordId, timestamp, value) " +
+                        "SELECT :id, recordId, timestamp, value FROM waterLevel ORDER BY timestamp DESC LIMIT 1")
+                        .setParameter("id", WaterLevelLatest.SINGLETON)
+                        .executeUpdate();
+            }
+            session.getTransaction().commit();
+        }
+        catch (HibernateException | IllegalStateException ex){
+            logger.error("Latest measurements initialization: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Replace the latest measurements with the newer ones among the stored records, in the transaction of the insert
+     * @param records FlowRate and WaterLevel objects stored in the session
+     */
+    private static void updateLatest(Session session, Collection<?> records) {
+        // Newest measurement of each channel of the batch
+        Map<String, FlowRate> flowRates = new HashMap<>();
+        WaterLevel waterLevel = null;
+        for(Object record: records){
+            if(record instanceof FlowRate){
+                FlowRate flowRate = (FlowRate) record;
+                flowRates.merge(flowRate.getFlowChannel(), flowRate,
+                        (last, next) -> next.getTimestamp().before(last.getTimestamp()) ? last : next);
+            }
+            else if(record instanceof WaterLevel){
+                WaterLevel next = (WaterLevel) record;
+                if(waterLevel == null || !next.getTimestamp().before(waterLevel.getTimestamp()))
+                    waterLevel = next;
+            }
+        }
+
+        WaterLevel latestWaterLevel = waterLevel;
+        session.doWork(connection -> {
+            if(!flowRates.isEmpty()){
+                try(PreparedStatement statement = connection.prepareStatement(FLOW_RATE_LATEST_UPSERT)){
+                    for(FlowRate flowRate: flowRates.values()){
+                        statement.setString(1, flowRate.getFlowChannel());
+                        statement.setInt(2, flowRate.getRecordId());
+                        statement.setTimestamp(3, new Timestamp(flowRate.getTimestamp().getTime()));
+                        statement.setFloat(4, flowRate.getValue());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+            if(latestWaterLevel != null){
+                try(PreparedStatement statement = connection.prepareStatement(WATER_LEVEL_LATEST_UPSERT)){
+                    statement.setInt(1, WaterLevelLatest.SINGLETON);
+                    statement.setInt(2, latestWaterLevel.getRecordId());
+                    statement.setTimestamp(3, new Timestamp(latestWaterLevel.getTimestamp().getTime()));
+                    statement.setFloat(4, latestWaterLevel.getValue());
+                    statement.executeUpdate();
+                }
+            }
+        });
+    }
+
+    /**
+     * Store a batch of measurements in a single transaction, with JDBC batched inserts
+     * @param records FlowRate and WaterLevel objects to store, their record identifiers are set
+     * @throws PersistenceException In case of failure of the operation (no record of the batch is stored)
+     */
+    public void recordBatch(Collection<?> records) throws PersistenceException {
+        List<FlowRate> flowRates = new ArrayList<>(records.size());
+        List<WaterLevel> waterLevels = new ArrayList<>();
+        for(Object record: records){
+            if(record instanceof FlowRate)
+                flowRates.add((FlowRate) record);
+            else if(record instanceof WaterLevel)
+                waterLevels.add((WaterLevel) record);
+            else
+                throw new PersistenceException("Not a measurement: " + record, true);
+        }
+        recordBulk(flowRates, waterLevels);
+    }
+
+    /**
+     * Store flow rate measurements in a single transaction, with JDBC batched inserts: the driver rewrites each batch
+     * as a multi-row insert, so thousands of measurements take a few round trips
+     * @param flowRates FlowRate objects to store, their record identifiers are set
+     * @throws PersistenceException In case of failure of the operation (no measurement is stored)
+     */
+    public void recordFlowRates(Collection<FlowRate> flowRates) throws PersistenceException {
+        recordBulk(flowRates, Collections.emptyList());
+    }
+
+    /**
+     * Store water level measurements in a single transaction, with JDBC batched inserts
+     * @param waterLevels WaterLevel objects to store, their record identifiers are set
+     * @throws PersistenceException In case of failure of the operation (no measurement is stored)
+     */
+    public void recordWaterLevels(Collection<WaterLevel> waterLevels) throws PersistenceException {
+        recordBulk(Collections.emptyList(), waterLevels);
+    }
+
+    /**
+     * Insert the measurements bypassing the persistence context: the identifiers are still generated by the database
+     * (AUTO_INCREMENT), read back once per JDBC batch
+     */
+    private void recordBulk(Collection<FlowRate> flowRates, Collection<WaterLevel> waterLevels)
+            throws PersistenceException {
+        try (Session session = sessionFactory.openSession()){
+            session.beginTransaction();
+            session.doWork(connection -> {
+                if(!flowRates.isEmpty()){
+                    try(PreparedStatement statement = connection.prepareStatement(FLOW_RATE_INSERT,
+                            Statement.RETURN_GENERATED_KEYS)){
+                        List<FlowRate> pending = new ArrayList<>(Math.min(flowRates.size(), bulkBatchSize));
+                        for(FlowRate flowRate: flowRates){
+                            if(flowRate.getTimestamp() == null)
+                                flowRate.setTimestamp(new Date());
+                            statement.setString(1, flowRate.getFlowChannel());
+                            statement.setTimestamp(2, new Timestamp(flowRate.getTimestamp().getTime()));
+                            statement.setFloat(3, flowRate.getValue());
+                            statement.addBatch();
+                            pending.add(flowRate);
+                            if(pending.size() == bulkBatchSize)
+                                executeBatch(statement, pending, FlowRate::setRecordId);
+                        }
+                        executeBatch(statement, pending, FlowRate::setRecordId);
+                    }
+                }
+                if(!waterLevels.isEmpty()){
+                    try(PreparedStatement statement = connection.prepareStatement(WATER_LEVEL_INSERT,
+                            Statement.RETURN_GENERATED_KEYS)){
+                        List<WaterLevel> pending = new ArrayList<>(Math.min(waterLevels.size(), bulkBatchSize));
+                        for(WaterLevel waterLevel: waterLevels){
+                            if(waterLevel.getTimestamp() == null)
+                                waterLevel.setTimestamp(new Date());
+                            statement.setTimestamp(1, new Timestamp(waterLevel.getTimestamp().getTime()));
+                            statement.setFloat(2, waterLevel.getValue());
+                            statement.addBatch();
+                            pending.add(waterLevel);
+                            if(pending.size() == bulkBatchSize)
+                                executeBatch(statement, pending, WaterLevel::setRecordId);
+                        }
+                        executeBatch(statement, pending, WaterLevel::setRecordId);
+                    }
+                }
+            });
+            List<Object> records = new ArrayList<>(flowRates.size() + waterLevels.size());
+            records.addAll(flowRates);
+            records.addAll(waterLevels);
+            updateLatest(session, records);
+            session.getTransaction().commit();
+        }
+        catch (HibernateException | IllegalStateException ex){
+            throw new PersistenceException(ex.getMessage(), permanent(ex));
+        }
+    }
+
+    /**
+     * A failure that a retry cannot fix: invalid data (SQLState class 22), constraint violation (23) or a statement
+     * rejected by the database (42). Connection failures, timeouts and deadlocks are transient.
+     */
+    private static boolean permanent(Throwable ex){
+        for(Throwable cause = ex; cause != null; cause = cause.getCause()){
+            if(cause instanceof SQLException){
+                String state = ((SQLException) cause).getSQLState();
+                if(state != null && (state.startsWith("22") || state.startsWith("23") || state.startsWith("42")))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Send the pending JDBC batch and assign the generated identifiers to its records
+     */
+    private static <T> void executeBatch(PreparedStatement statement, List<T> pending, BiConsumer<T, Integer> setId)
+            throws SQLException {
+        if(pending.isEmpty())
+            return;
+        statement.executeBatch();
+        try(ResultSet keys = statement.getGeneratedKeys()){
+            for(T record: pending){
+                if(!keys.next())
+                    throw new SQLException("Missing generated key");
+                setId.accept(record, keys.getInt(1));
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Merge partial aggregates into the rollup tables in a single transaction: the aggregates of a bucket already
+     * stored are combined with the new ones (minimum, maximum, weighted average, samples and most recent value). The
+     * sequence number of the source is updated in the same transaction, a merge not newer than the last committed one
+     * is skipped.
+     * @param rollups FlowRateRollup and WaterLevelRollup objects holding the aggregates of the new measurements
+     * @param source Identifier of the aggregation issuing the merges
+     * @param sequence Sequence number of the merge, increasing for each source
+     * @throws PersistenceException In case of failure of the operation (no aggregate is stored)
+     */
+    public void recordRollups(Collection<?> rollups, String source, long sequence) throws PersistenceException {
+        rollupWriter.merge(rollups, source, sequence);
+    }
+
     /**
      * Store a new flow rate measurement
      * @param flowChannel Channel identifier
@@ -84,17 +479,6 @@ public class DataManager {
         return flowRate;
     }
 
-    /**
-     * Store a new flow rate measurement of timestamp roughly now
-     * @param flowChannel Channel identifier
-     * @param value Value of measurement
-     * @return FlowRate object stored in the database
-     * @throws PersistenceException In case of failure of the operation
-     */
-    public FlowRate recordFlowRate(String flowChannel, Float value) throws PersistenceException {
-        return recordFlowRate(flowChannel, new Date(), value);
-    }
-
     /**
      * Store a new water level measurement
      * @param value Value of measurement
@@ -114,16 +498,6 @@ public class DataManager {
         return waterLevel;
     }
 
-    /**
-     * Store a new water level measurement of timestamp roughly now
-     * @param value Value of measurement
-     * @return WaterLevel object stored in the database
-     * @throws PersistenceException In case of failure of the operation
-     */
-    public WaterLevel recordWaterLevel(Float value) throws PersistenceException{
-        return recordWaterLevel(value, new Date());
-    }
-
     /**
      * Load the last flow rate measurement stored in the database of the given channel
      * @param flowChannel Channel used to filter the data
@@ -132,11 +506,8 @@ public class DataManager {
      */
     public FlowRate retrieveFlowRate(String flowChannel) throws PersistenceException {
         try(Session session = sessionFactory.openSession()){
-            return (FlowRate) session
-                    .createQuery("from FlowRate where flowChannel = :flowChannel order by timestamp desc")
-                    .setParameter("flowChannel", flowChannel)
-                    .setMaxResults(1)
-                    .uniqueResult();
+            FlowRateLatest latest = session.get(FlowRateLatest.class, flowChannel);
+            return (latest == null) ? null : latest.toFlowRate();
         }
         catch (HibernateException | IllegalStateException ex){
             throw new PersistenceException(ex.getMessage());
@@ -151,8 +522,7 @@ public class DataManager {
     public Float retrieveOutFlowRate() throws PersistenceException{
         try(Session session = sessionFactory.openSession()){
             return session.createQuery(
-                    "select sum(value) from FlowRate where recordId in (select max(recordId) from FlowRate where " +
-                            "flowChannel != 'inflow' group by flowChannel)",
+                    "select sum(value) from FlowRateLatest where flowChannel != 'inflow'",
                             Double.class).uniqueResult().floatValue();
         }
         catch (HibernateException | IllegalStateException ex){
@@ -167,10 +537,8 @@ public class DataManager {
      */
     public WaterLevel retrieveWaterLevel() throws PersistenceException{
         try(Session session = sessionFactory.openSession()){
-            return (WaterLevel) session
-                    .createQuery("from WaterLevel order by timestamp desc")
-                    .setMaxResults(1)
-                    .uniqueResult();
+            WaterLevelLatest latest = session.get(WaterLevelLatest.class, WaterLevelLatest.SINGLETON);
+            return (latest == null) ? null : latest.toWaterLevel();
         }
         catch (HibernateException | IllegalStateException ex){
             throw new PersistenceException(ex.getMessage());
@@ -178,66 +546,221 @@ public class DataManager {
     }
 
     /**
-     * Add the list of resources in the central registry
-     * @param resources List of resources to register
+     * Stream the flow rate measurements of a channel in a time range, averaged over steps of the given width. The
+     * archived measurements (see {@link #sealHistory(Date)}) are decoded first, without record identifier
+     * @param flowChannel Channel used to filter the data
+     * @param from Start of the range (inclusive)
+     * @param to End of the range (exclusive)
+     * @param step Width of the steps in milliseconds (0 to stream the measurements as stored): a measurement is
+     *             produced for each step with data, timestamp at the start of the step and average value
+     * @param consumer Receiver of the measurements, called while the rows are read
      * @throws PersistenceException In case of failure of the operation
      */
-    public void addResources(List<Resource> resources) throws PersistenceException {
-        try(Session session = sessionFactory.openSession()){
-            session.beginTransaction();
-            for(Resource resource: resources){
-                session.saveOrUpdate(resource);
-            }
-            session.getTransaction().commit();
-        }
-        catch (HibernateException | IllegalStateException ex){
-            throw new PersistenceException(ex.getMessage());
-        }
+    public void streamFlowRate(String flowChannel, Date from, Date to, long step, Consumer<FlowRate> consumer)
+            throws PersistenceException {
+        BiFunction<Date, Float, FlowRate> factory = (timestamp, value) -> {
+            FlowRate flowRate = new FlowRate();
+            flowRate.setFlowChannel(flowChannel);
+            flowRate.setTimestamp(timestamp);
+            flowRate.setValue(value);
+            return flowRate;
+        };
+        stream("from FlowRate where flowChannel = :flowChannel and timestamp >= :from and timestamp < :to " +
+                        "order by timestamp", FlowRate.class, HistoryArchive.FLOW_RATE_SERIES + flowChannel,
+                flowChannel, from, to, factory,
+                new Downsampler<>(step, consumer, FlowRate::getTimestamp, FlowRate::getValue, factory));
     }
 
     /**
-     * Retrieve the URI of the requested resource
-     * @param resName Resource name used to identify the target resource
-     * @return URI of resource
+     * Stream the water level measurements in a time range, averaged over steps of the given width. The archived
+     * measurements are decoded first, without record identifier
+     * @param from Start of the range (inclusive)
+     * @param to End of the range (exclusive)
+     * @param step Width of the steps in milliseconds (0 to stream the measurements as stored): a measurement is
+     *             produced for each step with data, timestamp at the start of the step and average value
+     * @param consumer Receiver of the measurements, called while the rows are read
      * @throws PersistenceException In case of failure of the operation
      */
-    public Resource lookupResource(String resName) throws PersistenceException{
-        try(Session session = sessionFactory.openSession()){
-            return session.get(Resource.class, resName);
-        }
-        catch (HibernateException | IllegalStateException ex){
-            throw new PersistenceException(ex.getMessage());
-        }
+    public void streamWaterLevel(Date from, Date to, long step, Consumer<WaterLevel> consumer)
+            throws PersistenceException {
+        BiFunction<Date, Float, WaterLevel> factory = (timestamp, value) -> {
+            WaterLevel waterLevel = new WaterLevel();
+            waterLevel.setTimestamp(timestamp);
+            waterLevel.setValue(value);
+            return waterLevel;
+        };
+        stream("from WaterLevel where timestamp >= :from and timestamp < :to order by timestamp", WaterLevel.class,
+                HistoryArchive.WATER_LEVEL_SERIES, null, from, to, factory,
+                new Downsampler<>(step, consumer, WaterLevel::getTimestamp, WaterLevel::getValue, factory));
     }
 
     /**
-     * Load all "gate" resource available in the database
-     * @return List of "gate" resources
+     * Load the flow rate measurements of a channel in a time range into columns: archived blocks are decoded straight
+     * into the columns, the rows are read with JDBC (no entity, no persistence context)
+     * @param flowChannel Channel used to filter the data
+     * @param from Start of the range (inclusive)
+     * @param to End of the range (exclusive)
+     * @return Timestamps and values, archived measurements first, then the stored ones in timestamp order
      * @throws PersistenceException In case of failure of the operation
      */
-    public List<Resource> gateResources() throws PersistenceException{
-        try(Session session = sessionFactory.openSession()){
-            return session.createQuery("from Resource where type = 'gate'", Resource.class).list();
+    public MeasurementColumns loadFlowRate(String flowChannel, Date from, Date to) throws PersistenceException {
+        return load(HistoryArchive.FLOW_RATE_SERIES + flowChannel, "flowRate", flowChannel, from.getTime(),
+                to.getTime());
+    }
+
+    /**
+     * Load the water level measurements in a time range into columns
+     * @param from Start of the range (inclusive)
+     * @param to End of the range (exclusive)
+     * @return Timestamps and values, archived measurements first, then the stored ones in timestamp order
+     * @throws PersistenceException In case of failure of the operation
+     */
+    public MeasurementColumns loadWaterLevel(Date from, Date to) throws PersistenceException {
+        return load(HistoryArchive.WATER_LEVEL_SERIES, "waterLevel", null, from.getTime(), to.getTime());
+    }
+
+    private MeasurementColumns load(String series, String table, String flowChannel, long from, long to)
+            throws PersistenceException {
+        MeasurementColumns columns = new MeasurementColumns();
+        try (Session session = sessionFactory.openSession()){
+            session.doWork(connection -> {
+                try(PreparedStatement statement = connection.prepareStatement("SELECT data FROM measurementBlock " +
+                        "WHERE series = ? AND endTime >= ? AND startTime < ? ORDER BY startTime")){
+                    statement.setString(1, series);
+                    statement.setTimestamp(2, new Timestamp(from));
+                    statement.setTimestamp(3, new Timestamp(to));
+                    statement.setFetchSize(Integer.MIN_VALUE);
+                    try(ResultSet result = statement.executeQuery()){
+                        while (result.next()){
+                            GorillaDecoder decoder = new GorillaDecoder(result.getBytes(1));
+                            while (decoder.next()){
+                                long timestamp = decoder.getTimestamp();
+                                if(timestamp >= from && timestamp < to)
+                                    columns.add(timestamp, decoder.getValue());
+                            }
+                        }
+                    }
+                }
+
+                String filter = (flowChannel == null) ? "" : "flowChannel = ? AND ";
+                try(PreparedStatement statement = connection.prepareStatement("SELECT timestamp, value FROM " +
+                        table + " WHERE " + filter + "timestamp >= ? AND timestamp < ? ORDER BY timestamp")){
+                    int index = 1;
+                    if(flowChannel != null)
+                        statement.setString(index++, flowChannel);
+                    statement.setTimestamp(index++, new Timestamp(from));
+                    statement.setTimestamp(index, new Timestamp(to));
+                    statement.setFetchSize(Integer.MIN_VALUE);
+                    try(ResultSet result = statement.executeQuery()){
+                        while (result.next())
+                            columns.add(result.getTimestamp(1).getTime(), result.getFloat(2));
+                    }
+                }
+            });
         }
         catch (HibernateException | IllegalStateException ex){
             throw new PersistenceException(ex.getMessage());
         }
+        return columns;
     }
 
     /**
-     * Load all "alarm" resource available in the database
-     * @return List of "alarm" resources
-     * @throws PersistenceException In case of failure of the operation
+     * Run a range query on a stateless session with a forward-only cursor: the driver streams the rows (fetch size
+     * Integer.MIN_VALUE for MySQL) and no entity is retained by the session. The archived blocks of the series
+     * overlapping the range are streamed and decoded first, a block at a time.
      */
-    public List<Resource> alarmResources() throws PersistenceException{
-        try(Session session = sessionFactory.openSession()){
-            return session.createQuery("from Resource where type = 'alarm'", Resource.class).list();
+    private <T> void stream(String query, Class<T> type, String series, String flowChannel, Date from, Date to,
+                            BiFunction<Date, Float, T> factory, Downsampler<T> downsampler)
+            throws PersistenceException {
+        try (StatelessSession session = sessionFactory.openStatelessSession()){
+            Query<MeasurementBlock> blockQuery = session.createQuery("from MeasurementBlock where series = :series " +
+                            "and endTime >= :from and startTime < :to order by startTime", MeasurementBlock.class)
+                    .setParameter("series", series)
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .setFetchSize(Integer.MIN_VALUE)
+                    .setReadOnly(true);
+            try (ScrollableResults blocks = blockQuery.scroll(ScrollMode.FORWARD_ONLY)){
+                while (blocks.next()){
+                    GorillaDecoder decoder = new GorillaDecoder(((MeasurementBlock) blocks.get(0)).getData());
+                    while (decoder.next()){
+                        long timestamp = decoder.getTimestamp();
+                        if(timestamp >= from.getTime() && timestamp < to.getTime())
+                            downsampler.accept(factory.apply(new Date(timestamp), decoder.getValue()));
+                    }
+                }
+            }
+
+            Query<T> rangeQuery = session.createQuery(query, type)
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .setFetchSize(Integer.MIN_VALUE)
+                    .setReadOnly(true);
+            if(flowChannel != null)
+                rangeQuery.setParameter("flowChannel", flowChannel);
+            try (ScrollableResults results = rangeQuery.scroll(ScrollMode.FORWARD_ONLY)){
+                while (results.next())
+                    downsampler.accept(type.cast(results.get(0)));
+            }
+            downsampler.flush();
         }
         catch (HibernateException | IllegalStateException ex){
             throw new PersistenceException(ex.getMessage());
         }
     }
 
+    /**
+     * Add the list of resources in the central registry, waiting for the database to be updated
+     * @param resources List of resources to register
+     * @throws PersistenceException In case of failure of the operation
+     */
+    public void addResources(List<Resource> resources) throws PersistenceException {
+        registrySync.add(resources);
+    }
+
+    /**
+     * Add the list of resources in the central registry. The in-memory registry is updated immediately, the
+     * database in background with a batched upsert, coalescing repeated registrations of the same resource.
+     * @param resources List of resources to register
+     * @throws PersistenceException If a resource has no name
+     */
+    public void registerResources(List<Resource> resources) throws PersistenceException {
+        registrySync.register(resources);
+    }
+
+    /**
+     * In-memory registry, loaded from the database at startup and kept up to date by the registrations
+     * @return Registry of resources
+     */
+    public ResourceRegistry getResourceRegistry(){
+        return registrySync.getRegistry();
+    }
+
+    /**
+     * Retrieve the URI of the requested resource
+     * @param resName Resource name used to identify the target resource
+     * @return URI of resource
+     */
+    public Resource lookupResource(String resName) {
+        return registrySync.getRegistry().lookup(resName);
+    }
+
+    /**
+     * Load all "gate" resource available in the registry
+     * @return List of "gate" resources
+     */
+    public List<Resource> gateResources() {
+        return registrySync.getRegistry().byType(GATE);
+    }
+
+    /**
+     * Load all "alarm" resource available in the registry
+     * @return List of "alarm" resources
+     */
+    public List<Resource> alarmResources() {
+        return registrySync.getRegistry().byType(ALARM);
+    }
+
     /**
      * Set the value of the specified resource
      * @param resName Resource name used to identify the target resource
@@ -245,37 +768,20 @@ public class DataManager {
      * @throws PersistenceException In case of failure of the operation
      */
     public void setResourceValue(String resName, Integer value) throws PersistenceException {
-        try(Session session = sessionFactory.openSession()){
-            session.beginTransaction();
-            session.createQuery("UPDATE Resource r SET r.value = :value WHERE r.name = :resName")
-                    .setParameter("value", value)
-                    .setParameter("resName", resName)
-                    .executeUpdate();
-            session.getTransaction().commit();
-
-        }
-        catch (HibernateException | IllegalStateException ex){
-            ex.printStackTrace();
-            throw new PersistenceException(ex.getMessage());
-        }
+        registrySync.setValue(resName, value);
     }
 
     /**
-     * Retrieve the last value of the resource stored in the database, might be not synchronized with the actual
+     * Retrieve the last value of the resource stored in the registry, might be not synchronized with the actual
      * value of the resource
      * @param resName Resource name used to identify the target resource
      * @return Value of the resource
-     * @throws PersistenceException In case of failure of the operation
+     * @throws PersistenceException If the resource is not registered
      */
     public Integer getResourceValue(String resName) throws PersistenceException {
-        try(Session session = sessionFactory.openSession()){
-            return session.get(Resource.class, resName).getValue();
-        }
-        catch (NullPointerException ex){
+        Resource resource = registrySync.getRegistry().lookup(resName);
+        if(resource == null)
             throw new PersistenceException("Resource unavailable");
-        }
-        catch (HibernateException | IllegalStateException ex){
-            throw new PersistenceException(ex.getMessage());
-        }
+        return resource.getValue();
     }
 }
@@ -0,0 +1,51 @@
+package it.unipi.iot.damonitoring;
+
+import java.util.Date;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Average of the measurements of a stream over consecutive steps, pass-through if the step is 0
+ */
+final class Downsampler<T> implements Consumer<T> {
+    private final long step;
+    private final Consumer<T> consumer;
+    private final Function<T, Date> timestamp;
+    private final Function<T, Float> value;
+    private final BiFunction<Date, Float, T> factory;
+    private long bucket = Long.MIN_VALUE;
+    private double sum;
+    private int samples;
+
+    Downsampler(long step, Consumer<T> consumer, Function<T, Date> timestamp, Function<T, Float> value,
+                BiFunction<Date, Float, T> factory){
+        this.step = step;
+        this.consumer = consumer;
+        this.timestamp = timestamp;
+        this.value = value;
+        this.factory = factory;
+    }
+
+    @Override
+    public void accept(T record) {
+        if(step <= 0){
+            consumer.accept(record);
+            return;
+        }
+        long recordBucket = Math.floorDiv(timestamp.apply(record).getTime(), step) * step;
+        if(recordBucket != bucket){
+            flush();
+            bucket = recordBucket;
+        }
+        sum += value.apply(record);
+        samples++;
+    }
+
+    void flush(){
+        if(samples > 0)
+            consumer.accept(factory.apply(new Date(bucket), (float) (sum / samples)));
+        sum = 0;
+        samples = 0;
+    }
+}
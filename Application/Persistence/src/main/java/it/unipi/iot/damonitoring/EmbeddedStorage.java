@@ -0,0 +1,537 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.entities.Resource;
+import it.unipi.iot.damonitoring.entities.WaterLevel;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Embedded storage for the installations without a database server. Each channel is an append-only {@link Series}
+ * in its own directory (flow rate channels in "flowRate-&lt;channel&gt;", the water level in "waterLevel"), the
+ * resource registry is a small file rewritten on each change.
+ * <p>
+ * The Collector and the Controller can share the same directory: a single process (the first one writing
+ * measurements) appends to the series, all of them read. Registry changes are serialized by a file lock and the
+ * other processes reload the registry periodically. Rollups are not kept: the range queries with a step aggregate
+ * the measurements on read.
+ */
+public class EmbeddedStorage implements Storage {
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedStorage.class);
+    private static final String FLOW_RATE = "flowRate-";
+    private static final String WATER_LEVEL = "waterLevel";
+    private static final String INFLOW = "inflow";
+    private static final String RESOURCES = "resources";
+    private static final String RESOURCES_LOCK = "resources.lock";
+    private static final String WRITER_LOCK = "writer.lock";
+    private static final String GATE = "gate";
+    private static final String ALARM = "alarm";
+    private static final int ASYNC_QUEUE_SIZE = 1000;
+    private static final long ASYNC_DRAIN_TIMEOUT = 5000;
+
+    /* Private fields */
+    private final Path directory;
+    private final int blockSize;
+    private final int segmentBlocks;
+    private final Map<String, Series> series = new ConcurrentHashMap<>();
+    private final ResourceRegistry registry = new ResourceRegistry();
+    private final ScheduledExecutorService registryExecutor;
+    private final ThreadPoolExecutor asyncExecutor = AsyncCall.executor("storage-async",
+            Runtime.getRuntime().availableProcessors(), ASYNC_QUEUE_SIZE);
+    private FileChannel writerLockChannel;
+    private FileTime resourcesModified;
+
+    /**
+     * Open (or create) an embedded storage
+     * @param directory Directory of the storage files
+     * @param blockSize Number of measurements of a block of the time index
+     * @param segmentBlocks Number of blocks of a segment file
+     * @param refreshPeriod Period in milliseconds of the reload of the registry changed by the other processes
+     * @throws IOException If the storage files cannot be accessed
+     */
+    public EmbeddedStorage(Path directory, int blockSize, int segmentBlocks, long refreshPeriod) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.blockSize = blockSize;
+        this.segmentBlocks = segmentBlocks;
+
+        refreshResources();
+        registryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "resource-registry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if(refreshPeriod > 0){
+            registryExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    refreshResources();
+                } catch (IOException | UncheckedIOException ex) {
+                    logger.warn("Registry refresh: {}", ex.getMessage());
+                }
+            }, refreshPeriod, refreshPeriod, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Synchronize the series on disk and release the files
+     */
+    public void close() throws PersistenceException {
+        // Outside of the lock, the pending operations may need it
+        AsyncCall.shutdown(asyncExecutor, ASYNC_DRAIN_TIMEOUT);
+        synchronized (this){
+            registryExecutor.shutdownNow();
+            try {
+                for(Series series: series.values())
+                    series.close();
+                if(writerLockChannel != null)
+                    writerLockChannel.close();
+            } catch (IOException ex) {
+                throw new PersistenceException(ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Executor of the asynchronous operations, a thread per processor
+     */
+    @Override
+    public Executor getAsyncExecutor(){
+        return asyncExecutor;
+    }
+
+    /* Measurements */
+
+    /**
+     * Store a batch of measurements, appended series by series
+     * @param records FlowRate and WaterLevel objects to store, their record identifiers are set
+     * @throws PersistenceException In case of failure of the operation
+     */
+    @Override
+    public void recordBatch(Collection<?> records) throws PersistenceException {
+        List<FlowRate> flowRates = new ArrayList<>(records.size());
+        List<WaterLevel> waterLevels = new ArrayList<>();
+        for(Object record: records){
+            if(record instanceof FlowRate)
+                flowRates.add((FlowRate) record);
+            else if(record instanceof WaterLevel)
+                waterLevels.add((WaterLevel) record);
+            else
+                throw new PersistenceException("Not a measurement: " + record, true);
+        }
+        recordFlowRates(flowRates);
+        recordWaterLevels(waterLevels);
+    }
+
+    @Override
+    public void recordFlowRates(Collection<FlowRate> flowRates) throws PersistenceException {
+        Map<String, List<FlowRate>> channels = new LinkedHashMap<>();
+        for(FlowRate flowRate: flowRates)
+            channels.computeIfAbsent(flowRate.getFlowChannel(), channel -> new ArrayList<>()).add(flowRate);
+        for(Map.Entry<String, List<FlowRate>> channel: channels.entrySet()){
+            List<FlowRate> records = channel.getValue();
+            long[] timestamps = new long[records.size()];
+            float[] values = new float[records.size()];
+            for(int i = 0; i < records.size(); i++){
+                FlowRate flowRate = records.get(i);
+                if(flowRate.getTimestamp() == null)
+                    flowRate.setTimestamp(new Date());
+                timestamps[i] = flowRate.getTimestamp().getTime();
+                values[i] = flowRate.getValue();
+            }
+            long first = append(flowRateSeries(channel.getKey()), timestamps, values);
+            for(int i = 0; i < records.size(); i++)
+                records.get(i).setRecordId((int) (first + i));
+        }
+    }
+
+    @Override
+    public void recordWaterLevels(Collection<WaterLevel> waterLevels) throws PersistenceException {
+        if(waterLevels.isEmpty())
+            return;
+        List<WaterLevel> records = new ArrayList<>(waterLevels);
+        long[] timestamps = new long[records.size()];
+        float[] values = new float[records.size()];
+        for(int i = 0; i < records.size(); i++){
+            WaterLevel waterLevel = records.get(i);
+            if(waterLevel.getTimestamp() == null)
+                waterLevel.setTimestamp(new Date());
+            timestamps[i] = waterLevel.getTimestamp().getTime();
+            values[i] = waterLevel.getValue();
+        }
+        long first = append(series(WATER_LEVEL), timestamps, values);
+        for(int i = 0; i < records.size(); i++)
+            records.get(i).setRecordId((int) (first + i));
+    }
+
+    /**
+     * Rollups are not kept by the embedded storage, the aggregates are dropped
+     */
+    @Override
+    public void recordRollups(Collection<?> rollups, String source, long sequence) {
+    }
+
+    @Override
+    public FlowRate recordFlowRate(String flowChannel, Date timestamp, Float value) throws PersistenceException {
+        FlowRate flowRate = new FlowRate();
+        flowRate.setFlowChannel(flowChannel);
+        flowRate.setValue(value);
+        flowRate.setTimestamp((timestamp == null) ? new Date() : timestamp);
+        recordFlowRates(Collections.singletonList(flowRate));
+        return flowRate;
+    }
+
+    @Override
+    public WaterLevel recordWaterLevel(Float value, Date timestamp) throws PersistenceException {
+        WaterLevel waterLevel = new WaterLevel();
+        waterLevel.setValue(value);
+        waterLevel.setTimestamp((timestamp == null) ? new Date() : timestamp);
+        recordWaterLevels(Collections.singletonList(waterLevel));
+        return waterLevel;
+    }
+
+    @Override
+    public FlowRate retrieveFlowRate(String flowChannel) throws PersistenceException {
+        FlowRate[] last = new FlowRate[1];
+        try {
+            flowRateSeries(flowChannel).latest((id, timestamp, value) ->
+                    last[0] = flowRate((int) id, flowChannel, timestamp, value));
+        } catch (IOException ex) {
+            throw new PersistenceException(ex.getMessage());
+        }
+        return last[0];
+    }
+
+    @Override
+    public Float retrieveOutFlowRate() throws PersistenceException {
+        float[] sum = new float[1];
+        try(DirectoryStream<Path> channels = Files.newDirectoryStream(directory, FLOW_RATE + "*")){
+            for(Path path: channels){
+                String channel = URLDecoder.decode(path.getFileName().toString().substring(FLOW_RATE.length()),
+                        "UTF-8");
+                if(!channel.equals(INFLOW))
+                    flowRateSeries(channel).latest((id, timestamp, value) -> sum[0] += value);
+            }
+        } catch (IOException ex) {
+            throw new PersistenceException(ex.getMessage());
+        }
+        return sum[0];
+    }
+
+    @Override
+    public WaterLevel retrieveWaterLevel() throws PersistenceException {
+        WaterLevel[] last = new WaterLevel[1];
+        try {
+            series(WATER_LEVEL).latest((id, timestamp, value) -> last[0] = waterLevel((int) id, timestamp, value));
+        } catch (IOException ex) {
+            throw new PersistenceException(ex.getMessage());
+        }
+        return last[0];
+    }
+
+    /**
+     * Stream the flow rate measurements of a channel in a time range, in append order (timestamp order, unless
+     * measurements are stored late): only the blocks of the time index overlapping the range are read
+     */
+    @Override
+    public void streamFlowRate(String flowChannel, Date from, Date to, long step, Consumer<FlowRate> consumer)
+            throws PersistenceException {
+        Downsampler<FlowRate> downsampler = new Downsampler<>(step, consumer, FlowRate::getTimestamp,
+                FlowRate::getValue, (timestamp, value) -> flowRate(null, flowChannel, timestamp.getTime(), value));
+        try {
+            flowRateSeries(flowChannel).range(from.getTime(), to.getTime(), (id, timestamp, value) ->
+                    downsampler.accept(flowRate((int) id, flowChannel, timestamp, value)));
+        } catch (IOException ex) {
+            throw new PersistenceException(ex.getMessage());
+        }
+        downsampler.flush();
+    }
+
+    /**
+     * Stream the water level measurements in a time range, in append order
+     */
+    @Override
+    public void streamWaterLevel(Date from, Date to, long step, Consumer<WaterLevel> consumer)
+            throws PersistenceException {
+        Downsampler<WaterLevel> downsampler = new Downsampler<>(step, consumer, WaterLevel::getTimestamp,
+                WaterLevel::getValue, (timestamp, value) -> waterLevel(null, timestamp.getTime(), value));
+        try {
+            series(WATER_LEVEL).range(from.getTime(), to.getTime(), (id, timestamp, value) ->
+                    downsampler.accept(waterLevel((int) id, timestamp, value)));
+        } catch (IOException ex) {
+            throw new PersistenceException(ex.getMessage());
+        }
+        downsampler.flush();
+    }
+
+    /**
+     * Load the flow rate measurements of a channel in a time range into columns, straight from the series files
+     */
+    @Override
+    public MeasurementColumns loadFlowRate(String flowChannel, Date from, Date to) throws PersistenceException {
+        return load(flowRateSeries(flowChannel), from, to);
+    }
+
+    /**
+     * Load the water level measurements in a time range into columns, straight from the series files
+     */
+    @Override
+    public MeasurementColumns loadWaterLevel(Date from, Date to) throws PersistenceException {
+        return load(series(WATER_LEVEL), from, to);
+    }
+
+    private static MeasurementColumns load(Series series, Date from, Date to) throws PersistenceException {
+        MeasurementColumns columns = new MeasurementColumns();
+        try {
+            series.range(from.getTime(), to.getTime(), (id, timestamp, value) -> columns.add(timestamp, value));
+        } catch (IOException ex) {
+            throw new PersistenceException(ex.getMessage());
+        }
+        return columns;
+    }
+
+    /* Resource registry */
+
+    @Override
+    public void addResources(List<Resource> resources) throws PersistenceException {
+        registerResources(resources);
+    }
+
+    /**
+     * Add the list of resources in the registry, the registry file is updated before returning
+     * @param resources List of resources to register
+     * @throws PersistenceException If a resource has no name or the registry file cannot be written
+     */
+    @Override
+    public void registerResources(List<Resource> resources) throws PersistenceException {
+        for(Resource resource: resources){
+            if(resource.getName() == null)
+                throw new PersistenceException("Resource without name");
+        }
+        updateResources(stored -> {
+            for(Resource resource: resources)
+                stored.put(resource.getName(), resource);
+            return true;
+        });
+    }
+
+    @Override
+    public ResourceRegistry getResourceRegistry() {
+        return registry;
+    }
+
+    @Override
+    public Resource lookupResource(String resName) {
+        return registry.lookup(resName);
+    }
+
+    @Override
+    public List<Resource> gateResources() {
+        return registry.byType(GATE);
+    }
+
+    @Override
+    public List<Resource> alarmResources() {
+        return registry.byType(ALARM);
+    }
+
+    @Override
+    public void setResourceValue(String resName, Integer value) throws PersistenceException {
+        updateResources(stored -> {
+            Resource resource = stored.get(resName);
+            if(resource == null)
+                return false;
+            resource.setValue(value);
+            return true;
+        });
+    }
+
+    @Override
+    public Integer getResourceValue(String resName) throws PersistenceException {
+        Resource resource = registry.lookup(resName);
+        if(resource == null)
+            throw new PersistenceException("Resource unavailable");
+        return resource.getValue();
+    }
+
+    /* Private methods */
+
+    private Series series(String name) throws PersistenceException {
+        try {
+            return series.computeIfAbsent(name, key -> {
+                try {
+                    return new Series(directory.resolve(key), blockSize, segmentBlocks);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw new PersistenceException(ex.getCause().getMessage());
+        }
+    }
+
+    private Series flowRateSeries(String flowChannel) throws PersistenceException {
+        try {
+            return series(FLOW_RATE + URLEncoder.encode(flowChannel, "UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new PersistenceException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Append to a series, taking the writer role on the first append
+     */
+    private long append(Series series, long[] timestamps, float[] values) throws PersistenceException {
+        try {
+            synchronized (this){
+                if(writerLockChannel == null){
+                    FileChannel channel = FileChannel.open(directory.resolve(WRITER_LOCK), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE);
+                    if(channel.tryLock() == null){
+                        channel.close();
+                        throw new PersistenceException("Storage written by another process");
+                    }
+                    writerLockChannel = channel;
+                }
+            }
+            return series.append(timestamps, values, timestamps.length);
+        } catch (IOException ex) {
+            throw new PersistenceException(ex.getMessage());
+        }
+    }
+
+    private interface ResourceUpdate {
+        boolean apply(Map<String, Resource> resources);
+    }
+
+    /**
+     * Read-modify-write of the registry file under the file lock shared with the other processes
+     */
+    private synchronized void updateResources(ResourceUpdate update) throws PersistenceException {
+        try(FileChannel lockChannel = FileChannel.open(directory.resolve(RESOURCES_LOCK), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)){
+            FileLock lock = lockChannel.lock();
+            try {
+                Map<String, Resource> resources = new LinkedHashMap<>();
+                for(Resource resource: readResources())
+                    resources.put(resource.getName(), resource);
+                if(!update.apply(resources))
+                    return;
+
+                Path temporary = directory.resolve(RESOURCES + ".tmp");
+                try(DataOutputStream output = new DataOutputStream(Files.newOutputStream(temporary))){
+                    output.writeInt(resources.size());
+                    for(Resource resource: resources.values()){
+                        output.writeUTF(resource.getName());
+                        writeString(output, resource.getType());
+                        writeString(output, resource.getDescription());
+                        writeString(output, resource.getTag());
+                        writeString(output, resource.getUri());
+                        output.writeBoolean(resource.getValue() != null);
+                        if(resource.getValue() != null)
+                            output.writeInt(resource.getValue());
+                    }
+                }
+                Files.move(temporary, directory.resolve(RESOURCES), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                registry.replaceAll(resources.values());
+                resourcesModified = Files.getLastModifiedTime(directory.resolve(RESOURCES));
+            } finally {
+                lock.release();
+            }
+        } catch (IOException ex) {
+            throw new PersistenceException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Reload the registry if the registry file has been changed by another process
+     */
+    private synchronized void refreshResources() throws IOException {
+        Path path = directory.resolve(RESOURCES);
+        if(!Files.exists(path))
+            return;
+        FileTime modified = Files.getLastModifiedTime(path);
+        if(!modified.equals(resourcesModified)){
+            registry.replaceAll(readResources());
+            resourcesModified = modified;
+        }
+    }
+
+    private List<Resource> readResources() throws IOException {
+        Path path = directory.resolve(RESOURCES);
+        List<Resource> resources = new ArrayList<>();
+        if(!Files.exists(path))
+            return resources;
+        try(DataInputStream input = new DataInputStream(Files.newInputStream(path))){
+            int count = input.readInt();
+            for(int i = 0; i < count; i++){
+                Resource resource = new Resource();
+                resource.setName(input.readUTF());
+                resource.setType(readString(input));
+                resource.setDescription(readString(input));
+                resource.setTag(readString(input));
+                resource.setUri(readString(input));
+                resource.setValue(input.readBoolean() ? input.readInt() : null);
+                resources.add(resource);
+            }
+        }
+        return resources;
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        output.writeBoolean(value != null);
+        if(value != null)
+            output.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    private static FlowRate flowRate(Integer recordId, String flowChannel, long timestamp, float value){
+        FlowRate flowRate = new FlowRate();
+        flowRate.setRecordId(recordId);
+        flowRate.setFlowChannel(flowChannel);
+        flowRate.setTimestamp(new Date(timestamp));
+        flowRate.setValue(value);
+        return flowRate;
+    }
+
+    private static WaterLevel waterLevel(Integer recordId, long timestamp, float value){
+        WaterLevel waterLevel = new WaterLevel();
+        waterLevel.setRecordId(recordId);
+        waterLevel.setTimestamp(new Date(timestamp));
+        waterLevel.setValue(value);
+        return waterLevel;
+    }
+}
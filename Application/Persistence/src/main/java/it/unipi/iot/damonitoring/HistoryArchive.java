@@ -0,0 +1,229 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.compression.GorillaEncoder;
+import it.unipi.iot.damonitoring.entities.MeasurementBlock;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Archive of the measurement history: the measurements older than a given time are sealed into compressed blocks
+ * (measurementBlock, delta of delta timestamps and XOR encoded values), a UTC day of a series per transaction. The
+ * blocks are inserted and the measurements deleted together, so a range query reads each measurement exactly once.
+ * A process at a time seals the history, under a MySQL named lock.
+ */
+final class HistoryArchive {
+    private static final Logger logger = LoggerFactory.getLogger(HistoryArchive.class);
+    private static final String ARCHIVE_LOCK = "damonitoring.archive";
+    private static final String BLOCK_INSERT = "INSERT INTO measurementBlock (series, startTime, endTime, samples, " +
+            "data) VALUES (?, ?, ?, ?, ?)";
+    private static final long DAY = 86400000;
+
+    /**
+     * Series of the blocks of a flow channel, followed by the channel identifier
+     */
+    static final String FLOW_RATE_SERIES = "flowRate/";
+
+    /**
+     * Series of the blocks of the water level
+     */
+    static final String WATER_LEVEL_SERIES = "waterLevel";
+
+    private final SessionFactory sessionFactory;
+    private final int blockSize;
+    private final int bulkBatchSize;
+
+    /**
+     * @param blockSize Maximum number of measurements of a block
+     * @param bulkBatchSize Number of deletes of the sealed measurements sent per JDBC batch
+     */
+    HistoryArchive(SessionFactory sessionFactory, int blockSize, int bulkBatchSize){
+        this.sessionFactory = sessionFactory;
+        this.blockSize = blockSize;
+        this.bulkBatchSize = bulkBatchSize;
+    }
+
+    /**
+     * Seal the measurements older than the given time, series by series from the oldest day
+     * @return Number of measurements sealed, 0 if another process holds the archive lock
+     * @throws PersistenceException In case of failure of the operation (the days already sealed are kept)
+     */
+    long seal(Date before) throws PersistenceException {
+        try (Session session = sessionFactory.openSession()){
+            List<String> channels = session.createQuery("select flowChannel from FlowRateLatest", String.class)
+                    .list();
+            if(!session.doReturningWork(connection -> namedLock(connection, "SELECT GET_LOCK(?, 0)")))
+                return 0;
+            try {
+                long sealed = 0;
+                for(String channel: channels)
+                    sealed += seal(session, FLOW_RATE_SERIES + channel, "flowRate", channel, before.getTime());
+                sealed += seal(session, WATER_LEVEL_SERIES, "waterLevel", null, before.getTime());
+                return sealed;
+            }
+            finally {
+                session.doReturningWork(connection -> namedLock(connection, "SELECT RELEASE_LOCK(?)"));
+            }
+        }
+        catch (HibernateException | IllegalStateException ex){
+            throw new PersistenceException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Seal the measurements older than the given age, run periodically in background: errors are logged and retried
+     * on the next run
+     * @param age Age in days
+     */
+    void archive(long age){
+        try {
+            long sealed = seal(new Date(System.currentTimeMillis() - age * DAY));
+            if(sealed > 0)
+                logger.info("History archive: {} measurements sealed", sealed);
+        }
+        catch (PersistenceException ex){
+            logger.error("History archive: {}", ex.getMessage());
+        }
+    }
+
+    private static boolean namedLock(Connection connection, String query) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement(query)){
+            statement.setString(1, ARCHIVE_LOCK);
+            try(ResultSet result = statement.executeQuery()){
+                return result.next() && result.getInt(1) == 1;
+            }
+        }
+    }
+
+    /**
+     * Seal the history of a series, from its oldest day
+     */
+    private long seal(Session session, String series, String table, String flowChannel, long before) {
+        long sealed = 0;
+        int count;
+        do {
+            session.beginTransaction();
+            try {
+                count = session.doReturningWork(connection ->
+                        sealDay(connection, series, table, flowChannel, before));
+                session.getTransaction().commit();
+            }
+            catch (HibernateException | IllegalStateException ex){
+                session.getTransaction().rollback();
+                throw ex;
+            }
+            sealed += count;
+        } while (count > 0);
+        return sealed;
+    }
+
+    /**
+     * Seal the oldest day (UTC) of a series with measurements before the given time
+     * @return Number of measurements sealed, 0 if there is nothing to seal
+     */
+    private int sealDay(Connection connection, String series, String table, String flowChannel, long before)
+            throws SQLException {
+        String filter = (flowChannel == null) ? "" : "flowChannel = ? AND ";
+        Timestamp oldest;
+        try(PreparedStatement statement = connection.prepareStatement("SELECT MIN(timestamp) FROM " + table +
+                " WHERE " + filter + "timestamp < ?")){
+            int index = 1;
+            if(flowChannel != null)
+                statement.setString(index++, flowChannel);
+            statement.setTimestamp(index, new Timestamp(before));
+            try(ResultSet result = statement.executeQuery()){
+                oldest = result.next() ? result.getTimestamp(1) : null;
+            }
+        }
+        if(oldest == null)
+            return 0;
+        long from = Math.floorDiv(oldest.getTime(), DAY) * DAY;
+        long to = Math.min(from + DAY, before);
+
+        // Encode the day while streaming it, the measurements stored meanwhile are left to the next run
+        List<MeasurementBlock> blocks = new ArrayList<>();
+        GorillaEncoder encoder = new GorillaEncoder();
+        int samples = 0;
+        long[] ids = new long[blockSize];
+        long start = 0;
+        long end = 0;
+        try(PreparedStatement statement = connection.prepareStatement("SELECT recordId, timestamp, value FROM " +
+                table + " WHERE " + filter + "timestamp >= ? AND timestamp < ? ORDER BY timestamp")){
+            int index = 1;
+            if(flowChannel != null)
+                statement.setString(index++, flowChannel);
+            statement.setTimestamp(index++, new Timestamp(from));
+            statement.setTimestamp(index, new Timestamp(to));
+            statement.setFetchSize(Integer.MIN_VALUE);
+            try(ResultSet result = statement.executeQuery()){
+                while (result.next()){
+                    long timestamp = result.getTimestamp(2).getTime();
+                    if(encoder.size() == 0)
+                        start = timestamp;
+                    end = timestamp;
+                    encoder.append(timestamp, result.getFloat(3));
+                    if(samples == ids.length)
+                        ids = Arrays.copyOf(ids, 2 * samples);
+                    ids[samples++] = result.getLong(1);
+                    if(encoder.size() == blockSize){
+                        blocks.add(block(series, start, end, encoder));
+                        encoder.reset();
+                    }
+                }
+            }
+        }
+        if(encoder.size() > 0)
+            blocks.add(block(series, start, end, encoder));
+
+        try(PreparedStatement statement = connection.prepareStatement(BLOCK_INSERT)){
+            for(MeasurementBlock block: blocks){
+                statement.setString(1, block.getSeries());
+                statement.setTimestamp(2, new Timestamp(block.getStartTime().getTime()));
+                statement.setTimestamp(3, new Timestamp(block.getEndTime().getTime()));
+                statement.setInt(4, block.getSamples());
+                statement.setBytes(5, block.getData());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        // Delete exactly the measurements encoded: one committed late by a concurrent transaction, with a lower
+        // identifier, was not read and is left to the next run
+        try(PreparedStatement statement = connection.prepareStatement("DELETE FROM " + table + " WHERE " +
+                "recordId = ? AND timestamp >= ? AND timestamp < ?")){
+            statement.setTimestamp(2, new Timestamp(from));
+            statement.setTimestamp(3, new Timestamp(to));
+            for(int i = 0; i < samples; i++){
+                statement.setLong(1, ids[i]);
+                statement.addBatch();
+                if((i + 1) % bulkBatchSize == 0)
+                    statement.executeBatch();
+            }
+            statement.executeBatch();
+        }
+        return samples;
+    }
+
+    private static MeasurementBlock block(String series, long start, long end, GorillaEncoder encoder){
+        MeasurementBlock block = new MeasurementBlock();
+        block.setSeries(series);
+        block.setStartTime(new Date(start));
+        block.setEndTime(new Date(end));
+        block.setSamples(encoder.size());
+        block.setData(encoder.toByteArray());
+        return block;
+    }
+}
@@ -0,0 +1,77 @@
+package it.unipi.iot.damonitoring;
+
+import java.util.Arrays;
+
+/**
+ * Measurements of a series in columns: timestamps (milliseconds) and values in primitive arrays, in the order of the
+ * storage. Loaded by the projection queries of {@link Storage} for the calculations over long ranges, without an
+ * object per measurement.
+ */
+public final class MeasurementColumns {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] timestamps;
+    private float[] values;
+    private int size;
+
+    public MeasurementColumns(){
+        this(INITIAL_CAPACITY);
+    }
+
+    public MeasurementColumns(int capacity){
+        timestamps = new long[Math.max(capacity, 1)];
+        values = new float[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Number of measurements
+     */
+    public int size(){
+        return size;
+    }
+
+    public long getTimestamp(int index){
+        if(index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        return timestamps[index];
+    }
+
+    public float getValue(int index){
+        if(index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        return values[index];
+    }
+
+    /**
+     * Timestamp column, valid up to {@link #size()}: the array is shared, not copied
+     */
+    public long[] getTimestamps(){
+        return timestamps;
+    }
+
+    /**
+     * Value column, valid up to {@link #size()}: the array is shared, not copied
+     */
+    public float[] getValues(){
+        return values;
+    }
+
+    /**
+     * Release the unused capacity of the columns
+     */
+    public void trim(){
+        if(timestamps.length > size){
+            timestamps = Arrays.copyOf(timestamps, size);
+            values = Arrays.copyOf(values, size);
+        }
+    }
+
+    void add(long timestamp, float value){
+        if(size == timestamps.length){
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        timestamps[size] = timestamp;
+        values[size++] = value;
+    }
+}
@@ -0,0 +1,254 @@
+package it.unipi.iot.damonitoring;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Ring buffer of the most recent measurements of a channel, kept in primitive arrays sized once at creation: when
+ * full, the oldest measurement is overwritten. Appends are serialized by a write lock; reads are optimistic (no lock
+ * taken, validated against the appends and retried, a read lock is taken only after repeated conflicts), so readers
+ * never block the ingest. No query allocates: the results are copied into arrays or a {@link Stats} of the caller.
+ * <p>
+ * Measurements are expected in time order, as produced by a sensor: the window queries scan back from the newest one
+ * and stop at the first measurement older than the start of the window.
+ */
+public final class MeasurementWindow {
+    public static final long NO_TIME = Long.MIN_VALUE;
+    private static final int OPTIMISTIC_ATTEMPTS = 3;
+
+    private final long[] timestamps;
+    private final float[] values;
+    private final int mask;
+    private final StampedLock lock = new StampedLock();
+    private long count;
+
+    /**
+     * @param capacity Maximum number of measurements, rounded up to a power of two
+     */
+    public MeasurementWindow(int capacity){
+        if(capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity)
+            size <<= 1;
+        timestamps = new long[size];
+        values = new float[size];
+        mask = size - 1;
+    }
+
+    public int capacity(){
+        return timestamps.length;
+    }
+
+    /**
+     * Add the newest measurement
+     * @param timestamp Timestamp of the measurement in milliseconds
+     * @param value Value of the measurement
+     */
+    public void append(long timestamp, float value){
+        long stamp = lock.writeLock();
+        try {
+            int slot = (int) (count & mask);
+            timestamps[slot] = timestamp;
+            values[slot] = value;
+            count++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Number of measurements in the window
+     */
+    public int size(){
+        for(int attempt = 0; ; attempt++){
+            long stamp = (attempt < OPTIMISTIC_ATTEMPTS) ? lock.tryOptimisticRead() : lock.readLock();
+            try {
+                int size = (int) Math.min(count, timestamps.length);
+                if(lock.validate(stamp))
+                    return size;
+            } finally {
+                if(attempt >= OPTIMISTIC_ATTEMPTS)
+                    lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Timestamp of the newest measurement
+     * @return Timestamp in milliseconds, {@link #NO_TIME} if the window is empty
+     */
+    public long latestTimestamp(){
+        for(int attempt = 0; ; attempt++){
+            long stamp = (attempt < OPTIMISTIC_ATTEMPTS) ? lock.tryOptimisticRead() : lock.readLock();
+            try {
+                long latest = (count == 0) ? NO_TIME : timestamps[(int) ((count - 1) & mask)];
+                if(lock.validate(stamp))
+                    return latest;
+            } finally {
+                if(attempt >= OPTIMISTIC_ATTEMPTS)
+                    lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Value of the newest measurement
+     * @return Value, NaN if the window is empty
+     */
+    public float latestValue(){
+        for(int attempt = 0; ; attempt++){
+            long stamp = (attempt < OPTIMISTIC_ATTEMPTS) ? lock.tryOptimisticRead() : lock.readLock();
+            try {
+                float latest = (count == 0) ? Float.NaN : values[(int) ((count - 1) & mask)];
+                if(lock.validate(stamp))
+                    return latest;
+            } finally {
+                if(attempt >= OPTIMISTIC_ATTEMPTS)
+                    lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Copy the newest measurements, oldest first
+     * @param n Maximum number of measurements to copy
+     * @param timestamps Destination of the timestamps, at least n long
+     * @param values Destination of the values, at least n long
+     * @return Number of measurements copied
+     */
+    public int last(int n, long[] timestamps, float[] values){
+        for(int attempt = 0; ; attempt++){
+            long stamp = (attempt < OPTIMISTIC_ATTEMPTS) ? lock.tryOptimisticRead() : lock.readLock();
+            try {
+                long end = count;
+                int copied = (int) Math.min(Math.min(n, end), this.timestamps.length);
+                for(int i = 0; i < copied; i++){
+                    int slot = (int) ((end - copied + i) & mask);
+                    timestamps[i] = this.timestamps[slot];
+                    values[i] = this.values[slot];
+                }
+                if(lock.validate(stamp))
+                    return copied;
+            } finally {
+                if(attempt >= OPTIMISTIC_ATTEMPTS)
+                    lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Statistics of the measurements of the window taken since the given time
+     * @param from Start of the window in milliseconds (inclusive)
+     * @param stats Destination of the statistics, overwritten
+     * @return False if there is no measurement since the given time
+     */
+    public boolean since(long from, Stats stats){
+        for(int attempt = 0; ; attempt++){
+            long stamp = (attempt < OPTIMISTIC_ATTEMPTS) ? lock.tryOptimisticRead() : lock.readLock();
+            try {
+                stats.compute(timestamps, values, mask, count, from);
+                if(lock.validate(stamp))
+                    return stats.count > 0;
+            } finally {
+                if(attempt >= OPTIMISTIC_ATTEMPTS)
+                    lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Statistics of a window of measurements, reusable across queries
+     */
+    public static final class Stats {
+        private int count;
+        private long firstTimestamp;
+        private long latestTimestamp;
+        private float latestValue;
+        private float min;
+        private float max;
+        private float mean;
+        private float slope;
+
+        /**
+         * Number of measurements of the window
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public long getFirstTimestamp() {
+            return firstTimestamp;
+        }
+
+        public long getLatestTimestamp() {
+            return latestTimestamp;
+        }
+
+        public float getLatestValue() {
+            return latestValue;
+        }
+
+        public float getMin() {
+            return min;
+        }
+
+        public float getMax() {
+            return max;
+        }
+
+        public float getMean() {
+            return mean;
+        }
+
+        /**
+         * Least squares trend of the values, in units per second (0 with less than two measurements)
+         */
+        public float getSlope() {
+            return slope;
+        }
+
+        private void compute(long[] timestamps, float[] values, int mask, long end, long from){
+            count = 0;
+            min = Float.NaN;
+            max = Float.NaN;
+            mean = Float.NaN;
+            slope = 0;
+            long available = Math.min(end, timestamps.length);
+            if(available == 0)
+                return;
+
+            latestTimestamp = timestamps[(int) ((end - 1) & mask)];
+            latestValue = values[(int) ((end - 1) & mask)];
+            float minimum = Float.POSITIVE_INFINITY;
+            float maximum = Float.NEGATIVE_INFINITY;
+            double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+            int n = 0;
+            for(long i = end - 1; i >= end - available; i--){
+                int slot = (int) (i & mask);
+                long timestamp = timestamps[slot];
+                if(timestamp < from)
+                    break;
+                float value = values[slot];
+                // Seconds relative to the newest measurement, to keep the sums small
+                double x = (timestamp - latestTimestamp) / 1000.0;
+                minimum = Math.min(minimum, value);
+                maximum = Math.max(maximum, value);
+                sumX += x;
+                sumY += value;
+                sumXX += x * x;
+                sumXY += x * value;
+                firstTimestamp = timestamp;
+                n++;
+            }
+            count = n;
+            if(n == 0)
+                return;
+            min = minimum;
+            max = maximum;
+            mean = (float) (sumY / n);
+            double denominator = n * sumXX - sumX * sumX;
+            if(n > 1 && denominator != 0)
+                slope = (float) ((n * sumXY - sumX * sumY) / denominator);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.entities.WaterLevel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory windows of the most recent measurements of the process, a {@link MeasurementWindow} per flow rate
+ * channel plus one for the water level, of the capacity configured in storage.properties (windowCapacity). The
+ * windows are filled by whoever receives the measurements (the ingest of the Collector, the subscription of the
+ * Controller) and answer the queries on recent data without reaching the storage.
+ */
+public final class MeasurementWindows {
+    private static final String CONFIG_FILE = "/storage.properties";
+    private static final MeasurementWindows instance;
+
+    static {
+        try(InputStream configFileStream = MeasurementWindows.class.getResourceAsStream(CONFIG_FILE)){
+            Properties properties = new Properties();
+            properties.load(configFileStream);
+            instance = new MeasurementWindows(Integer.parseInt(properties.getProperty("windowCapacity")));
+        }
+        catch (IOException ex){
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private final int capacity;
+    private final ConcurrentMap<String, MeasurementWindow> flowRates = new ConcurrentHashMap<>();
+    private final Collection<String> flowChannels = Collections.unmodifiableSet(flowRates.keySet());
+    private final MeasurementWindow waterLevel;
+
+    private MeasurementWindows(int capacity){
+        this.capacity = capacity;
+        this.waterLevel = new MeasurementWindow(capacity);
+    }
+
+    public static MeasurementWindows getInstance(){
+        return instance;
+    }
+
+    /**
+     * Window of a flow rate channel, created empty on the first use
+     * @param flowChannel Channel identifier (case insensitive)
+     */
+    public MeasurementWindow flowRate(String flowChannel){
+        String key = flowChannel.toLowerCase();
+        MeasurementWindow window = flowRates.get(key);
+        return (window != null) ? window : flowRates.computeIfAbsent(key, k -> new MeasurementWindow(capacity));
+    }
+
+    /**
+     * Flow rate channels with a window (lower case)
+     */
+    public Collection<String> flowChannels(){
+        return flowChannels;
+    }
+
+    public MeasurementWindow waterLevel(){
+        return waterLevel;
+    }
+
+    /**
+     * Add a measurement to its window
+     * @param record FlowRate or WaterLevel object, other objects are ignored
+     */
+    public void record(Object record){
+        if(record instanceof FlowRate){
+            FlowRate flowRate = (FlowRate) record;
+            flowRate(flowRate.getFlowChannel()).append(flowRate.getTimestamp().getTime(), flowRate.getValue());
+        }
+        else if(record instanceof WaterLevel){
+            WaterLevel level = (WaterLevel) record;
+            waterLevel.append(level.getTimestamp().getTime(), level.getValue());
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package it.unipi.iot.damonitoring;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Time partitioning of the measurement tables (MySQL RANGE partitioning on TO_DAYS(timestamp)). Each table holds a
+ * partition per day or month, named after the first day of the period, plus a catch-all "pmax" partition: the
+ * maintenance creates the partitions of the next periods in advance and drops the partitions older than the
+ * retention, which is far cheaper than deleting the rows. Queries bounded on the timestamp read only the partitions
+ * of the range. The days are UTC days: the connection stores the timestamps in UTC, as the sealing of the history
+ * into blocks expects. The sealed blocks (measurementBlock) ending before the retention are deleted as well.
+ * <p>
+ * Tables not partitioned yet (created by Hibernate or by an older script) are converted on the first maintenance:
+ * InnoDB engine, primary key (recordId, timestamp), as required by the partitioning, and an index for the latest
+ * measurement lookups. Rows older than the retention are placed in a "p0" partition, dropped right after.
+ */
+final class PartitionManager {
+    private static final Logger logger = LoggerFactory.getLogger(PartitionManager.class);
+    private static final String MAX_PARTITION = "pmax";
+    private static final String OLD_PARTITION = "p0";
+    private static final String BLOCK_EXPIRY = "DELETE FROM measurementBlock WHERE endTime < ?";
+    private static final long MAX_VALUE = Long.MAX_VALUE;
+
+    /**
+     * TO_DAYS('1970-01-01'), the offset between MySQL day numbers and epoch days
+     */
+    private static final long EPOCH_DAYS = 719528;
+
+    /**
+     * Partitioned tables and the index of their latest measurement lookups
+     */
+    private static final Map<String, String> TABLES = new LinkedHashMap<>();
+    static {
+        TABLES.put("flowRate", "ADD INDEX flowRate_channel_time (flowChannel, timestamp)");
+        TABLES.put("waterLevel", "ADD INDEX waterLevel_time (timestamp)");
+    }
+
+    enum Interval {
+        DAY(DateTimeFormatter.ofPattern("'p'yyyyMMdd")),
+        MONTH(DateTimeFormatter.ofPattern("'p'yyyyMM"));
+
+        private final DateTimeFormatter format;
+
+        Interval(DateTimeFormatter format){
+            this.format = format;
+        }
+
+        LocalDate start(LocalDate date){
+            return (this == DAY) ? date : date.withDayOfMonth(1);
+        }
+
+        LocalDate plus(LocalDate start, long periods){
+            return (this == DAY) ? start.plusDays(periods) : start.plusMonths(periods);
+        }
+
+        String name(LocalDate start){
+            return start.format(format);
+        }
+    }
+
+    private final SessionFactory sessionFactory;
+    private final Interval interval;
+    private final int retention;
+    private final int ahead;
+
+    /**
+     * @param interval Width of the partitions
+     * @param retention Number of past periods kept (0 to keep the measurements forever)
+     * @param ahead Number of future periods created in advance
+     */
+    PartitionManager(SessionFactory sessionFactory, Interval interval, int retention, int ahead){
+        this.sessionFactory = sessionFactory;
+        this.interval = interval;
+        this.retention = retention;
+        this.ahead = ahead;
+    }
+
+    /**
+     * Partition the tables not partitioned yet, create the partitions of the next periods and drop the expired ones
+     */
+    void maintain(){
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        for(Map.Entry<String, String> table: TABLES.entrySet()){
+            try (Session session = sessionFactory.openSession()){
+                session.doWork(connection -> maintain(connection, table.getKey(), table.getValue(), today));
+            }
+            catch (HibernateException ex){
+                logger.error("Partition maintenance of {}: {}", table.getKey(), ex.getMessage());
+            }
+        }
+        if(retention > 0){
+            try (Session session = sessionFactory.openSession()){
+                session.beginTransaction();
+                session.doWork(connection -> expireBlocks(connection, today));
+                session.getTransaction().commit();
+            }
+            catch (HibernateException ex){
+                logger.error("Expiry of the sealed blocks: {}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Delete the sealed blocks of the measurements older than the retention
+     */
+    private void expireBlocks(Connection connection, LocalDate today) throws SQLException {
+        LocalDate cutoff = interval.plus(interval.start(today), -retention);
+        try (PreparedStatement statement = connection.prepareStatement(BLOCK_EXPIRY)){
+            statement.setTimestamp(1, new Timestamp(cutoff.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli()));
+            int expired = statement.executeUpdate();
+            if(expired > 0)
+                logger.info("Table measurementBlock: {} expired blocks deleted", expired);
+        }
+    }
+
+    private void maintain(Connection connection, String table, String index, LocalDate today) throws SQLException {
+        Map<String, Long> partitions = partitions(connection, table);
+        if(partitions == null)
+            return;
+
+        LocalDate current = interval.start(today);
+        LocalDate end = interval.plus(current, ahead + 1);
+        LocalDate cutoff = interval.plus(current, -retention);
+
+        try (Statement statement = connection.createStatement()){
+            if(partitions.isEmpty()){
+                List<String> definitions = definitions(null, (retention > 0) ? cutoff : current, end);
+                statement.executeUpdate("ALTER TABLE " + table + " ENGINE=InnoDB, DROP PRIMARY KEY, " +
+                        "ADD PRIMARY KEY (recordId, timestamp), " + index + " PARTITION BY RANGE (TO_DAYS(timestamp)) (" +
+                        String.join(", ", definitions) + ")");
+                logger.info("Table {} partitioned by {} ({} partitions)", table, interval, definitions.size());
+                partitions = partitions(connection, table);
+            }
+            else {
+                // Partitions of the next periods, split from the catch-all one
+                long last = 0;
+                for(long bound: partitions.values()){
+                    if(bound != MAX_VALUE)
+                        last = Math.max(last, bound);
+                }
+                LocalDate from = (last == 0) ? ((retention > 0) ? cutoff : current) :
+                        interval.start(LocalDate.ofEpochDay(last - EPOCH_DAYS));
+                List<String> definitions = definitions((last == 0) ? null : from, from, end);
+                if(definitions.size() > 1){
+                    statement.executeUpdate("ALTER TABLE " + table + " REORGANIZE PARTITION " + MAX_PARTITION +
+                            " INTO (" + String.join(", ", definitions) + ")");
+                    logger.info("Table {}: {} partitions created", table, definitions.size() - 1);
+                    partitions = partitions(connection, table);
+                }
+            }
+
+            // Expired partitions
+            if(retention > 0){
+                long limit = toDays(cutoff);
+                List<String> expired = new ArrayList<>();
+                for(Map.Entry<String, Long> partition: partitions.entrySet()){
+                    if(partition.getValue() <= limit)
+                        expired.add(partition.getKey());
+                }
+                if(!expired.isEmpty()){
+                    statement.executeUpdate("ALTER TABLE " + table + " DROP PARTITION " + String.join(", ", expired));
+                    logger.info("Table {}: expired partitions dropped {}", table, expired);
+                }
+            }
+        }
+    }
+
+    /**
+     * Definitions of the partitions of the periods in the range, followed by the catch-all one
+     * @param first Start of the first period, null to add a partition with the rows older than the range
+     * @param from Start of the range
+     * @param end End of the range (exclusive)
+     */
+    private List<String> definitions(LocalDate first, LocalDate from, LocalDate end){
+        List<String> definitions = new ArrayList<>();
+        if(first == null)
+            definitions.add("PARTITION " + OLD_PARTITION + " VALUES LESS THAN (" + toDays(from) + ")");
+        for(LocalDate start = from; start.isBefore(end); start = interval.plus(start, 1)){
+            definitions.add("PARTITION " + interval.name(start) + " VALUES LESS THAN (" +
+                    toDays(interval.plus(start, 1)) + ")");
+        }
+        definitions.add("PARTITION " + MAX_PARTITION + " VALUES LESS THAN MAXVALUE");
+        return definitions;
+    }
+
+    /**
+     * Read the partitions of a table
+     * @return Upper bound (TO_DAYS) of each partition in order, empty if the table is not partitioned, null if the
+     * table does not exist
+     */
+    private static Map<String, Long> partitions(Connection connection, String table) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT PARTITION_NAME, " +
+                "PARTITION_DESCRIPTION FROM information_schema.PARTITIONS WHERE TABLE_SCHEMA = DATABASE() AND " +
+                "TABLE_NAME = ? ORDER BY PARTITION_ORDINAL_POSITION")){
+            statement.setString(1, table);
+            try (ResultSet result = statement.executeQuery()){
+                Map<String, Long> partitions = null;
+                while (result.next()){
+                    if(partitions == null)
+                        partitions = new LinkedHashMap<>();
+                    String name = result.getString(1);
+                    if(name != null){
+                        String bound = result.getString(2);
+                        partitions.put(name, "MAXVALUE".equals(bound) ? MAX_VALUE : Long.parseLong(bound));
+                    }
+                }
+                return partitions;
+            }
+        }
+    }
+
+    private static long toDays(LocalDate date){
+        return date.toEpochDay() + EPOCH_DAYS;
+    }
+}
@@ -0,0 +1,186 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.entities.Resource;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synchronization of the in-memory resource registry with the database. The registrations update the registry
+ * immediately and are stored in background with a batched upsert, coalescing repeated registrations of the same
+ * resource; the registry is reloaded periodically to see the changes made by the other processes.
+ */
+final class RegistrySync {
+    private static final Logger logger = LoggerFactory.getLogger(RegistrySync.class);
+
+    private final SessionFactory sessionFactory;
+    private final int batchSize;
+    private final ResourceRegistry registry = new ResourceRegistry();
+    private final Map<String, Resource> pendingResources = new LinkedHashMap<>();
+    private final ScheduledExecutorService executor;
+    private long modifications;
+
+    /**
+     * Load the registry, then keep the database and the registry of the other processes aligned in background
+     * @param batchSize Number of resources upserted per JDBC batch
+     * @param flushPeriod Period of the upsert of the pending registrations in milliseconds
+     * @param refreshPeriod Period of the reload of the registry in milliseconds (0 to never reload it)
+     */
+    RegistrySync(SessionFactory sessionFactory, int batchSize, long flushPeriod, long refreshPeriod){
+        this.sessionFactory = sessionFactory;
+        this.batchSize = batchSize;
+        registry.replaceAll(loadResources());
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "resource-registry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::flush, flushPeriod, flushPeriod, TimeUnit.MILLISECONDS);
+        if(refreshPeriod > 0)
+            executor.scheduleWithFixedDelay(this::refresh, refreshPeriod, refreshPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    ResourceRegistry getRegistry(){
+        return registry;
+    }
+
+    /**
+     * Store the resources, then add them to the registry
+     * @throws PersistenceException In case of failure of the operation (the registry is left unchanged)
+     */
+    void add(List<Resource> resources) throws PersistenceException {
+        upsertResources(resources);
+        synchronized (pendingResources){
+            registry.putAll(resources);
+            modifications++;
+        }
+    }
+
+    /**
+     * Add the resources to the registry, the database is updated on the next flush
+     * @throws PersistenceException If a resource has no name
+     */
+    void register(List<Resource> resources) throws PersistenceException {
+        for(Resource resource: resources){
+            if(resource.getName() == null)
+                throw new PersistenceException("Resource without name");
+        }
+        synchronized (pendingResources){
+            for(Resource resource: resources)
+                pendingResources.put(resource.getName(), resource);
+            registry.putAll(resources);
+            modifications++;
+        }
+    }
+
+    /**
+     * Store the value of a resource, then update the registry
+     * @throws PersistenceException In case of failure of the operation (the registry is left unchanged)
+     */
+    void setValue(String resName, Integer value) throws PersistenceException {
+        try(Session session = sessionFactory.openSession()){
+            session.beginTransaction();
+            session.createQuery("UPDATE Resource r SET r.value = :value WHERE r.name = :resName")
+                    .setParameter("value", value)
+                    .setParameter("resName", resName)
+                    .executeUpdate();
+            session.getTransaction().commit();
+        }
+        catch (HibernateException | IllegalStateException ex){
+            throw new PersistenceException(ex.getMessage());
+        }
+        synchronized (pendingResources){
+            registry.setValue(resName, value);
+            modifications++;
+        }
+    }
+
+    /**
+     * Stop the background synchronization and store the pending registrations
+     */
+    void close(){
+        executor.shutdownNow();
+        flush();
+    }
+
+    private void upsertResources(Collection<Resource> resources) throws PersistenceException {
+        try(Session session = sessionFactory.openSession()){
+            session.beginTransaction();
+            int count = 0;
+            for(Resource resource: resources){
+                session.saveOrUpdate(resource);
+                if(++count % batchSize == 0){
+                    session.flush();
+                    session.clear();
+                }
+            }
+            session.getTransaction().commit();
+        }
+        catch (HibernateException | IllegalStateException ex){
+            throw new PersistenceException(ex.getMessage());
+        }
+    }
+
+    private List<Resource> loadResources() {
+        try(Session session = sessionFactory.openSession()){
+            return session.createQuery("from Resource order by name", Resource.class).list();
+        }
+    }
+
+    /**
+     * Store the pending registrations in the database, retried on the next period in case of failure
+     */
+    private void flush() {
+        List<Resource> batch;
+        synchronized (pendingResources){
+            if(pendingResources.isEmpty())
+                return;
+            batch = new ArrayList<>(pendingResources.values());
+        }
+        try {
+            upsertResources(batch);
+            synchronized (pendingResources){
+                // Keep the resources registered again in the meanwhile
+                for(Resource resource: batch)
+                    pendingResources.remove(resource.getName(), resource);
+            }
+        } catch (PersistenceException ex) {
+            logger.error("Registry upsert ({} resources pending): {}", batch.size(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Reload the registry from the database, to see the changes made by the other processes. The reload is dropped if
+     * the registry has been modified by this process in the meanwhile, pending registrations are kept.
+     */
+    private void refresh() {
+        try {
+            long modifications;
+            synchronized (pendingResources){
+                modifications = this.modifications;
+            }
+            List<Resource> resources = loadResources();
+            synchronized (pendingResources){
+                if(modifications != this.modifications)
+                    return;
+                resources.addAll(pendingResources.values());
+                registry.replaceAll(resources);
+            }
+        } catch (HibernateException | IllegalStateException ex) {
+            logger.warn("Registry refresh: {}", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.entities.Resource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-memory copy of the resource registry, indexed by name, type and tag. Lookups read an immutable snapshot without
+ * locking, updates (registrations and value changes, rare compared to lookups) publish a new snapshot. Resources
+ * are kept in name order, as loaded from the database.
+ * <p>
+ * The resources held by the registry are private copies: the returned objects must not be modified.
+ */
+public class ResourceRegistry {
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Notified when resources are registered or the registry is reloaded, not on value changes
+     */
+    public interface Listener {
+        void registryChanged(ResourceRegistry registry);
+    }
+
+    /**
+     * Find a resource by name
+     * @param name Resource name
+     * @return The resource, null if not registered
+     */
+    public Resource lookup(String name){
+        return snapshot.byName.get(name);
+    }
+
+    /**
+     * Retrieve the resources of a type (e.g. "gate", "alarm")
+     * @param type Resource type
+     * @return Unmodifiable list of resources, empty if none is registered
+     */
+    public List<Resource> byType(String type){
+        return snapshot.byType.getOrDefault(type, Collections.emptyList());
+    }
+
+    /**
+     * Retrieve the resources with a tag (e.g. "emergency")
+     * @param tag Resource tag
+     * @return Unmodifiable list of resources, empty if none is registered
+     */
+    public List<Resource> byTag(String tag){
+        return snapshot.byTag.getOrDefault(tag, Collections.emptyList());
+    }
+
+    /**
+     * Retrieve all the registered resources
+     * @return Unmodifiable collection of resources, in name order
+     */
+    public Collection<Resource> all(){
+        return Collections.unmodifiableCollection(snapshot.byName.values());
+    }
+
+    public int size(){
+        return snapshot.byName.size();
+    }
+
+    public void addListener(Listener listener){
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener){
+        listeners.remove(listener);
+    }
+
+    /**
+     * Add new resources or replace the registered ones with the same name
+     */
+    synchronized void putAll(Collection<Resource> resources){
+        Map<String, Resource> byName = new TreeMap<>(snapshot.byName);
+        for(Resource resource: resources)
+            byName.put(resource.getName(), copy(resource));
+        snapshot = new Snapshot(byName);
+        notifyListeners();
+    }
+
+    /**
+     * Replace the whole content of the registry
+     */
+    synchronized void replaceAll(Collection<Resource> resources){
+        Map<String, Resource> byName = new TreeMap<>();
+        for(Resource resource: resources)
+            byName.put(resource.getName(), copy(resource));
+        snapshot = new Snapshot(byName);
+        notifyListeners();
+    }
+
+    /**
+     * Update the value of a registered resource
+     * @return False if the resource is not registered
+     */
+    synchronized boolean setValue(String name, Integer value){
+        Resource resource = snapshot.byName.get(name);
+        if(resource == null)
+            return false;
+        Resource updated = copy(resource);
+        updated.setValue(value);
+        Map<String, Resource> byName = new TreeMap<>(snapshot.byName);
+        byName.put(name, updated);
+        snapshot = new Snapshot(byName);
+        return true;
+    }
+
+    private void notifyListeners(){
+        for(Listener listener: listeners)
+            listener.registryChanged(this);
+    }
+
+    private static Resource copy(Resource resource){
+        Resource copy = new Resource();
+        copy.setName(resource.getName());
+        copy.setType(resource.getType());
+        copy.setDescription(resource.getDescription());
+        copy.setTag(resource.getTag());
+        copy.setUri(resource.getUri());
+        copy.setValue(resource.getValue());
+        return copy;
+    }
+
+    private static final class Snapshot {
+        private final Map<String, Resource> byName;
+        private final Map<String, List<Resource>> byType;
+        private final Map<String, List<Resource>> byTag;
+
+        private Snapshot(Map<String, Resource> byName){
+            this.byName = byName;
+            this.byType = index(byName.values(), true);
+            this.byTag = index(byName.values(), false);
+        }
+
+        private static Map<String, List<Resource>> index(Collection<Resource> resources, boolean type){
+            Map<String, List<Resource>> index = new HashMap<>();
+            for(Resource resource: resources){
+                String key = type ? resource.getType() : resource.getTag();
+                if(key != null)
+                    index.computeIfAbsent(key, k -> new ArrayList<>()).add(resource);
+            }
+            index.replaceAll((key, list) -> Collections.unmodifiableList(list));
+            return index;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.entities.FlowRateRollup;
+import it.unipi.iot.damonitoring.entities.WaterLevelRollup;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * Writes of the rollup tables (flowRateRollup, waterLevelRollup): the partial aggregates of a bucket are merged into
+ * the stored ones with an upsert, so several processes can aggregate the same series. Each source of merges keeps
+ * its last committed sequence number in rollupMerge, in the transaction of the merge: a merge retried after a commit
+ * whose outcome was unknown is not applied twice.
+ */
+final class RollupWriter {
+    private static final Logger logger = LoggerFactory.getLogger(RollupWriter.class);
+    private static final String ROLLUP_MERGE = " ON DUPLICATE KEY UPDATE " +
+            "minimum = LEAST(minimum, VALUES(minimum)), maximum = GREATEST(maximum, VALUES(maximum)), " +
+            "average = (average * samples + VALUES(average) * VALUES(samples)) / (samples + VALUES(samples)), " +
+            "samples = samples + VALUES(samples), " +
+            "lastValue = IF(VALUES(lastTimestamp) >= lastTimestamp, VALUES(lastValue), lastValue), " +
+            "lastTimestamp = GREATEST(lastTimestamp, VALUES(lastTimestamp))";
+    private static final String FLOW_RATE_ROLLUP_UPSERT = "INSERT INTO flowRateRollup (flowChannel, resolution, " +
+            "bucket, minimum, maximum, average, samples, lastValue, lastTimestamp) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)" +
+            ROLLUP_MERGE;
+    private static final String WATER_LEVEL_ROLLUP_UPSERT = "INSERT INTO waterLevelRollup (resolution, bucket, " +
+            "minimum, maximum, average, samples, lastValue, lastTimestamp) VALUES (?, ?, ?, ?, ?, ?, ?, ?)" +
+            ROLLUP_MERGE;
+    private static final String ROLLUP_MERGE_SELECT = "SELECT sequence FROM rollupMerge WHERE source = ? FOR UPDATE";
+    private static final String ROLLUP_MERGE_UPSERT = "INSERT INTO rollupMerge (source, sequence) VALUES (?, ?) " +
+            "ON DUPLICATE KEY UPDATE sequence = VALUES(sequence)";
+
+    private final SessionFactory sessionFactory;
+
+    RollupWriter(SessionFactory sessionFactory){
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Merge partial aggregates into the rollup tables in a single transaction, skipped if not newer than the last
+     * merge committed by the source
+     * @param rollups FlowRateRollup and WaterLevelRollup objects holding the aggregates of the new measurements
+     * @param source Identifier of the aggregation issuing the merges
+     * @param sequence Sequence number of the merge, increasing for each source
+     * @throws PersistenceException In case of failure of the operation (no aggregate is stored)
+     */
+    void merge(Collection<?> rollups, String source, long sequence) throws PersistenceException {
+        try (Session session = sessionFactory.openSession()){
+            session.beginTransaction();
+            session.doWork(connection -> {
+                try(PreparedStatement statement = connection.prepareStatement(ROLLUP_MERGE_SELECT)){
+                    statement.setString(1, source);
+                    try(ResultSet result = statement.executeQuery()){
+                        if(result.next() && result.getLong(1) >= sequence){
+                            logger.info("Rollup merge {} of {} already committed", sequence, source);
+                            return;
+                        }
+                    }
+                }
+                try(PreparedStatement statement = connection.prepareStatement(ROLLUP_MERGE_UPSERT)){
+                    statement.setString(1, source);
+                    statement.setLong(2, sequence);
+                    statement.executeUpdate();
+                }
+                try(PreparedStatement flowRates = connection.prepareStatement(FLOW_RATE_ROLLUP_UPSERT);
+                    PreparedStatement waterLevels = connection.prepareStatement(WATER_LEVEL_ROLLUP_UPSERT)){
+                    for(Object rollup: rollups){
+                        if(rollup instanceof FlowRateRollup){
+                            FlowRateRollup flowRate = (FlowRateRollup) rollup;
+                            flowRates.setString(1, flowRate.getFlowChannel());
+                            setRollup(flowRates, 2, flowRate.getResolution(), flowRate.getBucket(),
+                                    flowRate.getMinimum(), flowRate.getMaximum(), flowRate.getAverage(),
+                                    flowRate.getSamples(), flowRate.getLastValue(), flowRate.getLastTimestamp());
+                            flowRates.addBatch();
+                        }
+                        else {
+                            WaterLevelRollup waterLevel = (WaterLevelRollup) rollup;
+                            setRollup(waterLevels, 1, waterLevel.getResolution(), waterLevel.getBucket(),
+                                    waterLevel.getMinimum(), waterLevel.getMaximum(), waterLevel.getAverage(),
+                                    waterLevel.getSamples(), waterLevel.getLastValue(), waterLevel.getLastTimestamp());
+                            waterLevels.addBatch();
+                        }
+                    }
+                    flowRates.executeBatch();
+                    waterLevels.executeBatch();
+                }
+            });
+            session.getTransaction().commit();
+        }
+        catch (HibernateException | IllegalStateException | ClassCastException ex){
+            throw new PersistenceException(ex.getMessage());
+        }
+    }
+
+    private static void setRollup(PreparedStatement statement, int index, Integer resolution, Date bucket,
+                                  Float minimum, Float maximum, Float average, Integer samples, Float lastValue,
+                                  Date lastTimestamp) throws SQLException {
+        statement.setInt(index, resolution);
+        statement.setTimestamp(index + 1, new Timestamp(bucket.getTime()));
+        statement.setFloat(index + 2, minimum);
+        statement.setFloat(index + 3, maximum);
+        statement.setFloat(index + 4, average);
+        statement.setInt(index + 5, samples);
+        statement.setFloat(index + 6, lastValue);
+        statement.setTimestamp(index + 7, new Timestamp(lastTimestamp.getTime()));
+    }
+}
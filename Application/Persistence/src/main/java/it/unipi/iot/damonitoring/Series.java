@@ -0,0 +1,295 @@
+package it.unipi.iot.damonitoring;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only time series of (timestamp, value) records, stored in segment files of a fixed number of records. A
+ * sparse time index holds the minimum and maximum timestamp of each block of records, so that a range query reads
+ * only the blocks overlapping the range. Records are identified by their position in the series.
+ * <p>
+ * A single process appends (the appends of the process are serialized), any process can read: readers see the
+ * records completely written, the blocks not indexed yet are read sequentially. An append returns once its records
+ * are synchronized on disk.
+ */
+final class Series {
+    static final int RECORD = Long.BYTES + Float.BYTES;
+    private static final int INDEX_ENTRY = 2 * Long.BYTES;
+    private static final int INDEX_READ = 512;
+    private static final String INDEX = "index";
+
+    interface RecordConsumer {
+        void accept(long id, long timestamp, float value);
+    }
+
+    private final Path directory;
+    private final int blockSize;
+    private final long segmentRecords;
+
+    /* Reader state */
+    private volatile long lastSegment = -1;
+    private final Object latestLock = new Object();
+    private long latestScanned;
+    private long latestId = -1;
+    private long latestTimestamp;
+    private float latestValue;
+
+    /* Writer state, opened on the first append */
+    private FileChannel writeChannel;
+    private long writeSegment = -1;
+    private FileChannel indexChannel;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(0);
+    private long count;
+    private long blockMin;
+    private long blockMax;
+
+    /**
+     * @param directory Directory of the series files
+     * @param blockSize Number of records of a block of the index
+     * @param segmentBlocks Number of blocks of a segment file
+     */
+    Series(Path directory, int blockSize, int segmentBlocks) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.blockSize = blockSize;
+        this.segmentRecords = (long) blockSize * segmentBlocks;
+    }
+
+    /**
+     * Number of records completely written, as seen on disk
+     */
+    long count() throws IOException {
+        long last = lastSegment();
+        if(last < 0)
+            return 0;
+        return last * segmentRecords + Files.size(segment(last)) / RECORD;
+    }
+
+    /**
+     * Append records, at once for the readers of this process, and synchronize them on disk
+     * @return Identifier of the first record appended
+     */
+    synchronized long append(long[] timestamps, float[] values, int length) throws IOException {
+        if(writeChannel == null)
+            openWriter();
+
+        long first = count;
+        int offset = 0;
+        while (offset < length){
+            // Records never span two segments
+            long segmentNumber = count / segmentRecords;
+            int chunk = (int) Math.min(length - offset, segmentRecords - count % segmentRecords);
+            if(segmentNumber != writeSegment)
+                openSegment(segmentNumber);
+
+            if(writeBuffer.capacity() < chunk * RECORD)
+                writeBuffer = ByteBuffer.allocate(chunk * RECORD);
+            writeBuffer.clear();
+            ByteBuffer indexBuffer = ByteBuffer.allocate((chunk / blockSize + 1) * INDEX_ENTRY);
+            for(int i = offset; i < offset + chunk; i++){
+                writeBuffer.putLong(timestamps[i]).putFloat(values[i]);
+                long position = count + i - offset;
+                if(position % blockSize == 0){
+                    blockMin = Long.MAX_VALUE;
+                    blockMax = Long.MIN_VALUE;
+                }
+                blockMin = Math.min(blockMin, timestamps[i]);
+                blockMax = Math.max(blockMax, timestamps[i]);
+                if((position + 1) % blockSize == 0)
+                    indexBuffer.putLong(blockMin).putLong(blockMax);
+            }
+
+            // Data before the index entries of its blocks
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining())
+                writeChannel.write(writeBuffer);
+            indexBuffer.flip();
+            while (indexBuffer.hasRemaining())
+                indexChannel.write(indexBuffer);
+            count += chunk;
+            offset += chunk;
+        }
+        // The index is rebuilt from the data on recovery
+        writeChannel.force(false);
+        return first;
+    }
+
+    /**
+     * Read the most recent record: the one of the greatest timestamp, the last appended among equal timestamps. Only
+     * the records appended since the previous call are read.
+     * @return False if the series is empty
+     */
+    boolean latest(RecordConsumer consumer) throws IOException {
+        synchronized (latestLock){
+            long count = count();
+            if(count > latestScanned){
+                read(latestScanned, count - latestScanned, Long.MIN_VALUE, Long.MAX_VALUE, (id, timestamp, value) -> {
+                    if(latestId < 0 || timestamp >= latestTimestamp){
+                        latestId = id;
+                        latestTimestamp = timestamp;
+                        latestValue = value;
+                    }
+                });
+                latestScanned = count;
+            }
+            if(latestId < 0)
+                return false;
+            consumer.accept(latestId, latestTimestamp, latestValue);
+            return true;
+        }
+    }
+
+    /**
+     * Read the records of a time range, in append order
+     * @param from Start of the range in milliseconds (inclusive)
+     * @param to End of the range in milliseconds (exclusive)
+     */
+    void range(long from, long to, RecordConsumer consumer) throws IOException {
+        long count = count();
+        long indexed = 0;
+        Path indexPath = directory.resolve(INDEX);
+        if(Files.exists(indexPath)){
+            try(FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ)){
+                long blocks = Math.min(count / blockSize, index.size() / INDEX_ENTRY);
+                ByteBuffer entries = ByteBuffer.allocate(INDEX_READ * INDEX_ENTRY);
+                for(long block = 0; block < blocks; ){
+                    entries.clear();
+                    entries.limit((int) Math.min(INDEX_READ, blocks - block) * INDEX_ENTRY);
+                    readFully(index, entries, block * INDEX_ENTRY);
+                    entries.flip();
+                    while (entries.hasRemaining()){
+                        long min = entries.getLong();
+                        long max = entries.getLong();
+                        if(max >= from && min < to)
+                            read(block * blockSize, blockSize, from, to, consumer);
+                        block++;
+                    }
+                }
+                indexed = blocks * blockSize;
+            }
+        }
+        // Records not indexed yet
+        read(indexed, count - indexed, from, to, consumer);
+    }
+
+    synchronized void close() throws IOException {
+        if(writeChannel != null){
+            writeChannel.force(false);
+            writeChannel.close();
+            indexChannel.force(false);
+            indexChannel.close();
+            writeChannel = null;
+        }
+    }
+
+    /**
+     * Read the records in a position range, passing the ones of the time range
+     */
+    private void read(long start, long length, long from, long to, RecordConsumer consumer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize * RECORD);
+        long position = start;
+        long end = start + length;
+        while (position < end){
+            long segmentNumber = position / segmentRecords;
+            long segmentEnd = Math.min(end, (segmentNumber + 1) * segmentRecords);
+            try(FileChannel channel = FileChannel.open(segment(segmentNumber), StandardOpenOption.READ)){
+                while (position < segmentEnd){
+                    int records = (int) Math.min(blockSize, segmentEnd - position);
+                    buffer.clear();
+                    buffer.limit(records * RECORD);
+                    readFully(channel, buffer, (position % segmentRecords) * RECORD);
+                    buffer.flip();
+                    for(int i = 0; i < records; i++){
+                        long timestamp = buffer.getLong();
+                        float value = buffer.getFloat();
+                        if(timestamp >= from && timestamp < to)
+                            consumer.accept(position + i, timestamp, value);
+                    }
+                    position += records;
+                }
+            }
+        }
+    }
+
+    /**
+     * Recover the writer state: drop a partially written record and complete the index of the full blocks
+     */
+    private void openWriter() throws IOException {
+        count = count();
+        indexChannel = FileChannel.open(directory.resolve(INDEX), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long blocks = count / blockSize;
+        long indexed = Math.min(indexChannel.size() / INDEX_ENTRY, blocks);
+        indexChannel.truncate(indexed * INDEX_ENTRY);
+        indexChannel.position(indexed * INDEX_ENTRY);
+
+        for(long block = indexed; block <= blocks; block++){
+            long start = block * blockSize;
+            long length = Math.min(blockSize, count - start);
+            blockMin = Long.MAX_VALUE;
+            blockMax = Long.MIN_VALUE;
+            read(start, length, Long.MIN_VALUE, Long.MAX_VALUE, (id, timestamp, value) -> {
+                blockMin = Math.min(blockMin, timestamp);
+                blockMax = Math.max(blockMax, timestamp);
+            });
+            if(length == blockSize){
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY).putLong(blockMin).putLong(blockMax);
+                entry.flip();
+                indexChannel.write(entry);
+            }
+        }
+
+        if(count > 0 && count % segmentRecords != 0)
+            openSegment(count / segmentRecords);
+    }
+
+    private void openSegment(long segmentNumber) throws IOException {
+        if(writeChannel != null){
+            writeChannel.force(false);
+            writeChannel.close();
+        }
+        writeChannel = FileChannel.open(segment(segmentNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        long size = (count - segmentNumber * segmentRecords) * RECORD;
+        writeChannel.truncate(size);
+        writeChannel.position(size);
+        writeSegment = segmentNumber;
+        lastSegment = Math.max(lastSegment, segmentNumber);
+    }
+
+    /**
+     * Number of the last segment file, -1 if the series is empty
+     */
+    private long lastSegment() throws IOException {
+        long last = lastSegment;
+        if(last < 0){
+            try(DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "*.seg")){
+                for(Path segment: segments){
+                    String name = segment.getFileName().toString();
+                    last = Math.max(last, Long.parseLong(name.substring(0, name.length() - 4)));
+                }
+            }
+        }
+        // Segments created by the writer since the last read
+        while (last >= 0 && Files.exists(segment(last + 1)))
+            last++;
+        lastSegment = last;
+        return last;
+    }
+
+    private Path segment(long segmentNumber){
+        return directory.resolve(String.format("%08d.seg", segmentNumber));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()){
+            int read = channel.read(buffer, position);
+            if(read < 0)
+                throw new IOException("Truncated series file");
+            position += read;
+        }
+    }
+}
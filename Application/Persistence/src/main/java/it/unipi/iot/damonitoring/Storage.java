@@ -0,0 +1,365 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.entities.Resource;
+import it.unipi.iot.damonitoring.entities.WaterLevel;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Storage of the measurements and of the resource registry, independent of the backend: {@link DataManager}
+ * (Hibernate over MySQL) or {@link EmbeddedStorage} (local files, no server). The backend in use is selected by
+ * {@link StorageManager}.
+ * <p>
+ * Each operation has an asynchronous variant (suffix "Async") run on the executor of the backend, bounded to the
+ * database connections: callers can overlap the storage with the network I/O and wait for the result with
+ * {@link #await(CompletableFuture)}. Operations served by the in-memory registry complete immediately.
+ */
+public interface Storage {
+
+    /* Measurements */
+
+    /**
+     * Store a batch of measurements in a single operation
+     * @param records FlowRate and WaterLevel objects to store, their record identifiers are set
+     * @throws PersistenceException In case of failure of the operation (no record of the batch is stored), permanent
+     * if the batch cannot be stored by a retry
+     */
+    void recordBatch(Collection<?> records) throws PersistenceException;
+
+    /**
+     * Store flow rate measurements in a single operation
+     * @param flowRates FlowRate objects to store, their record identifiers are set
+     * @throws PersistenceException In case of failure of the operation (no measurement is stored)
+     */
+    void recordFlowRates(Collection<FlowRate> flowRates) throws PersistenceException;
+
+    /**
+     * Store water level measurements in a single operation
+     * @param waterLevels WaterLevel objects to store, their record identifiers are set
+     * @throws PersistenceException In case of failure of the operation (no measurement is stored)
+     */
+    void recordWaterLevels(Collection<WaterLevel> waterLevels) throws PersistenceException;
+
+    /**
+     * Merge partial aggregates of the measurements into the rollups, if kept by the backend. A merge is applied once:
+     * retried with the same source and sequence number, it is skipped if already committed.
+     * @param rollups FlowRateRollup and WaterLevelRollup objects
+     * @param source Identifier of the aggregation issuing the merges
+     * @param sequence Sequence number of the merge, increasing for each source
+     * @throws PersistenceException In case of failure of the operation
+     */
+    void recordRollups(Collection<?> rollups, String source, long sequence) throws PersistenceException;
+
+    /**
+     * Store a new flow rate measurement
+     * @param flowChannel Channel identifier
+     * @param timestamp Timestamp of measurement
+     * @param value Value of measurement
+     * @return FlowRate object stored
+     * @throws PersistenceException In case of failure of the operation
+     */
+    FlowRate recordFlowRate(String flowChannel, Date timestamp, Float value) throws PersistenceException;
+
+    /**
+     * Store a new flow rate measurement of timestamp roughly now
+     */
+    default FlowRate recordFlowRate(String flowChannel, Float value) throws PersistenceException {
+        return recordFlowRate(flowChannel, new Date(), value);
+    }
+
+    /**
+     * Store a new water level measurement
+     * @param value Value of measurement
+     * @param timestamp Timestamp of measurement
+     * @return WaterLevel object stored
+     * @throws PersistenceException In case of failure of the operation
+     */
+    WaterLevel recordWaterLevel(Float value, Date timestamp) throws PersistenceException;
+
+    /**
+     * Store a new water level measurement of timestamp roughly now
+     */
+    default WaterLevel recordWaterLevel(Float value) throws PersistenceException {
+        return recordWaterLevel(value, new Date());
+    }
+
+    /**
+     * Load the last flow rate measurement of the given channel
+     * @param flowChannel Channel used to filter the data
+     * @return FlowRate object, null if the channel has no measurement
+     * @throws PersistenceException In case of failure of the operation
+     */
+    FlowRate retrieveFlowRate(String flowChannel) throws PersistenceException;
+
+    /**
+     * Load the sum of the last flow rate of out channels
+     * @return The sum of the last outflow measurements
+     * @throws PersistenceException In case of failure of the operation
+     */
+    Float retrieveOutFlowRate() throws PersistenceException;
+
+    /**
+     * Load the last water level measurement
+     * @return WaterLevel object, null if there is no measurement
+     * @throws PersistenceException In case of failure of the operation
+     */
+    WaterLevel retrieveWaterLevel() throws PersistenceException;
+
+    /**
+     * Stream the flow rate measurements of a channel in a time range, with constant memory
+     * @param flowChannel Channel used to filter the data
+     * @param from Start of the range (inclusive)
+     * @param to End of the range (exclusive)
+     * @param step Width of the steps in milliseconds (0 to stream the measurements as stored): a measurement is
+     *             produced for each step with data, timestamp at the start of the step and average value
+     * @param consumer Receiver of the measurements, called while the data is read
+     * @throws PersistenceException In case of failure of the operation
+     */
+    void streamFlowRate(String flowChannel, Date from, Date to, long step, Consumer<FlowRate> consumer)
+            throws PersistenceException;
+
+    default void streamFlowRate(String flowChannel, Date from, Date to, Consumer<FlowRate> consumer)
+            throws PersistenceException {
+        streamFlowRate(flowChannel, from, to, 0, consumer);
+    }
+
+    /**
+     * Stream the water level measurements in a time range, with constant memory
+     * @param from Start of the range (inclusive)
+     * @param to End of the range (exclusive)
+     * @param step Width of the steps in milliseconds (0 to stream the measurements as stored)
+     * @param consumer Receiver of the measurements, called while the data is read
+     * @throws PersistenceException In case of failure of the operation
+     */
+    void streamWaterLevel(Date from, Date to, long step, Consumer<WaterLevel> consumer) throws PersistenceException;
+
+    default void streamWaterLevel(Date from, Date to, Consumer<WaterLevel> consumer) throws PersistenceException {
+        streamWaterLevel(from, to, 0, consumer);
+    }
+
+    /**
+     * Load the flow rate measurements of a channel in a time range into columns, without an object per measurement
+     * @param flowChannel Channel used to filter the data
+     * @param from Start of the range (inclusive)
+     * @param to End of the range (exclusive)
+     * @return Timestamps and values, in the order of {@link #streamFlowRate(String, Date, Date, long, Consumer)}
+     * @throws PersistenceException In case of failure of the operation
+     */
+    MeasurementColumns loadFlowRate(String flowChannel, Date from, Date to) throws PersistenceException;
+
+    /**
+     * Load the water level measurements in a time range into columns, without an object per measurement
+     * @param from Start of the range (inclusive)
+     * @param to End of the range (exclusive)
+     * @return Timestamps and values, in the order of {@link #streamWaterLevel(Date, Date, long, Consumer)}
+     * @throws PersistenceException In case of failure of the operation
+     */
+    MeasurementColumns loadWaterLevel(Date from, Date to) throws PersistenceException;
+
+    /* Resource registry */
+
+    /**
+     * Add the list of resources in the registry, waiting for the storage to be updated
+     * @param resources List of resources to register
+     * @throws PersistenceException In case of failure of the operation
+     */
+    void addResources(List<Resource> resources) throws PersistenceException;
+
+    /**
+     * Add the list of resources in the registry, the storage may be updated in background
+     * @param resources List of resources to register
+     * @throws PersistenceException If a resource has no name
+     */
+    void registerResources(List<Resource> resources) throws PersistenceException;
+
+    /**
+     * In-memory registry, kept up to date by the registrations
+     * @return Registry of resources
+     */
+    ResourceRegistry getResourceRegistry();
+
+    /**
+     * Retrieve a registered resource
+     * @param resName Resource name used to identify the target resource
+     * @return The resource, null if not registered
+     */
+    Resource lookupResource(String resName);
+
+    /**
+     * Load all "gate" resource available in the registry
+     * @return List of "gate" resources
+     */
+    List<Resource> gateResources();
+
+    /**
+     * Load all "alarm" resource available in the registry
+     * @return List of "alarm" resources
+     */
+    List<Resource> alarmResources();
+
+    /**
+     * Set the value of the specified resource
+     * @param resName Resource name used to identify the target resource
+     * @param value Value to assign to the resource
+     * @throws PersistenceException In case of failure of the operation
+     */
+    void setResourceValue(String resName, Integer value) throws PersistenceException;
+
+    /**
+     * Retrieve the last value of the resource stored in the registry
+     * @param resName Resource name used to identify the target resource
+     * @return Value of the resource
+     * @throws PersistenceException If the resource is not registered
+     */
+    Integer getResourceValue(String resName) throws PersistenceException;
+
+    /* Asynchronous variants */
+
+    /**
+     * Executor of the asynchronous operations, with as many threads as the connections of the backend and a bounded
+     * queue: an operation submitted when the queue is full completes exceptionally with a PersistenceException
+     */
+    Executor getAsyncExecutor();
+
+    default CompletableFuture<Void> recordBatchAsync(Collection<?> records){
+        return AsyncCall.submit(getAsyncExecutor(), () -> {
+            recordBatch(records);
+            return null;
+        });
+    }
+
+    default CompletableFuture<Void> recordFlowRatesAsync(Collection<FlowRate> flowRates){
+        return AsyncCall.submit(getAsyncExecutor(), () -> {
+            recordFlowRates(flowRates);
+            return null;
+        });
+    }
+
+    default CompletableFuture<Void> recordWaterLevelsAsync(Collection<WaterLevel> waterLevels){
+        return AsyncCall.submit(getAsyncExecutor(), () -> {
+            recordWaterLevels(waterLevels);
+            return null;
+        });
+    }
+
+    default CompletableFuture<Void> recordRollupsAsync(Collection<?> rollups, String source, long sequence){
+        return AsyncCall.submit(getAsyncExecutor(), () -> {
+            recordRollups(rollups, source, sequence);
+            return null;
+        });
+    }
+
+    default CompletableFuture<FlowRate> recordFlowRateAsync(String flowChannel, Date timestamp, Float value){
+        return AsyncCall.submit(getAsyncExecutor(), () -> recordFlowRate(flowChannel, timestamp, value));
+    }
+
+    default CompletableFuture<WaterLevel> recordWaterLevelAsync(Float value, Date timestamp){
+        return AsyncCall.submit(getAsyncExecutor(), () -> recordWaterLevel(value, timestamp));
+    }
+
+    default CompletableFuture<FlowRate> retrieveFlowRateAsync(String flowChannel){
+        return AsyncCall.submit(getAsyncExecutor(), () -> retrieveFlowRate(flowChannel));
+    }
+
+    default CompletableFuture<Float> retrieveOutFlowRateAsync(){
+        return AsyncCall.submit(getAsyncExecutor(), this::retrieveOutFlowRate);
+    }
+
+    default CompletableFuture<WaterLevel> retrieveWaterLevelAsync(){
+        return AsyncCall.submit(getAsyncExecutor(), this::retrieveWaterLevel);
+    }
+
+    /**
+     * Stream a range of flow rate measurements on the executor, the consumer is called by its thread
+     */
+    default CompletableFuture<Void> streamFlowRateAsync(String flowChannel, Date from, Date to, long step,
+                                                        Consumer<FlowRate> consumer){
+        return AsyncCall.submit(getAsyncExecutor(), () -> {
+            streamFlowRate(flowChannel, from, to, step, consumer);
+            return null;
+        });
+    }
+
+    /**
+     * Stream a range of water level measurements on the executor, the consumer is called by its thread
+     */
+    default CompletableFuture<Void> streamWaterLevelAsync(Date from, Date to, long step, Consumer<WaterLevel> consumer){
+        return AsyncCall.submit(getAsyncExecutor(), () -> {
+            streamWaterLevel(from, to, step, consumer);
+            return null;
+        });
+    }
+
+    default CompletableFuture<MeasurementColumns> loadFlowRateAsync(String flowChannel, Date from, Date to){
+        return AsyncCall.submit(getAsyncExecutor(), () -> loadFlowRate(flowChannel, from, to));
+    }
+
+    default CompletableFuture<MeasurementColumns> loadWaterLevelAsync(Date from, Date to){
+        return AsyncCall.submit(getAsyncExecutor(), () -> loadWaterLevel(from, to));
+    }
+
+    default CompletableFuture<Void> addResourcesAsync(List<Resource> resources){
+        return AsyncCall.submit(getAsyncExecutor(), () -> {
+            addResources(resources);
+            return null;
+        });
+    }
+
+    default CompletableFuture<Void> setResourceValueAsync(String resName, Integer value){
+        return AsyncCall.submit(getAsyncExecutor(), () -> {
+            setResourceValue(resName, value);
+            return null;
+        });
+    }
+
+    /**
+     * Retrieve a registered resource from the in-memory registry, completed immediately
+     */
+    default CompletableFuture<Resource> lookupResourceAsync(String resName){
+        return CompletableFuture.completedFuture(lookupResource(resName));
+    }
+
+    /**
+     * Retrieve the last value of a resource from the in-memory registry, completed immediately
+     */
+    default CompletableFuture<Integer> getResourceValueAsync(String resName){
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        try {
+            future.complete(getResourceValue(resName));
+        } catch (PersistenceException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Wait for the result of an asynchronous operation
+     * @param future Future returned by an asynchronous operation
+     * @return Result of the operation
+     * @throws PersistenceException In case of failure of the operation, or if the wait is interrupted
+     */
+    static <T> T await(CompletableFuture<T> future) throws PersistenceException {
+        try {
+            return future.get();
+        } catch (ExecutionException | CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof PersistenceException)
+                throw (PersistenceException) cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new PersistenceException(String.valueOf(cause));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted");
+        }
+    }
+}
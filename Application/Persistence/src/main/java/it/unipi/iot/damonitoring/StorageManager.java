@@ -0,0 +1,56 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Access point to the storage backend configured in storage.properties (overridable by the "storageBackend"
+ * system property): "hibernate" for {@link DataManager} over MySQL, "embedded" for {@link EmbeddedStorage}.
+ */
+public final class StorageManager {
+    private static final String CONFIG_FILE = "/storage.properties";
+    private static final String EMBEDDED = "embedded";
+    private static Storage instance;
+
+    private StorageManager(){
+    }
+
+    public static synchronized Storage getInstance() throws PersistenceException {
+        // The session factory of DataManager is reopened if closed
+        if(instance instanceof DataManager)
+            return instance = DataManager.getInstance();
+        if(instance == null){
+            try(InputStream configFileStream = StorageManager.class.getResourceAsStream(CONFIG_FILE)){
+                Properties properties = new Properties();
+                properties.load(configFileStream);
+
+                String backend = System.getProperty("storageBackend", properties.getProperty("backend"));
+                if(backend.equalsIgnoreCase(EMBEDDED)){
+                    instance = new EmbeddedStorage(
+                            Paths.get(properties.getProperty("embeddedDirectory")),
+                            Integer.parseInt(properties.getProperty("embeddedBlockSize")),
+                            Integer.parseInt(properties.getProperty("embeddedSegmentBlocks")),
+                            Long.parseLong(properties.getProperty("embeddedRefreshPeriod"))
+                    );
+                }
+                else instance = DataManager.getInstance();
+            }
+            catch (IOException ex){
+                throw new PersistenceException("Impossible to open the storage: " + ex.getMessage());
+            }
+        }
+        return instance;
+    }
+
+    public static synchronized void close() throws PersistenceException {
+        if(instance instanceof EmbeddedStorage)
+            ((EmbeddedStorage) instance).close();
+        else if(instance != null)
+            DataManager.close();
+        instance = null;
+    }
+}
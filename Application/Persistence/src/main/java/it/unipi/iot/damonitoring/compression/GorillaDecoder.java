@@ -0,0 +1,102 @@
+package it.unipi.iot.damonitoring.compression;
+
+/**
+ * Decoder of a block written by {@link GorillaEncoder}, reading a sample per call of {@link #next()}
+ */
+public final class GorillaDecoder {
+    private final byte[] block;
+    private final int count;
+    private int position = GorillaEncoder.HEADER;
+    private long buffer;
+    private int bufferedBits;
+    private int read;
+
+    private long timestamp;
+    private long delta;
+    private int value;
+    private int leading;
+    private int trailing;
+
+    public GorillaDecoder(byte[] block){
+        if(block.length < GorillaEncoder.HEADER)
+            throw new IllegalArgumentException("Truncated block");
+        this.block = block;
+        this.count = (block[0] & 0xFF) << 24 | (block[1] & 0xFF) << 16 | (block[2] & 0xFF) << 8 | (block[3] & 0xFF);
+    }
+
+    /**
+     * Number of samples of the block
+     */
+    public int size(){
+        return count;
+    }
+
+    /**
+     * Decode the next sample
+     * @return False if all the samples have been read
+     */
+    public boolean next(){
+        if(read == count)
+            return false;
+        if(read == 0){
+            timestamp = read(64);
+            value = (int) read(32);
+        }
+        else {
+            long deltaOfDelta;
+            if(read(1) == 0)
+                deltaOfDelta = 0;
+            else if(read(1) == 0)
+                deltaOfDelta = read(7) - 63;
+            else if(read(1) == 0)
+                deltaOfDelta = read(9) - 255;
+            else if(read(1) == 0)
+                deltaOfDelta = read(12) - 2047;
+            else
+                deltaOfDelta = read(64);
+            delta += deltaOfDelta;
+            timestamp += delta;
+
+            if(read(1) == 1){
+                if(read(1) == 1){
+                    leading = (int) read(5);
+                    int meaningful = (int) read(5) + 1;
+                    trailing = 32 - leading - meaningful;
+                }
+                value ^= (int) (read(32 - leading - trailing) << trailing);
+            }
+        }
+        read++;
+        return true;
+    }
+
+    /**
+     * Timestamp in milliseconds of the current sample
+     */
+    public long getTimestamp(){
+        return timestamp;
+    }
+
+    /**
+     * Value of the current sample
+     */
+    public float getValue(){
+        return Float.intBitsToFloat(value);
+    }
+
+    /**
+     * Read the given number of bits, most significant first
+     */
+    private long read(int length){
+        if(length > 56)
+            return read(length - 32) << 32 | read(32);
+        while (bufferedBits < length){
+            if(position >= block.length)
+                throw new IllegalArgumentException("Truncated block");
+            buffer = buffer << 8 | (block[position++] & 0xFF);
+            bufferedBits += 8;
+        }
+        bufferedBits -= length;
+        return (buffer >>> bufferedBits) & ((1L << length) - 1);
+    }
+}
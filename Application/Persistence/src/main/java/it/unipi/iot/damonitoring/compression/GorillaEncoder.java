@@ -0,0 +1,153 @@
+package it.unipi.iot.damonitoring.compression;
+
+import java.util.Arrays;
+
+/**
+ * Encoder of a compressed block of (timestamp, value) samples, in the format of Facebook Gorilla: timestamps are
+ * stored as delta of deltas (a single bit for a regular sampling period), values as the XOR with the previous value
+ * (a single bit for an unchanged value, the meaningful bits otherwise). Slowly changing series sampled at a regular
+ * period take a few bits per sample instead of the 12 bytes of the raw timestamp and value.
+ * <p>
+ * Block layout: number of samples (4 bytes), first timestamp (64 bits), first value (32 bits), then the encoded
+ * samples, bit-packed with the most significant bit first.
+ */
+public final class GorillaEncoder {
+    static final int HEADER = Integer.BYTES;
+
+    private byte[] buffer;
+    private int position = HEADER;
+    private long pending;
+    private int pendingBits;
+    private int count;
+
+    private long previousTimestamp;
+    private long previousDelta;
+    private int previousValue;
+    private int previousLeading = -1;
+    private int previousTrailing;
+
+    public GorillaEncoder(){
+        this(1024);
+    }
+
+    /**
+     * @param capacity Initial size of the buffer in bytes
+     */
+    public GorillaEncoder(int capacity){
+        buffer = new byte[Math.max(capacity, HEADER + 12)];
+    }
+
+    /**
+     * Append a sample to the block
+     * @param timestamp Timestamp of the sample in milliseconds
+     * @param value Value of the sample
+     */
+    public void append(long timestamp, float value){
+        int valueBits = Float.floatToRawIntBits(value);
+        if(count == 0){
+            write(timestamp, 64);
+            write(valueBits, 32);
+        }
+        else {
+            // Delta of deltas, biased into the unsigned range of its bucket
+            long delta = timestamp - previousTimestamp;
+            long deltaOfDelta = delta - previousDelta;
+            if(deltaOfDelta == 0)
+                write(0, 1);
+            else if(deltaOfDelta >= -63 && deltaOfDelta <= 64)
+                write(0b10L << 7 | (deltaOfDelta + 63), 9);
+            else if(deltaOfDelta >= -255 && deltaOfDelta <= 256)
+                write(0b110L << 9 | (deltaOfDelta + 255), 12);
+            else if(deltaOfDelta >= -2047 && deltaOfDelta <= 2048)
+                write(0b1110L << 12 | (deltaOfDelta + 2047), 16);
+            else {
+                write(0b1111, 4);
+                write(deltaOfDelta, 64);
+            }
+            previousDelta = delta;
+
+            // XOR with the previous value
+            int xor = valueBits ^ previousValue;
+            if(xor == 0)
+                write(0, 1);
+            else {
+                int leading = Integer.numberOfLeadingZeros(xor);
+                int trailing = Integer.numberOfTrailingZeros(xor);
+                if(previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing){
+                    // Meaningful bits within the window of the previous value
+                    write(0b10, 2);
+                    write((xor & 0xFFFFFFFFL) >>> previousTrailing, 32 - previousLeading - previousTrailing);
+                }
+                else {
+                    int meaningful = 32 - leading - trailing;
+                    write(0b11L << 10 | (long) leading << 5 | (meaningful - 1), 12);
+                    write((xor & 0xFFFFFFFFL) >>> trailing, meaningful);
+                    previousLeading = leading;
+                    previousTrailing = trailing;
+                }
+            }
+        }
+        previousTimestamp = timestamp;
+        previousValue = valueBits;
+        count++;
+    }
+
+    /**
+     * Number of samples of the block
+     */
+    public int size(){
+        return count;
+    }
+
+    /**
+     * Size of the encoded block in bytes
+     */
+    public int sizeInBytes(){
+        return position + (pendingBits > 0 ? 1 : 0);
+    }
+
+    /**
+     * Copy of the encoded block
+     */
+    public byte[] toByteArray(){
+        byte[] block = Arrays.copyOf(buffer, sizeInBytes());
+        if(pendingBits > 0)
+            block[position] = (byte) (pending << (8 - pendingBits));
+        block[0] = (byte) (count >>> 24);
+        block[1] = (byte) (count >>> 16);
+        block[2] = (byte) (count >>> 8);
+        block[3] = (byte) count;
+        return block;
+    }
+
+    /**
+     * Start a new block, reusing the buffer
+     */
+    public void reset(){
+        position = HEADER;
+        pending = 0;
+        pendingBits = 0;
+        count = 0;
+        previousDelta = 0;
+        previousLeading = -1;
+    }
+
+    /**
+     * Write the given number of low bits of the value, most significant first
+     */
+    private void write(long value, int length){
+        if(length > 56){
+            write(value >>> 32, length - 32);
+            write(value, 32);
+            return;
+        }
+        if(position + Long.BYTES > buffer.length)
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        pending = pending << length | (value & ((1L << length) - 1));
+        pendingBits += length;
+        while (pendingBits >= 8){
+            pendingBits -= 8;
+            buffer[position++] = (byte) (pending >>> pendingBits);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package it.unipi.iot.damonitoring.entities;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * Latest flow rate measurement of a channel, kept up to date by every insert of a measurement
+ */
+@Entity
+@Table(name = "flowRateLatest")
+public class FlowRateLatest {
+    @Id
+    @Column(name = "flowChannel")
+    private String flowChannel;
+    @Column(name = "recordId")
+    private Integer recordId;
+    @Column(name = "timestamp")
+    private Date timestamp;
+    @Column(name = "value")
+    private Float value;
+
+    public String getFlowChannel() {
+        return flowChannel;
+    }
+
+    public void setFlowChannel(String flowChannel) {
+        this.flowChannel = flowChannel;
+    }
+
+    public Integer getRecordId() {
+        return recordId;
+    }
+
+    public void setRecordId(Integer recordId) {
+        this.recordId = recordId;
+    }
+
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public Float getValue() {
+        return value;
+    }
+
+    public void setValue(Float value) {
+        this.value = value;
+    }
+
+    /**
+     * Copy of the measurement as a FlowRate object
+     */
+    public FlowRate toFlowRate() {
+        FlowRate flowRate = new FlowRate();
+        flowRate.setRecordId(recordId);
+        flowRate.setFlowChannel(flowChannel);
+        flowRate.setTimestamp(timestamp);
+        flowRate.setValue(value);
+        return flowRate;
+    }
+
+    @Override
+    public String toString() {
+        return "FlowRateLatest{" +
+                "flowChannel='" + flowChannel + '\'' +
+                ", recordId=" + recordId +
+                ", timestamp=" + timestamp +
+                ", value=" + value +
+                '}';
+    }
+}
@@ -0,0 +1,151 @@
+package it.unipi.iot.damonitoring.entities;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Aggregate of the flow rate measurements of a channel over a time bucket (e.g. 1 minute, 1 hour)
+ */
+@Entity
+@Table(name="flowRateRollup")
+@IdClass(FlowRateRollup.Key.class)
+public class FlowRateRollup {
+    @Id
+    @Column(name = "flowChannel")
+    private String flowChannel;
+    @Id
+    @Column(name = "resolution")
+    private Integer resolution;
+    @Id
+    @Column(name = "bucket")
+    private Date bucket;
+    @Column(name = "minimum")
+    private Float minimum;
+    @Column(name = "maximum")
+    private Float maximum;
+    @Column(name = "average")
+    private Float average;
+    @Column(name = "samples")
+    private Integer samples;
+    @Column(name = "lastValue")
+    private Float lastValue;
+    @Column(name = "lastTimestamp")
+    private Date lastTimestamp;
+
+    public String getFlowChannel() {
+        return flowChannel;
+    }
+
+    public void setFlowChannel(String flowChannel) {
+        this.flowChannel = flowChannel;
+    }
+
+    /**
+     * Width of the bucket in seconds
+     */
+    public Integer getResolution() {
+        return resolution;
+    }
+
+    public void setResolution(Integer resolution) {
+        this.resolution = resolution;
+    }
+
+    /**
+     * Start time of the bucket
+     */
+    public Date getBucket() {
+        return bucket;
+    }
+
+    public void setBucket(Date bucket) {
+        this.bucket = bucket;
+    }
+
+    public Float getMinimum() {
+        return minimum;
+    }
+
+    public void setMinimum(Float minimum) {
+        this.minimum = minimum;
+    }
+
+    public Float getMaximum() {
+        return maximum;
+    }
+
+    public void setMaximum(Float maximum) {
+        this.maximum = maximum;
+    }
+
+    public Float getAverage() {
+        return average;
+    }
+
+    public void setAverage(Float average) {
+        this.average = average;
+    }
+
+    public Integer getSamples() {
+        return samples;
+    }
+
+    public void setSamples(Integer samples) {
+        this.samples = samples;
+    }
+
+    public Float getLastValue() {
+        return lastValue;
+    }
+
+    public void setLastValue(Float lastValue) {
+        this.lastValue = lastValue;
+    }
+
+    public Date getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public void setLastTimestamp(Date lastTimestamp) {
+        this.lastTimestamp = lastTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "FlowRateRollup{" +
+                "flowChannel='" + flowChannel + '\'' +
+                ", resolution=" + resolution +
+                ", bucket=" + bucket +
+                ", minimum=" + minimum +
+                ", maximum=" + maximum +
+                ", average=" + average +
+                ", samples=" + samples +
+                ", lastValue=" + lastValue +
+                ", lastTimestamp=" + lastTimestamp +
+                '}';
+    }
+
+    public static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String flowChannel;
+        private Integer resolution;
+        private Date bucket;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return Objects.equals(flowChannel, key.flowChannel) && Objects.equals(resolution, key.resolution)
+                    && Objects.equals(bucket, key.bucket);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(flowChannel, resolution, bucket);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package it.unipi.iot.damonitoring.entities;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * Archived measurements of a series (a flow rate channel or the water level), sealed in a compressed block
+ * (see {@link it.unipi.iot.damonitoring.compression.GorillaEncoder})
+ */
+@Entity
+@Table(name = "measurementBlock", indexes = @Index(name = "measurementBlock_series_time",
+        columnList = "series, startTime, endTime"))
+public class MeasurementBlock {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Integer blockId;
+    @Column(name = "series")
+    private String series;
+    @Column(name = "startTime")
+    private Date startTime;
+    @Column(name = "endTime")
+    private Date endTime;
+    @Column(name = "samples")
+    private Integer samples;
+    @Lob
+    @Column(name = "data", length = 16777215)
+    private byte[] data;
+
+    public Integer getBlockId() {
+        return blockId;
+    }
+
+    public void setBlockId(Integer blockId) {
+        this.blockId = blockId;
+    }
+
+    /**
+     * Series of the block: "flowRate/" followed by the channel, or "waterLevel"
+     */
+    public String getSeries() {
+        return series;
+    }
+
+    public void setSeries(String series) {
+        this.series = series;
+    }
+
+    /**
+     * Timestamp of the first measurement of the block
+     */
+    public Date getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(Date startTime) {
+        this.startTime = startTime;
+    }
+
+    /**
+     * Timestamp of the last measurement of the block
+     */
+    public Date getEndTime() {
+        return endTime;
+    }
+
+    public void setEndTime(Date endTime) {
+        this.endTime = endTime;
+    }
+
+    public Integer getSamples() {
+        return samples;
+    }
+
+    public void setSamples(Integer samples) {
+        this.samples = samples;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+
+    @Override
+    public String toString() {
+        return "MeasurementBlock{" +
+                "blockId=" + blockId +
+                ", series='" + series + '\'' +
+                ", startTime=" + startTime +
+                ", endTime=" + endTime +
+                ", samples=" + samples +
+                '}';
+    }
+}
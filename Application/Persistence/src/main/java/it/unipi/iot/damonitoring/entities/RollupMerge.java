@@ -0,0 +1,41 @@
+package it.unipi.iot.damonitoring.entities;
+
+import javax.persistence.*;
+
+/**
+ * Sequence number of the last merge of partial aggregates committed by a source (an aggregation of a Collector run),
+ * so that a merge retried after a failure of unknown outcome is not applied twice to the rollups.
+ */
+@Entity
+@Table(name = "rollupMerge")
+public class RollupMerge {
+    @Id
+    @Column(name = "source", length = 36)
+    private String source;
+    @Column(name = "sequence")
+    private Long sequence;
+
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    public Long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
+
+    @Override
+    public String toString() {
+        return "RollupMerge{" +
+                "source='" + source + '\'' +
+                ", sequence=" + sequence +
+                '}';
+    }
+}
@@ -0,0 +1,76 @@
+package it.unipi.iot.damonitoring.entities;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * Latest water level measurement, kept up to date by every insert of a measurement. The table holds a single row,
+ * of identifier {@link #SINGLETON}.
+ */
+@Entity
+@Table(name = "waterLevelLatest")
+public class WaterLevelLatest {
+    public static final Integer SINGLETON = 0;
+
+    @Id
+    @Column(name = "id")
+    private Integer id;
+    @Column(name = "recordId")
+    private Integer recordId;
+    @Column(name = "timestamp")
+    private Date timestamp;
+    @Column(name = "value")
+    private Float value;
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public Integer getRecordId() {
+        return recordId;
+    }
+
+    public void setRecordId(Integer recordId) {
+        this.recordId = recordId;
+    }
+
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public Float getValue() {
+        return value;
+    }
+
+    public void setValue(Float value) {
+        this.value = value;
+    }
+
+    /**
+     * Copy of the measurement as a WaterLevel object
+     */
+    public WaterLevel toWaterLevel() {
+        WaterLevel waterLevel = new WaterLevel();
+        waterLevel.setRecordId(recordId);
+        waterLevel.setTimestamp(timestamp);
+        waterLevel.setValue(value);
+        return waterLevel;
+    }
+
+    @Override
+    public String toString() {
+        return "WaterLevelLatest{" +
+                "recordId=" + recordId +
+                ", timestamp=" + timestamp +
+                ", value=" + value +
+                '}';
+    }
+}
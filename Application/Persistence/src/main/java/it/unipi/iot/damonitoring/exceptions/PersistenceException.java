@@ -1,7 +1,22 @@
 package it.unipi.iot.damonitoring.exceptions;
 
 public class PersistenceException extends Exception{
+    private final boolean permanent;
+
     public PersistenceException(String message){
+        this(message, false);
+    }
+
+    /**
+     * @param message Description of the failure
+     * @param permanent True if retrying the same operation cannot succeed (invalid data, constraint violation)
+     */
+    public PersistenceException(String message, boolean permanent){
         super(message);
+        this.permanent = permanent;
+    }
+
+    public boolean isPermanent() {
+        return permanent;
     }
 }
@@ -0,0 +1,502 @@
+package it.unipi.iot.damonitoring.senml;
+
+import java.io.IOException;
+
+/**
+ * Streaming SenML-CBOR (RFC 8428, section 6) decoder. Reads the binary payload in place and fills the same reusable
+ * {@link SenMLPack} of the JSON decoder, without allocating once the pack buffers are warm.
+ * <p>
+ * The pack is either the standard array of records, whose base fields apply to the following records, or a single
+ * record map, optionally holding the entries in an "e" array as the JSON records of the motes. Labels are accepted
+ * both as the integers of RFC 8428 and as text; the same fields of {@link SenMLDecoder} are decoded.
+ * <p>
+ * An instance keeps the cursor state of the current decoding, hence it must not be shared between threads.
+ */
+public final class SenMLCborDecoder {
+    /* RFC 8428 labels */
+    private static final int BASE_NAME = -2;
+    private static final int BASE_TIME = -3;
+    private static final int BASE_UNIT = -4;
+    private static final int BASE_VALUE = -5;
+    private static final int NAME = 0;
+    private static final int UNIT = 1;
+    private static final int VALUE = 2;
+    private static final int TIME = 6;
+    private static final int ENTRIES = Integer.MIN_VALUE;
+    private static final int UNKNOWN = Integer.MAX_VALUE;
+
+    /* Major types */
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1;
+    private static final int BYTES = 2;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int TAG = 6;
+    private static final int SIMPLE = 7;
+
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xFF;
+
+    /* Cursor */
+    private byte[] buffer;
+    private int position;
+    private int major;
+    private int info;
+    private long argument;
+
+    /**
+     * Decode a SenML-CBOR pack in the target pack, overwriting its content
+     * @param payload Raw SenML-CBOR pack
+     * @param pack Pack filled with the decoded records
+     * @throws IOException In case of malformed pack
+     */
+    public void decode(byte[] payload, SenMLPack pack) throws IOException {
+        buffer = payload;
+        position = 0;
+        pack.clear();
+        try {
+            readHead();
+            if(major == ARRAY){
+                long records = length();
+                while (hasNext(records--)){
+                    readHead();
+                    readRecord(pack, true);
+                }
+            }
+            else {
+                readRecord(pack, true);
+            }
+            if(position != buffer.length)
+                throw error("Trailing data");
+        }
+        catch (ArrayIndexOutOfBoundsException ex){
+            throw new IOException("Unexpected end of record");
+        }
+        finally {
+            buffer = null;
+        }
+    }
+
+    /**
+     * Compute the hash of the sensor key (base name and name of the first measurement) scanning the raw pack,
+     * without decoding it. The hash is the same of {@link SenMLDecoder#sensorHash} for the same sensor key.
+     * @param payload Raw SenML-CBOR pack
+     * @return Hash of the sensor key
+     * @throws IOException In case of malformed pack
+     */
+    public int sensorHash(byte[] payload) throws IOException {
+        buffer = payload;
+        position = 0;
+        int baseNameHash = 0;
+        int nameHash = 0;
+        boolean baseNameFound = false;
+        boolean nameSet = false;
+        try {
+            readHead();
+            if(major != ARRAY)
+                return hashRecord();
+
+            long records = length();
+            while (hasNext(records--)){
+                readHead();
+                if(major != MAP)
+                    throw error("Expected record");
+                long fields = length();
+                while (hasNext(fields--)){
+                    int label = readLabel();
+                    if(label == BASE_NAME && !baseNameFound){
+                        baseNameHash = hashString();
+                        baseNameFound = true;
+                    }
+                    else if(label == NAME && !nameSet){
+                        nameHash = hashString();
+                        nameSet = true;
+                    }
+                    else {
+                        readHead();
+                        skipItem();
+                    }
+                }
+                if(nameSet)
+                    break;
+            }
+            return 31 * baseNameHash + nameHash;
+        }
+        catch (ArrayIndexOutOfBoundsException ex){
+            throw new IOException("Unexpected end of record");
+        }
+        finally {
+            buffer = null;
+        }
+    }
+
+    /**
+     * Decode a record map, whose head has already been read. The base fields of a pack record apply to itself and to
+     * the following records, or to all its "e" entries; entry records are resolved by the record holding them.
+     */
+    private void readRecord(SenMLPack pack, boolean packRecord) throws IOException {
+        if(major != MAP)
+            throw error("Expected record");
+
+        int index = -1;
+        int entriesFrom = -1;
+        int entriesTo = -1;
+        boolean hasValue = false;
+        long fields = length();
+        while (hasNext(fields--)){
+            int label = readLabel();
+            if(!packRecord && label < 0 && label != UNKNOWN)
+                label = UNKNOWN;
+            switch (label){
+                case BASE_NAME:
+                    readString(pack.baseName());
+                    break;
+                case BASE_UNIT:
+                    readString(pack.baseUnit());
+                    break;
+                case BASE_TIME:
+                    pack.setBaseTime(readNumber());
+                    break;
+                case BASE_VALUE:
+                    pack.setBaseValue(readNumber());
+                    break;
+                case ENTRIES:
+                    entriesFrom = pack.size();
+                    readEntries(pack);
+                    entriesTo = pack.size();
+                    break;
+                case NAME:
+                    index = (index < 0) ? pack.addEntry() : index;
+                    readString(pack.name(index));
+                    break;
+                case UNIT:
+                    index = (index < 0) ? pack.addEntry() : index;
+                    readString(pack.unit(index));
+                    break;
+                case TIME:
+                    index = (index < 0) ? pack.addEntry() : index;
+                    pack.setTime(index, readNumber());
+                    break;
+                case VALUE:
+                    index = (index < 0) ? pack.addEntry() : index;
+                    pack.setValue(index, readNumber());
+                    hasValue = true;
+                    break;
+                default:
+                    readHead();
+                    skipItem();
+            }
+        }
+        if(index >= 0 && (!hasValue || pack.name(index).length() == 0))
+            throw error("Incomplete measurement");
+        if(packRecord){
+            if(index >= 0)
+                pack.resolve(index, index + 1);
+            if(entriesFrom >= 0)
+                pack.resolve(entriesFrom, entriesTo);
+        }
+    }
+
+    private void readEntries(SenMLPack pack) throws IOException {
+        readHead();
+        if(major != ARRAY)
+            throw error("Expected entries");
+        long entries = length();
+        while (hasNext(entries--)){
+            readHead();
+            readRecord(pack, false);
+        }
+    }
+
+    private int hashRecord() throws IOException {
+        if(major != MAP)
+            throw error("Expected record");
+        int baseNameHash = 0;
+        int nameHash = 0;
+        long fields = length();
+        while (hasNext(fields--)){
+            int label = readLabel();
+            if(label == BASE_NAME){
+                baseNameHash = hashString();
+            }
+            else if(label == ENTRIES){
+                readHead();
+                if(major != ARRAY)
+                    throw error("Expected entries");
+                long entries = length();
+                boolean first = true;
+                while (hasNext(entries--)){
+                    readHead();
+                    if(first && major == MAP){
+                        long entryFields = length();
+                        while (hasNext(entryFields--)){
+                            if(readLabel() == NAME){
+                                nameHash = hashString();
+                            }
+                            else {
+                                readHead();
+                                skipItem();
+                            }
+                        }
+                        first = false;
+                    }
+                    else {
+                        skipItem();
+                    }
+                }
+            }
+            else {
+                readHead();
+                skipItem();
+            }
+        }
+        return 31 * baseNameHash + nameHash;
+    }
+
+    /* Structure */
+
+    /**
+     * Read the initial byte and the argument of the next data item, skipping its tags
+     */
+    private void readHead() throws IOException {
+        do {
+            int initial = buffer[position++] & 0xFF;
+            major = initial >>> 5;
+            info = initial & 0x1F;
+            if(info < 24)
+                argument = info;
+            else if(info == 24)
+                argument = readUnsigned(1);
+            else if(info == 25)
+                argument = readUnsigned(2);
+            else if(info == 26)
+                argument = readUnsigned(4);
+            else if(info == 27)
+                argument = readUnsigned(8);
+            else if(info == INDEFINITE && major != UNSIGNED && major != NEGATIVE && major != TAG)
+                argument = -1;
+            else
+                throw error("Invalid additional information");
+        } while (major == TAG);
+    }
+
+    private long readUnsigned(int bytes){
+        long value = 0;
+        for(int i = 0; i < bytes; i++)
+            value = (value << 8) | (buffer[position++] & 0xFF);
+        return value;
+    }
+
+    /**
+     * Number of items of the array or pairs of the map just read, -1 if indefinite
+     */
+    private long length() throws IOException {
+        if(argument > Integer.MAX_VALUE)
+            throw error("Length not supported");
+        return argument;
+    }
+
+    /**
+     * Check whether a container has further items, consuming the break of the indefinite ones
+     */
+    private boolean hasNext(long remaining){
+        if(remaining >= 0)
+            return remaining > 0;
+        if((buffer[position] & 0xFF) == BREAK){
+            position++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read a map key, either an RFC 8428 integer label or its text name
+     */
+    private int readLabel() throws IOException {
+        readHead();
+        if(major == UNSIGNED)
+            return (argument <= 32) ? (int) argument : UNKNOWN;
+        if(major == NEGATIVE)
+            return (argument <= 32) ? (int) (-1 - argument) : UNKNOWN;
+        if(major != TEXT)
+            throw error("Invalid label");
+        if(argument < 0){
+            skipItem();
+            return UNKNOWN;
+        }
+
+        int start = position;
+        int length = (int) length();
+        position += length;
+        if(position > buffer.length)
+            throw new ArrayIndexOutOfBoundsException();
+        if(length == 1){
+            switch (buffer[start]){
+                case 'n': return NAME;
+                case 'u': return UNIT;
+                case 't': return TIME;
+                case 'v': return VALUE;
+                case 'e': return ENTRIES;
+            }
+        }
+        else if(length == 2 && buffer[start] == 'b'){
+            switch (buffer[start + 1]){
+                case 'n': return BASE_NAME;
+                case 'u': return BASE_UNIT;
+                case 't': return BASE_TIME;
+                case 'v': return BASE_VALUE;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Skip the data item whose head has already been read
+     */
+    private void skipItem() throws IOException {
+        switch (major){
+            case BYTES:
+            case TEXT:
+                if(argument >= 0){
+                    position += (int) length();
+                }
+                else {
+                    while ((buffer[position] & 0xFF) != BREAK){
+                        readHead();
+                        position += (int) length();
+                    }
+                    position++;
+                }
+                break;
+            case ARRAY:
+            case MAP:
+                long items = length();
+                if(items >= 0 && major == MAP)
+                    items *= 2;
+                while (hasNext(items--)){
+                    readHead();
+                    skipItem();
+                }
+                break;
+            default:
+                // Integers and simple values carry no content besides the argument
+        }
+        if(position > buffer.length)
+            throw new ArrayIndexOutOfBoundsException();
+    }
+
+    /* Values */
+
+    /**
+     * Skip a text value returning the hash of its raw bytes
+     */
+    private int hashString() throws IOException {
+        readHead();
+        if(major != TEXT)
+            throw error("Expected text");
+        int hash = 0;
+        boolean indefinite = argument < 0;
+        do {
+            if(indefinite){
+                if((buffer[position] & 0xFF) == BREAK){
+                    position++;
+                    break;
+                }
+                readHead();
+                if(major != TEXT || argument < 0)
+                    throw error("Invalid text chunk");
+            }
+            int end = position + (int) length();
+            while (position < end)
+                hash = 31 * hash + buffer[position++];
+        } while (indefinite);
+        return hash;
+    }
+
+    /**
+     * Decode a text value into the target, replacing its content
+     */
+    private void readString(StringBuilder target) throws IOException {
+        readHead();
+        if(major != TEXT)
+            throw error("Expected text");
+        target.setLength(0);
+        boolean indefinite = argument < 0;
+        do {
+            if(indefinite){
+                if((buffer[position] & 0xFF) == BREAK){
+                    position++;
+                    break;
+                }
+                readHead();
+                if(major != TEXT || argument < 0)
+                    throw error("Invalid text chunk");
+            }
+            int end = position + (int) length();
+            if(end > buffer.length)
+                throw new ArrayIndexOutOfBoundsException();
+            while (position < end){
+                int b = buffer[position++] & 0xFF;
+                if(b < 0x80){
+                    target.append((char) b);
+                }
+                else if(b < 0xE0){
+                    target.append((char) (((b & 0x1F) << 6) | continuation()));
+                }
+                else if(b < 0xF0){
+                    target.append((char) (((b & 0x0F) << 12) | (continuation() << 6) | continuation()));
+                }
+                else {
+                    target.appendCodePoint(((b & 0x07) << 18) | (continuation() << 12) | (continuation() << 6)
+                            | continuation());
+                }
+            }
+        } while (indefinite);
+    }
+
+    private int continuation() throws IOException {
+        int b = buffer[position++] & 0xFF;
+        if((b & 0xC0) != 0x80)
+            throw error("Invalid UTF-8 sequence");
+        return b & 0x3F;
+    }
+
+    /**
+     * Read an integer or a half, single or double precision floating point value
+     */
+    private double readNumber() throws IOException {
+        readHead();
+        switch (major){
+            case UNSIGNED:
+                return (argument >= 0) ? argument : argument + 0x1p64;
+            case NEGATIVE:
+                return -1 - ((argument >= 0) ? (double) argument : argument + 0x1p64);
+            case SIMPLE:
+                if(info == 25)
+                    return halfToFloat((int) argument);
+                if(info == 26)
+                    return Float.intBitsToFloat((int) argument);
+                if(info == 27)
+                    return Double.longBitsToDouble(argument);
+                throw error("Expected number");
+            default:
+                throw error("Expected number");
+        }
+    }
+
+    private static float halfToFloat(int half){
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+        if(exponent == 0)
+            return (sign == 0 ? 1 : -1) * mantissa * 0x1p-24f;
+        if(exponent == 0x1F)
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
+    private IOException error(String message){
+        return new IOException(message + " at position " + position);
+    }
+}
@@ -0,0 +1,482 @@
+package it.unipi.iot.damonitoring.senml;
+
+import java.io.IOException;
+
+/**
+ * Streaming SenML (JSON) decoder. Scans the raw payload in place and fills a reusable {@link SenMLPack}: field names
+ * are matched on the bytes of the payload, text values are decoded straight into the buffers of the pack and numbers
+ * are parsed without intermediate strings, so a decoding does not allocate once the pack buffers are warm.
+ * <p>
+ * The pack is either the RFC 8428 array of records or the single record of the motes, holding the measurements in
+ * the "e" array. Base name, unit, time and value (bn, bu, bt, bv) and the record name, unit, time and value (n, u, t,
+ * v) are decoded, the other fields are skipped.
+ * <p>
+ * An instance keeps the cursor state of the current decoding, hence it must not be shared between threads.
+ */
+public final class SenMLDecoder {
+    private static final byte[] BASE_NAME = {'b', 'n'};
+    private static final byte[] BASE_UNIT = {'b', 'u'};
+    private static final byte[] BASE_TIME = {'b', 't'};
+    private static final byte[] BASE_VALUE = {'b', 'v'};
+    private static final byte[] ENTRIES = {'e'};
+    private static final byte[] NAME = {'n'};
+    private static final byte[] UNIT = {'u'};
+    private static final byte[] TIME = {'t'};
+    private static final byte[] VALUE = {'v'};
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private static final int MAX_DIGITS = 18;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for(int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    /* Cursor */
+    private byte[] buffer;
+    private int position;
+    private int keyStart;
+    private int keyEnd;
+
+    /**
+     * Decode a SenML record in the target pack, overwriting its content
+     * @param payload Raw SenML (JSON) record
+     * @param pack Pack filled with the decoded record
+     * @throws IOException In case of malformed record
+     */
+    public void decode(byte[] payload, SenMLPack pack) throws IOException {
+        buffer = payload;
+        position = 0;
+        pack.clear();
+        try {
+            skipWhitespace();
+            if(buffer[position] == '['){
+                position++;
+                if(!nextIsEnd(']')){
+                    do {
+                        readRecord(pack, true);
+                    } while (nextMember(']'));
+                }
+            }
+            else {
+                readRecord(pack, true);
+            }
+            skipWhitespace();
+            if(position != buffer.length)
+                throw error("Trailing data");
+        }
+        catch (ArrayIndexOutOfBoundsException ex){
+            throw new IOException("Unexpected end of record");
+        }
+        finally {
+            buffer = null;
+        }
+    }
+
+    /**
+     * Compute the hash of the sensor key (base name and name of the first measurement) scanning the raw record,
+     * without decoding it. Records of the same sensor always produce the same hash.
+     * @param payload Raw SenML (JSON) record
+     * @return Hash of the sensor key
+     * @throws IOException In case of malformed record
+     */
+    public int sensorHash(byte[] payload) throws IOException {
+        buffer = payload;
+        position = 0;
+        int baseNameHash = 0;
+        int nameHash = 0;
+        try {
+            skipWhitespace();
+            if(buffer[position] == '['){
+                // Base name and name of the first records defining them
+                position++;
+                boolean baseNameFound = false;
+                boolean nameFound = false;
+                if(!nextIsEnd(']')){
+                    do {
+                        if(nameFound){
+                            skipValue();
+                            continue;
+                        }
+                        expect('{');
+                        if(nextIsEnd('}'))
+                            continue;
+                        do {
+                            readKey();
+                            if(keyIs(BASE_NAME) && !baseNameFound){
+                                baseNameHash = hashString();
+                                baseNameFound = true;
+                            }
+                            else if(keyIs(NAME) && !nameFound){
+                                nameHash = hashString();
+                                nameFound = true;
+                            }
+                            else {
+                                skipValue();
+                            }
+                        } while (nextMember('}'));
+                    } while (nextMember(']'));
+                }
+                return 31 * baseNameHash + nameHash;
+            }
+
+            expect('{');
+            if(!nextIsEnd('}')){
+                do {
+                    readKey();
+                    if(keyIs(BASE_NAME)){
+                        baseNameHash = hashString();
+                    }
+                    else if(keyIs(ENTRIES)){
+                        expect('[');
+                        if(nextIsEnd(']'))
+                            continue;
+                        expect('{');
+                        if(!nextIsEnd('}')){
+                            do {
+                                readKey();
+                                if(keyIs(NAME))
+                                    nameHash = hashString();
+                                else
+                                    skipValue();
+                            } while (nextMember('}'));
+                        }
+                        // Remaining measurements
+                        while (nextMember(']'))
+                            skipValue();
+                    }
+                    else {
+                        skipValue();
+                    }
+                } while (nextMember('}'));
+            }
+            return 31 * baseNameHash + nameHash;
+        }
+        catch (ArrayIndexOutOfBoundsException ex){
+            throw new IOException("Unexpected end of record");
+        }
+        finally {
+            buffer = null;
+        }
+    }
+
+    /**
+     * Decode a record. The base fields of a pack record apply to itself and to the following records, or to all its
+     * "e" entries; entry records are resolved by the record holding them.
+     */
+    private void readRecord(SenMLPack pack, boolean packRecord) throws IOException {
+        int index = -1;
+        int entriesFrom = -1;
+        int entriesTo = -1;
+        boolean hasValue = false;
+        expect('{');
+        if(!nextIsEnd('}')){
+            do {
+                readKey();
+                if(packRecord && keyIs(BASE_NAME)){
+                    readString(pack.baseName());
+                }
+                else if(packRecord && keyIs(BASE_UNIT)){
+                    readString(pack.baseUnit());
+                }
+                else if(packRecord && keyIs(BASE_TIME)){
+                    pack.setBaseTime(readNumber());
+                }
+                else if(packRecord && keyIs(BASE_VALUE)){
+                    pack.setBaseValue(readNumber());
+                }
+                else if(packRecord && keyIs(ENTRIES)){
+                    entriesFrom = pack.size();
+                    readEntries(pack);
+                    entriesTo = pack.size();
+                }
+                else if(keyIs(NAME)){
+                    index = (index < 0) ? pack.addEntry() : index;
+                    readString(pack.name(index));
+                }
+                else if(keyIs(UNIT)){
+                    index = (index < 0) ? pack.addEntry() : index;
+                    readString(pack.unit(index));
+                }
+                else if(keyIs(TIME)){
+                    index = (index < 0) ? pack.addEntry() : index;
+                    pack.setTime(index, readNumber());
+                }
+                else if(keyIs(VALUE)){
+                    index = (index < 0) ? pack.addEntry() : index;
+                    pack.setValue(index, readNumber());
+                    hasValue = true;
+                }
+                else {
+                    skipValue();
+                }
+            } while (nextMember('}'));
+        }
+        if(index >= 0 && (!hasValue || pack.name(index).length() == 0))
+            throw error("Incomplete measurement");
+        if(packRecord){
+            if(index >= 0)
+                pack.resolve(index, index + 1);
+            if(entriesFrom >= 0)
+                pack.resolve(entriesFrom, entriesTo);
+        }
+    }
+
+    private void readEntries(SenMLPack pack) throws IOException {
+        expect('[');
+        if(nextIsEnd(']'))
+            return;
+        do {
+            readRecord(pack, false);
+        } while (nextMember(']'));
+    }
+
+    /* Structure */
+    private void skipWhitespace(){
+        while (position < buffer.length){
+            byte b = buffer[position];
+            if(b != ' ' && b != '\t' && b != '\n' && b != '\r')
+                return;
+            position++;
+        }
+    }
+
+    private void expect(char token) throws IOException {
+        skipWhitespace();
+        if(buffer[position] != token)
+            throw error("Expected '" + token + "'");
+        position++;
+    }
+
+    private boolean nextIsEnd(char end){
+        skipWhitespace();
+        if(buffer[position] == end){
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean nextMember(char end) throws IOException {
+        skipWhitespace();
+        byte b = buffer[position++];
+        if(b == ',')
+            return true;
+        if(b == end)
+            return false;
+        throw error("Expected ',' or '" + end + "'");
+    }
+
+    private void readKey() throws IOException {
+        expect('"');
+        keyStart = position;
+        while (buffer[position] != '"'){
+            if(buffer[position] == '\\')
+                position++;
+            position++;
+        }
+        keyEnd = position++;
+        expect(':');
+    }
+
+    private boolean keyIs(byte[] key){
+        if(keyEnd - keyStart != key.length)
+            return false;
+        for(int i = 0; i < key.length; i++){
+            if(buffer[keyStart + i] != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void skipValue() throws IOException {
+        skipWhitespace();
+        switch (buffer[position]){
+            case '"':
+                readString(null);
+                break;
+            case '{':
+            case '[':
+                int depth = 0;
+                do {
+                    byte b = buffer[position];
+                    if(b == '"'){
+                        readString(null);
+                        continue;
+                    }
+                    if(b == '{' || b == '[')
+                        depth++;
+                    else if(b == '}' || b == ']')
+                        depth--;
+                    position++;
+                } while (depth > 0);
+                break;
+            default:
+                // Number or literal (true, false, null)
+                while (position < buffer.length){
+                    byte b = buffer[position];
+                    if(b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' || b == '\r')
+                        break;
+                    position++;
+                }
+        }
+    }
+
+    /* Values */
+
+    /**
+     * Skip a string value returning the hash of its raw bytes
+     */
+    private int hashString() throws IOException {
+        expect('"');
+        int hash = 0;
+        while (buffer[position] != '"'){
+            if(buffer[position] == '\\')
+                hash = 31 * hash + buffer[position++];
+            hash = 31 * hash + buffer[position++];
+        }
+        position++;
+        return hash;
+    }
+
+    /**
+     * Decode a string value appending its characters to the target, or skip it if the target is null
+     */
+    private void readString(StringBuilder target) throws IOException {
+        expect('"');
+        if(target != null)
+            target.setLength(0);
+
+        while (true){
+            int b = buffer[position++] & 0xFF;
+            if(b == '"')
+                return;
+            if(target == null){
+                if(b == '\\')
+                    position++;
+                continue;
+            }
+
+            if(b == '\\'){
+                b = buffer[position++];
+                switch (b){
+                    case 'b': target.append('\b'); break;
+                    case 'f': target.append('\f'); break;
+                    case 'n': target.append('\n'); break;
+                    case 'r': target.append('\r'); break;
+                    case 't': target.append('\t'); break;
+                    case 'u': target.append((char) readHex()); break;
+                    default: target.append((char) b); // '"', '\\' and '/'
+                }
+            }
+            else if(b < 0x80){
+                target.append((char) b);
+            }
+            else if(b < 0xE0){
+                target.append((char) (((b & 0x1F) << 6) | continuation()));
+            }
+            else if(b < 0xF0){
+                target.append((char) (((b & 0x0F) << 12) | (continuation() << 6) | continuation()));
+            }
+            else {
+                target.appendCodePoint(((b & 0x07) << 18) | (continuation() << 12) | (continuation() << 6)
+                        | continuation());
+            }
+        }
+    }
+
+    private int continuation() throws IOException {
+        int b = buffer[position++] & 0xFF;
+        if((b & 0xC0) != 0x80)
+            throw error("Invalid UTF-8 sequence");
+        return b & 0x3F;
+    }
+
+    private int readHex() throws IOException {
+        int value = 0;
+        for(int i = 0; i < 4; i++){
+            int digit = Character.digit(buffer[position++], 16);
+            if(digit < 0)
+                throw error("Invalid unicode escape");
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Parse a JSON number keeping at most 18 significant digits, enough for the single precision of the values
+     */
+    private double readNumber() throws IOException {
+        skipWhitespace();
+        boolean negative = buffer[position] == '-';
+        if(negative)
+            position++;
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        int start = position;
+
+        // Integer part
+        while (position < buffer.length && isDigit(buffer[position])){
+            if(digits < MAX_DIGITS){
+                mantissa = mantissa * 10 + (buffer[position] - '0');
+                if(mantissa != 0)
+                    digits++;
+            }
+            else {
+                exponent++;
+            }
+            position++;
+        }
+        if(position == start)
+            throw error("Expected number");
+
+        // Fractional part
+        if(position < buffer.length && buffer[position] == '.'){
+            position++;
+            while (position < buffer.length && isDigit(buffer[position])){
+                if(digits < MAX_DIGITS){
+                    mantissa = mantissa * 10 + (buffer[position] - '0');
+                    if(mantissa != 0)
+                        digits++;
+                    exponent--;
+                }
+                position++;
+            }
+        }
+
+        // Exponent
+        if(position < buffer.length && (buffer[position] == 'e' || buffer[position] == 'E')){
+            position++;
+            boolean negativeExponent = buffer[position] == '-';
+            if(negativeExponent || buffer[position] == '+')
+                position++;
+            int value = 0;
+            start = position;
+            while (position < buffer.length && isDigit(buffer[position])){
+                value = Math.min(value * 10 + (buffer[position] - '0'), 1000);
+                position++;
+            }
+            if(position == start)
+                throw error("Expected exponent");
+            exponent += negativeExponent ? -value : value;
+        }
+
+        double value = mantissa;
+        if(exponent != 0){
+            value = (Math.abs(exponent) < POWERS_OF_TEN.length) ?
+                    ((exponent > 0) ? value * POWERS_OF_TEN[exponent] : value / POWERS_OF_TEN[-exponent]) :
+                    value * Math.pow(10, exponent);
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean isDigit(byte b){
+        return b >= '0' && b <= '9';
+    }
+
+    private IOException error(String message){
+        return new IOException(message + " at position " + position);
+    }
+}
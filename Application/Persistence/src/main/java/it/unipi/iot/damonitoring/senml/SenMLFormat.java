@@ -0,0 +1,39 @@
+package it.unipi.iot.damonitoring.senml;
+
+/**
+ * Encoding of a SenML record, selected by the topic suffix ("/json" or "/cbor") or detected from the first byte
+ */
+public enum SenMLFormat {
+    JSON, CBOR;
+
+    private static final String JSON_SUFFIX = "/json";
+    private static final String CBOR_SUFFIX = "/cbor";
+
+    /**
+     * Detect the encoding of a record
+     * @param topic Topic of the message
+     * @param payload Raw record
+     * @return Encoding of the record
+     */
+    public static SenMLFormat of(String topic, byte[] payload){
+        if(topic.endsWith(CBOR_SUFFIX))
+            return CBOR;
+        if(topic.endsWith(JSON_SUFFIX))
+            return JSON;
+
+        // A CBOR pack starts with an array (major type 4), a map (5) or a tag (6), never with a JSON character
+        int major = (payload.length == 0) ? 0 : (payload[0] & 0xFF) >>> 5;
+        return (major == 4 || major == 5 || major == 6) ? CBOR : JSON;
+    }
+
+    /**
+     * Remove the encoding suffix from the topic
+     * @param topic Topic of the message
+     * @return Topic of the measurement
+     */
+    public static String baseTopic(String topic){
+        if(topic.endsWith(CBOR_SUFFIX) || topic.endsWith(JSON_SUFFIX))
+            return topic.substring(0, topic.length() - CBOR_SUFFIX.length());
+        return topic;
+    }
+}
@@ -0,0 +1,189 @@
+package it.unipi.iot.damonitoring.senml;
+
+import java.util.Arrays;
+
+/**
+ * Reusable, primitive-typed holder of a decoded SenML pack. The same instance is filled again by every call of
+ * {@link SenMLDecoder#decode(byte[], SenMLPack)}, so the content is valid only until the next decoding.
+ * <p>
+ * Entries are resolved as in RFC 8428: base name, base unit, base time and base value apply to the entry records
+ * that follow them in the pack (to all the entries of the "e" array in the legacy form).
+ */
+public final class SenMLPack {
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * Times below 2^28 seconds are relative to the current time (RFC 8428, section 4.5.3)
+     */
+    private static final double RELATIVE_TIME_LIMIT = 1 << 28;
+
+    private final StringBuilder baseName = new StringBuilder();
+    private final StringBuilder baseUnit = new StringBuilder();
+    private double baseTime;
+    private double baseValue;
+
+    private StringBuilder[] baseNames = new StringBuilder[INITIAL_CAPACITY];
+    private StringBuilder[] names = new StringBuilder[INITIAL_CAPACITY];
+    private StringBuilder[] units = new StringBuilder[INITIAL_CAPACITY];
+    private double[] times = new double[INITIAL_CAPACITY];
+    private double[] values = new double[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Base name of the last record of the pack
+     */
+    public CharSequence getBaseName() {
+        return baseName;
+    }
+
+    /**
+     * Base unit of the last record of the pack
+     */
+    public CharSequence getBaseUnit() {
+        return baseUnit;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Base name applying to the entry, the full name of the measurement is the base name followed by the name
+     */
+    public CharSequence getBaseName(int index) {
+        return baseNames[index];
+    }
+
+    public CharSequence getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Unit of the entry, or the base unit if the entry does not define one
+     */
+    public CharSequence getUnit(int index) {
+        return units[index];
+    }
+
+    /**
+     * Value of the entry, base value included
+     */
+    public float getValue(int index) {
+        return (float) values[index];
+    }
+
+    /**
+     * Time of the entry, base time included
+     * @param index Entry index
+     * @param now Current time in milliseconds, the reference of relative times
+     * @return Time of the measurement in milliseconds since the epoch
+     */
+    public long getTime(int index, long now) {
+        double time = times[index];
+        return (time >= RELATIVE_TIME_LIMIT) ? (long) (time * 1000) : now + (long) (time * 1000);
+    }
+
+    /* Decoder only */
+    void clear(){
+        baseName.setLength(0);
+        baseUnit.setLength(0);
+        baseTime = 0;
+        baseValue = 0;
+        size = 0;
+    }
+
+    StringBuilder baseName(){
+        return baseName;
+    }
+
+    StringBuilder baseUnit(){
+        return baseUnit;
+    }
+
+    void setBaseTime(double baseTime){
+        this.baseTime = baseTime;
+    }
+
+    void setBaseValue(double baseValue){
+        this.baseValue = baseValue;
+    }
+
+    /**
+     * Append a new empty entry, reusing the buffers of previous decodings
+     * @return Index of the new entry
+     */
+    int addEntry(){
+        if(size == names.length){
+            baseNames = Arrays.copyOf(baseNames, size * 2);
+            names = Arrays.copyOf(names, size * 2);
+            units = Arrays.copyOf(units, size * 2);
+            times = Arrays.copyOf(times, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        if(names[size] == null){
+            baseNames[size] = new StringBuilder();
+            names[size] = new StringBuilder();
+            units[size] = new StringBuilder();
+        }
+        names[size].setLength(0);
+        units[size].setLength(0);
+        times[size] = 0;
+        values[size] = Double.NaN;
+        return size++;
+    }
+
+    StringBuilder name(int index){
+        return names[index];
+    }
+
+    StringBuilder unit(int index){
+        return units[index];
+    }
+
+    void setTime(int index, double time){
+        times[index] = time;
+    }
+
+    void setValue(int index, double value){
+        values[index] = value;
+    }
+
+    /**
+     * Apply the current base fields to the entries in the range
+     * @param from Index of the first entry (inclusive)
+     * @param to Index of the last entry (exclusive)
+     */
+    void resolve(int from, int to){
+        for(int i = from; i < to; i++){
+            baseNames[i].setLength(0);
+            baseNames[i].append(baseName);
+            if(units[i].length() == 0)
+                units[i].append(baseUnit);
+            times[i] += baseTime;
+            values[i] += baseValue;
+        }
+    }
+
+    /**
+     * Format a single entry, used for logging
+     * @param index Entry index
+     * @return String representation of the entry
+     */
+    public String toString(int index) {
+        return "{" +
+                "name:'" + baseNames[index] + names[index] + '\'' +
+                ", unit:'" + units[index] + '\'' +
+                ", time:" + times[index] +
+                ", value:" + (float) values[index] +
+                '}';
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{measurements:[");
+        for(int i = 0; i < size; i++){
+            builder.append((i == 0) ? "" : ", ").append(toString(i));
+        }
+        return builder.append("]}").toString();
+    }
+}
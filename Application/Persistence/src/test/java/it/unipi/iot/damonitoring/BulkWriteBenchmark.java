@@ -0,0 +1,63 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to store a block of flow rate measurements with the bulk write (a transaction, a round trip per JDBC batch)
+ * against a single-row write per measurement. Requires the MySQL instance configured in hibernate.cfg.xml.
+ * <p>
+ * Run from the Persistence module with:
+ * {@code mvn -P benchmark test-compile exec:java -Dexec.args="BulkWriteBenchmark"}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkWriteBenchmark {
+
+    /**
+     * Measurements stored by each invocation
+     */
+    @Param({"100", "1000", "5000"})
+    public int rows;
+
+    @Setup(Level.Trial)
+    public void setup() throws PersistenceException {
+        DataManager.getInstance();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws PersistenceException {
+        DataManager.close();
+    }
+
+    @Benchmark
+    public void singleRowWrites() throws PersistenceException {
+        DataManager dataManager = DataManager.getInstance();
+        for(int i = 0; i < rows; i++)
+            dataManager.recordFlowRate("outflow-1", new Date(), 42.17f);
+    }
+
+    @Benchmark
+    public void bulkWrite() throws PersistenceException {
+        List<FlowRate> flowRates = new ArrayList<>(rows);
+        Date now = new Date();
+        for(int i = 0; i < rows; i++){
+            FlowRate flowRate = new FlowRate();
+            flowRate.setFlowChannel("outflow-1");
+            flowRate.setTimestamp(now);
+            flowRate.setValue(42.17f);
+            flowRates.add(flowRate);
+        }
+        DataManager.getInstance().recordFlowRates(flowRates);
+    }
+}
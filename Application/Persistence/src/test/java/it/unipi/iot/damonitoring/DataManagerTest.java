@@ -3,6 +3,13 @@ package it.unipi.iot.damonitoring;
 import it.unipi.iot.damonitoring.exceptions.PersistenceException;
 import org.junit.Test;
 
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 public class DataManagerTest{
 
     @Test
@@ -17,4 +24,38 @@ public class DataManagerTest{
             throw new RuntimeException("Exception: " + ex.getMessage());
         }
     }
+
+    @Test
+    public void streamTest() {
+        try {
+            DataManager dataManager = DataManager.getInstance();
+            Date to = new Date();
+            Date from = new Date(to.getTime() - TimeUnit.DAYS.toMillis(30));
+
+            // Measurements in timestamp order, within [from, to)
+            AtomicLong last = new AtomicLong(Long.MIN_VALUE);
+            dataManager.streamFlowRate("inflow", from, to, flowRate -> {
+                long timestamp = flowRate.getTimestamp().getTime();
+                assertTrue(timestamp >= from.getTime() && timestamp < to.getTime());
+                assertTrue(timestamp >= last.get());
+                last.set(timestamp);
+            });
+
+            // Averages on steps aligned to the width, in increasing order, one per step
+            long step = TimeUnit.HOURS.toMillis(1);
+            last.set(Long.MIN_VALUE);
+            dataManager.streamWaterLevel(from, to, step, waterLevel -> {
+                long bucket = waterLevel.getTimestamp().getTime();
+                assertEquals(0, bucket % step);
+                assertTrue(bucket > from.getTime() - step && bucket < to.getTime());
+                assertTrue(bucket > last.get());
+                last.set(bucket);
+            });
+            DataManager.close();
+        }
+        catch (PersistenceException | RuntimeException ex){
+            ex.printStackTrace();
+            throw new RuntimeException("Exception: " + ex.getMessage());
+        }
+    }
 }
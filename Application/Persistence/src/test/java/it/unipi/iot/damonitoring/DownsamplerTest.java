@@ -0,0 +1,83 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.entities.WaterLevel;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class DownsamplerTest {
+
+    private static final long STEP = 1000;
+
+    @Test
+    public void averageOverAlignedSteps() {
+        List<WaterLevel> output = new ArrayList<>();
+        Downsampler<WaterLevel> downsampler = downsampler(STEP, output);
+
+        // Steps aligned to multiples of the width, not to the first measurement
+        downsampler.accept(waterLevel(10_250, 1));
+        downsampler.accept(waterLevel(10_500, 2));
+        downsampler.accept(waterLevel(10_999, 6));
+        downsampler.accept(waterLevel(11_000, 10));
+        downsampler.accept(waterLevel(13_700, 20));
+        downsampler.accept(waterLevel(13_900, 30));
+        assertEquals(2, output.size());
+        assertLevel(output.get(0), 10_000, 3);
+        assertLevel(output.get(1), 11_000, 10);
+
+        // The last step is emitted by the flush, once
+        downsampler.flush();
+        downsampler.flush();
+        assertEquals(3, output.size());
+        assertLevel(output.get(2), 13_000, 25);
+    }
+
+    @Test
+    public void negativeTimestamps() {
+        List<WaterLevel> output = new ArrayList<>();
+        Downsampler<WaterLevel> downsampler = downsampler(STEP, output);
+        downsampler.accept(waterLevel(-1500, 4));
+        downsampler.accept(waterLevel(-1001, 8));
+        downsampler.accept(waterLevel(-1000, 1));
+        downsampler.flush();
+        assertEquals(2, output.size());
+        assertLevel(output.get(0), -2000, 6);
+        assertLevel(output.get(1), -1000, 1);
+    }
+
+    @Test
+    public void passThroughWithoutStep() {
+        List<WaterLevel> output = new ArrayList<>();
+        Downsampler<WaterLevel> downsampler = downsampler(0, output);
+        WaterLevel first = waterLevel(10_250, 1);
+        WaterLevel second = waterLevel(10_500, 2);
+        downsampler.accept(first);
+        downsampler.accept(second);
+        downsampler.flush();
+        assertEquals(2, output.size());
+        assertSame(first, output.get(0));
+        assertSame(second, output.get(1));
+    }
+
+    private static Downsampler<WaterLevel> downsampler(long step, List<WaterLevel> output){
+        return new Downsampler<>(step, output::add, WaterLevel::getTimestamp, WaterLevel::getValue,
+                (timestamp, value) -> waterLevel(timestamp.getTime(), value));
+    }
+
+    private static WaterLevel waterLevel(long timestamp, float value){
+        WaterLevel waterLevel = new WaterLevel();
+        waterLevel.setTimestamp(new Date(timestamp));
+        waterLevel.setValue(value);
+        return waterLevel;
+    }
+
+    private static void assertLevel(WaterLevel waterLevel, long timestamp, float value){
+        assertEquals(timestamp, waterLevel.getTimestamp().getTime());
+        assertEquals(value, waterLevel.getValue(), 1e-6);
+    }
+}
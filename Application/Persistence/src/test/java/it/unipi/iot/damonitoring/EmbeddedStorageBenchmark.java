@@ -0,0 +1,75 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Write and latest value latency of the embedded storage, to compare with the database writes of SpoolBenchmark (in
+ * the Collector module) and BulkWriteBenchmark. No server is needed.
+ * <p>
+ * Run from the Persistence module with:
+ * {@code mvn -P benchmark test-compile exec:java -Dexec.args="EmbeddedStorageBenchmark"}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmbeddedStorageBenchmark {
+    private static final int BULK_ROWS = 1000;
+
+    private Path directory;
+    private EmbeddedStorage storage;
+    private List<FlowRate> flowRates;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("storage-benchmark");
+        storage = new EmbeddedStorage(directory, 256, 4096, 0);
+        flowRates = new ArrayList<>(BULK_ROWS);
+        for(int i = 0; i < BULK_ROWS; i++){
+            FlowRate flowRate = new FlowRate();
+            flowRate.setFlowChannel("outflow-2");
+            flowRate.setValue(42.17f);
+            flowRates.add(flowRate);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, PersistenceException {
+        storage.close();
+        try(Stream<Path> files = Files.walk(directory)){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public FlowRate singleWrite() throws PersistenceException {
+        return storage.recordFlowRate("outflow-1", new Date(), 42.17f);
+    }
+
+    @Benchmark
+    public void bulkWrite() throws PersistenceException {
+        Date now = new Date();
+        for(FlowRate flowRate: flowRates)
+            flowRate.setTimestamp(now);
+        storage.recordFlowRates(flowRates);
+    }
+
+    @Benchmark
+    public FlowRate latest() throws PersistenceException {
+        return storage.retrieveFlowRate("outflow-1");
+    }
+}
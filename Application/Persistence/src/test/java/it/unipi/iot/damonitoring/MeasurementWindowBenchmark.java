@@ -0,0 +1,74 @@
+package it.unipi.iot.damonitoring;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the queries on the window of recent measurements of a channel (256 measurements, 5 s apart), alone and
+ * while a writer appends concurrently: run with {@code -prof gc} to check that the queries do not allocate.
+ * <p>
+ * Run from the Persistence module with:
+ * {@code mvn -P benchmark test-compile exec:java -Dexec.args="MeasurementWindowBenchmark -prof gc"}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class MeasurementWindowBenchmark {
+    private static final int CAPACITY = 256;
+    private static final long PERIOD = 5000;
+
+    private MeasurementWindow window;
+    private long now;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        window = new MeasurementWindow(CAPACITY);
+        now = System.currentTimeMillis();
+        for(int i = CAPACITY; i > 0; i--)
+            window.append(now - i * PERIOD, 40 + (i % 30) / 100f);
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        final long[] timestamps = new long[CAPACITY];
+        final float[] values = new float[CAPACITY];
+        final MeasurementWindow.Stats stats = new MeasurementWindow.Stats();
+    }
+
+    @Benchmark
+    @Group("latest")
+    public float latest(){
+        return window.latestValue();
+    }
+
+    @Benchmark
+    @Group("last60")
+    public int last60(Reader reader){
+        return window.last(60, reader.timestamps, reader.values);
+    }
+
+    @Benchmark
+    @Group("since5Minutes")
+    public float since5Minutes(Reader reader){
+        window.since(now - 5 * 60000, reader.stats);
+        return reader.stats.getSlope();
+    }
+
+    @Benchmark
+    @Group("sinceWhileWriting")
+    @GroupThreads(3)
+    public float sinceWhileWriting(Reader reader){
+        window.since(now - 5 * 60000, reader.stats);
+        return reader.stats.getMean();
+    }
+
+    @Benchmark
+    @Group("sinceWhileWriting")
+    public void writer(){
+        window.append(now, 40.1f);
+    }
+}
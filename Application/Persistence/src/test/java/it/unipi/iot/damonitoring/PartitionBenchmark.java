@@ -0,0 +1,116 @@
+package it.unipi.iot.damonitoring;
+
+import it.unipi.iot.damonitoring.entities.FlowRate;
+import it.unipi.iot.damonitoring.exceptions.PersistenceException;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insert and history query latency of a flow rate channel against the length of its history, stored at 1 Hz: with
+ * the measurement tables partitioned by day both stay flat, as the insert only touches the most recent partition and
+ * the query of an hour of history (the oldest one, 3600 measurements) only the partition holding it. The history of
+ * each channel is generated once and reused by the next runs. The background maintenance of the partitions and of
+ * the archive is disabled, so that it does not run during the measurements.
+ * <p>
+ * Requires the MySQL instance configured in hibernate.cfg.xml (override the URL and the credentials of the history
+ * generation with -Dbenchmark.url, -Dbenchmark.user and -Dbenchmark.password). Run from the Persistence module with:
+ * {@code mvn -P benchmark test-compile exec:java -Dexec.args="PartitionBenchmark"}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PartitionBenchmark {
+    private static final int DAY = 86400;
+    private static final long HOUR = 3600000;
+
+    /**
+     * Days of history of the channel at 1 Hz
+     */
+    @Param({"1", "30", "360"})
+    public int historyDays;
+
+    private String channel;
+    private Date from;
+    private Date to;
+
+    @Setup(Level.Trial)
+    public void setup() throws PersistenceException, SQLException {
+        channel = "bench-" + historyDays;
+
+        // Partition the tables once here, then no maintenance runs in background during the measurements
+        Map<String, String> settings = new HashMap<>();
+        settings.put("damonitoring.partition.maintenance_period", "0");
+        settings.put("damonitoring.archive.age", "0");
+        DataManager.getInstance(settings).maintainPartitions();
+
+        try(Connection connection = DriverManager.getConnection(
+                System.getProperty("benchmark.url", "jdbc:mysql://localhost:3306/damMonitoring"),
+                System.getProperty("benchmark.user", "root"),
+                System.getProperty("benchmark.password", "root"))){
+            // Generate the missing days of history, a day per statement
+            long now = System.currentTimeMillis();
+            long oldest = now;
+            try(PreparedStatement statement = connection.prepareStatement(
+                    "SELECT MIN(timestamp) FROM flowRate WHERE flowChannel = ?")){
+                statement.setString(1, channel);
+                try(ResultSet result = statement.executeQuery()){
+                    if(result.next() && result.getTimestamp(1) != null)
+                        oldest = result.getTimestamp(1).getTime();
+                }
+            }
+            try(Statement statement = connection.createStatement()){
+                statement.execute("SET SESSION cte_max_recursion_depth = " + DAY);
+            }
+            try(PreparedStatement statement = connection.prepareStatement("INSERT INTO flowRate (flowChannel, " +
+                    "timestamp, value) WITH RECURSIVE second (n) AS (SELECT 0 UNION ALL SELECT n + 1 FROM second " +
+                    "WHERE n < " + (DAY - 1) + ") SELECT ?, TIMESTAMPADD(SECOND, n, ?), 40 + (n % 100) / 10 " +
+                    "FROM second")){
+                for(long day = oldest - DAY * 1000L; day >= now - historyDays * DAY * 1000L; day -= DAY * 1000L){
+                    statement.setString(1, channel);
+                    statement.setTimestamp(2, new Timestamp(day));
+                    statement.executeUpdate();
+                }
+            }
+
+            // Query the first hour of the history
+            try(PreparedStatement statement = connection.prepareStatement(
+                    "SELECT MIN(timestamp) FROM flowRate WHERE flowChannel = ?")){
+                statement.setString(1, channel);
+                try(ResultSet result = statement.executeQuery()){
+                    result.next();
+                    from = new Date(result.getTimestamp(1).getTime());
+                    to = new Date(from.getTime() + HOUR);
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws PersistenceException {
+        DataManager.close();
+    }
+
+    @Benchmark
+    public FlowRate insert() throws PersistenceException {
+        return DataManager.getInstance().recordFlowRate(channel, new Date(), 42.17f);
+    }
+
+    @Benchmark
+    public MeasurementColumns history() throws PersistenceException {
+        return DataManager.getInstance().loadFlowRate(channel, from, to);
+    }
+}
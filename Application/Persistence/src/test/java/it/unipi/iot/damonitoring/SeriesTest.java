@@ -0,0 +1,122 @@
+package it.unipi.iot.damonitoring;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeriesTest {
+
+    /* Blocks of 4 records, segments of 8 records */
+    private static final int BLOCK_SIZE = 4;
+    private static final int SEGMENT_BLOCKS = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void appendAndRange() throws IOException {
+        Series series = new Series(folder.getRoot().toPath(), BLOCK_SIZE, SEGMENT_BLOCKS);
+        assertEquals(0, append(series, 1000, 0, 10));
+        assertEquals(10, append(series, 11000, 10, 10));
+        assertEquals(20, series.count());
+
+        List<long[]> records = range(series, 5000, 15000);
+        assertEquals(10, records.size());
+        assertEquals(4, records.get(0)[0]);
+        assertEquals(5000, records.get(0)[1]);
+        assertEquals(13, records.get(9)[0]);
+        assertEquals(14000, records.get(9)[1]);
+        assertEquals(0, range(series, 30000, 40000).size());
+        series.close();
+    }
+
+    @Test
+    public void latestIsGreatestTimestamp() throws IOException {
+        Series series = new Series(folder.getRoot().toPath(), BLOCK_SIZE, SEGMENT_BLOCKS);
+        assertFalse(series.latest((id, timestamp, value) -> { }));
+
+        append(series, 1000, 0, 6);
+        // A measurement stored late, older than the ones already appended
+        series.append(new long[]{ 2500 }, new float[]{ 99 }, 1);
+        long[] latest = latest(series);
+        assertEquals(5, latest[0]);
+        assertEquals(6000, latest[1]);
+
+        series.append(new long[]{ 6000, 7000 }, new float[]{ 7, 8 }, 2);
+        latest = latest(series);
+        assertEquals(8, latest[0]);
+        assertEquals(7000, latest[1]);
+        series.close();
+    }
+
+    @Test
+    public void reopenAfterTruncatedRecord() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Series series = new Series(directory, BLOCK_SIZE, SEGMENT_BLOCKS);
+        append(series, 1000, 0, 10);
+        series.close();
+
+        // Crash in the middle of a record of the second segment
+        try(FileChannel segment = FileChannel.open(directory.resolve("00000001.seg"), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)){
+            segment.write(ByteBuffer.wrap(new byte[]{ 1, 2, 3, 4, 5 }));
+        }
+
+        Series reopened = new Series(directory, BLOCK_SIZE, SEGMENT_BLOCKS);
+        assertEquals(10, reopened.count());
+        assertEquals(10, append(reopened, 11000, 10, 3));
+        assertEquals(13, reopened.count());
+
+        List<long[]> records = range(reopened, 0, Long.MAX_VALUE);
+        assertEquals(13, records.size());
+        for(int i = 0; i < records.size(); i++){
+            assertEquals(i, records.get(i)[0]);
+            assertEquals(1000L * (i + 1), records.get(i)[1]);
+        }
+        assertEquals(12, latest(reopened)[0]);
+        reopened.close();
+    }
+
+    /**
+     * Append records one second apart, of value equal to their position
+     */
+    private static long append(Series series, long firstTimestamp, int firstValue, int length) throws IOException {
+        long[] timestamps = new long[length];
+        float[] values = new float[length];
+        for(int i = 0; i < length; i++){
+            timestamps[i] = firstTimestamp + 1000L * i;
+            values[i] = firstValue + i;
+        }
+        return series.append(timestamps, values, length);
+    }
+
+    private static List<long[]> range(Series series, long from, long to) throws IOException {
+        List<long[]> records = new ArrayList<>();
+        series.range(from, to, (id, timestamp, value) -> {
+            assertEquals(id, (long) value);
+            records.add(new long[]{ id, timestamp });
+        });
+        return records;
+    }
+
+    private static long[] latest(Series series) throws IOException {
+        long[] latest = new long[2];
+        assertTrue(series.latest((id, timestamp, value) -> {
+            latest[0] = id;
+            latest[1] = timestamp;
+        }));
+        return latest;
+    }
+}
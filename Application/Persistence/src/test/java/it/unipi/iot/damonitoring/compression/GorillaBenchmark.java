@@ -0,0 +1,127 @@
+package it.unipi.iot.damonitoring.compression;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression ratio, encode and decode speed of the archive blocks, against the raw 12 bytes (timestamp, value)
+ * records. The dataset is a CSV of timestamp (ms) and value lines, e.g. a channel exported with
+ * {@code SELECT UNIX_TIMESTAMP(timestamp) * 1000, value FROM flowRate WHERE flowChannel = 'inflow'}, given with
+ * -Dbenchmark.dataset; without it a day of a flow sensor is generated as published by the motes (a measurement every
+ * 5 s with some jitter, steady variation of +- 0.15 around the target, 3 decimal digits). The ratio is printed on
+ * setup.
+ * <p>
+ * Run from the Persistence module with: {@code mvn -P benchmark test-compile exec:java -Dexec.args="GorillaBenchmark"}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GorillaBenchmark {
+    private static final int BLOCK_SIZE = 3600;
+
+    private long[] timestamps;
+    private float[] values;
+    private List<byte[]> blocks;
+    private ByteBuffer raw;
+    private GorillaEncoder encoder;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String dataset = System.getProperty("benchmark.dataset");
+        if(dataset != null)
+            load(dataset);
+        else
+            generate(86400 / 5);
+
+        encoder = new GorillaEncoder();
+        blocks = encode();
+        raw = ByteBuffer.allocate(timestamps.length * (Long.BYTES + Float.BYTES));
+        for(int i = 0; i < timestamps.length; i++)
+            raw.putLong(timestamps[i]).putFloat(values[i]);
+
+        long encoded = blocks.stream().mapToLong(block -> block.length).sum();
+        System.out.printf("%n%d measurements (%s): %d bytes raw, %d bytes encoded, ratio %.2f, %.2f bytes/measurement%n",
+                timestamps.length, dataset == null ? "generated" : dataset, raw.capacity(), encoded,
+                (double) raw.capacity() / encoded, (double) encoded / timestamps.length);
+    }
+
+    @Benchmark
+    public List<byte[]> encode(){
+        List<byte[]> encoded = new ArrayList<>(timestamps.length / BLOCK_SIZE + 1);
+        encoder.reset();
+        for(int i = 0; i < timestamps.length; i++){
+            encoder.append(timestamps[i], values[i]);
+            if(encoder.size() == BLOCK_SIZE){
+                encoded.add(encoder.toByteArray());
+                encoder.reset();
+            }
+        }
+        if(encoder.size() > 0)
+            encoded.add(encoder.toByteArray());
+        return encoded;
+    }
+
+    @Benchmark
+    public double decode(){
+        double sum = 0;
+        for(byte[] block: blocks){
+            GorillaDecoder decoder = new GorillaDecoder(block);
+            while (decoder.next())
+                sum += decoder.getTimestamp() + decoder.getValue();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double decodeRaw(){
+        ByteBuffer records = raw.duplicate();
+        records.flip();
+        double sum = 0;
+        while (records.hasRemaining())
+            sum += records.getLong() + records.getFloat();
+        return sum;
+    }
+
+    private void load(String dataset) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try(BufferedReader reader = Files.newBufferedReader(Paths.get(dataset))){
+            String line;
+            while ((line = reader.readLine()) != null){
+                if(!line.trim().isEmpty() && Character.isDigit(line.trim().charAt(0)))
+                    lines.add(line.trim());
+            }
+        }
+        timestamps = new long[lines.size()];
+        values = new float[lines.size()];
+        for(int i = 0; i < lines.size(); i++){
+            String[] fields = lines.get(i).split("[,;\\t]");
+            timestamps[i] = (long) Double.parseDouble(fields[0]);
+            values[i] = Float.parseFloat(fields[1]);
+        }
+    }
+
+    private void generate(int samples){
+        Random random = new Random(42);
+        timestamps = new long[samples];
+        values = new float[samples];
+        long timestamp = 1688774400000L;
+        int target = 40000;
+        for(int i = 0; i < samples; i++){
+            timestamp += 5000 + random.nextInt(21) - 10;
+            timestamps[i] = timestamp;
+            values[i] = (target + random.nextInt(301) - 150) / 1000f;
+        }
+    }
+}
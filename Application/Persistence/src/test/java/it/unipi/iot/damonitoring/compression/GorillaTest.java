@@ -0,0 +1,143 @@
+package it.unipi.iot.damonitoring.compression;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GorillaTest {
+
+    private static final long START = 1_700_000_000_000L;
+
+    @Test
+    public void emptyAndSinglePointBlocks() {
+        GorillaEncoder encoder = new GorillaEncoder();
+        GorillaDecoder empty = new GorillaDecoder(encoder.toByteArray());
+        assertEquals(0, empty.size());
+        assertFalse(empty.next());
+
+        encoder.append(START, 42.5f);
+        assertEquals(GorillaEncoder.HEADER + 12, encoder.sizeInBytes());
+        roundTrip(new long[]{ START }, new float[]{ 42.5f });
+        roundTrip(new long[]{ -1 }, new float[]{ -0.0f });
+    }
+
+    @Test
+    public void deltaOfDeltaBuckets() {
+        // Both ends of every bucket, the first values out of it and the 64 bits escape, in both directions
+        long[] deltaOfDeltas = { 0, -63, 64, -64, 65, -255, 256, -256, 257, -2047, 2048, -2048, 2049,
+                1L << 40, -(1L << 40), Long.MAX_VALUE / 4, Long.MIN_VALUE / 4 };
+        long[] timestamps = new long[deltaOfDeltas.length + 2];
+        timestamps[0] = START;
+        timestamps[1] = START + 1000;
+        long delta = 1000;
+        for(int i = 0; i < deltaOfDeltas.length; i++){
+            delta += deltaOfDeltas[i];
+            timestamps[i + 2] = timestamps[i + 1] + delta;
+        }
+        float[] values = new float[timestamps.length];
+        Arrays.fill(values, 1.0f);
+        roundTrip(timestamps, values);
+    }
+
+    @Test
+    public void irregularAndDecreasingTimestamps() {
+        roundTrip(new long[]{ START, START, START - 5000, START + 3, Long.MIN_VALUE / 2, Long.MAX_VALUE / 2 },
+                new float[]{ 1, 2, 3, 4, 5, 6 });
+    }
+
+    @Test
+    public void repeatedAndSpecialValues() {
+        float[] values = { 7.25f, 7.25f, 7.25f, Float.NaN, Float.NaN, Float.intBitsToFloat(0x7fc00001),
+                Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 0.0f, -0.0f, Float.MIN_VALUE, Float.MAX_VALUE,
+                -Float.MAX_VALUE, 7.25f, 7.25f };
+        long[] timestamps = new long[values.length];
+        for(int i = 0; i < timestamps.length; i++)
+            timestamps[i] = START + 1000L * i;
+        roundTrip(timestamps, values);
+    }
+
+    @Test
+    public void changingMeaningfulBitsWindow() {
+        // XORs alternating between narrow windows at both ends, wide windows and windows within the previous one
+        int[] xors = { 0x00000001, 0x80000000, 0x00018000, 0xFFFFFFFF, 0x00010000, 0x00000F00, 0x0000FF00,
+                0x00000100, 0x7FFFFFFE, 0x40000000, 0x00000002, 0x00000003 };
+        float[] values = new float[xors.length + 1];
+        int bits = Float.floatToRawIntBits(12.5f);
+        values[0] = Float.intBitsToFloat(bits);
+        for(int i = 0; i < xors.length; i++){
+            bits ^= xors[i];
+            values[i + 1] = Float.intBitsToFloat(bits);
+        }
+        long[] timestamps = new long[values.length];
+        for(int i = 0; i < timestamps.length; i++)
+            timestamps[i] = START + 1000L * i;
+        roundTrip(timestamps, values);
+    }
+
+    @Test
+    public void randomSeriesWithBufferGrowth() {
+        Random random = new Random(17);
+        long[] timestamps = new long[10_000];
+        float[] values = new float[timestamps.length];
+        long timestamp = START;
+        float value = 50;
+        for(int i = 0; i < timestamps.length; i++){
+            timestamp += 1000 + ((random.nextInt(10) == 0) ? random.nextInt(100_000) - 50_000 : 0);
+            value += (random.nextInt(4) == 0) ? (float) random.nextGaussian() : 0;
+            timestamps[i] = timestamp;
+            values[i] = value;
+        }
+        roundTrip(timestamps, values);
+    }
+
+    @Test
+    public void resetReusesEncoder() {
+        GorillaEncoder encoder = new GorillaEncoder(16);
+        for(int i = 0; i < 100; i++)
+            encoder.append(START + i * 1000L, i * 0.5f);
+        encoder.reset();
+        encoder.append(START, 3.0f);
+        encoder.append(START + 10, 3.0f);
+        encoder.append(START + 20, 1.0e-3f);
+        assertDecoded(encoder.toByteArray(), new long[]{ START, START + 10, START + 20 },
+                new float[]{ 3.0f, 3.0f, 1.0e-3f });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedBlock() {
+        GorillaEncoder encoder = new GorillaEncoder();
+        encoder.append(START, 1);
+        encoder.append(START + 1000, 2);
+        byte[] block = encoder.toByteArray();
+        GorillaDecoder decoder = new GorillaDecoder(Arrays.copyOf(block, block.length - 6));
+        while (decoder.next()) { }
+    }
+
+    private static void roundTrip(long[] timestamps, float[] values){
+        GorillaEncoder encoder = new GorillaEncoder(16);
+        for(int i = 0; i < timestamps.length; i++)
+            encoder.append(timestamps[i], values[i]);
+        assertEquals(timestamps.length, encoder.size());
+        byte[] block = encoder.toByteArray();
+        assertEquals(encoder.sizeInBytes(), block.length);
+        assertDecoded(block, timestamps, values);
+    }
+
+    private static void assertDecoded(byte[] block, long[] timestamps, float[] values){
+        GorillaDecoder decoder = new GorillaDecoder(block);
+        assertEquals(timestamps.length, decoder.size());
+        for(int i = 0; i < timestamps.length; i++){
+            assertTrue(decoder.next());
+            assertEquals("Timestamp " + i, timestamps[i], decoder.getTimestamp());
+            // Bit-exact values: NaN payloads and signed zeros are kept
+            assertEquals("Value " + i, Float.floatToRawIntBits(values[i]),
+                    Float.floatToRawIntBits(decoder.getValue()));
+        }
+        assertFalse(decoder.next());
+    }
+}
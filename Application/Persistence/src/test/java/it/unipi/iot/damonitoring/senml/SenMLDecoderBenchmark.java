@@ -0,0 +1,85 @@
+package it.unipi.iot.damonitoring.senml;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding cost of a mote record: Jackson path (ObjectMapper into a JsonNode tree) against the streaming decoders of
+ * the JSON (SenMLDecoder) and CBOR (SenMLCborDecoder) encodings into a reused SenMLPack.
+ * <p>
+ * Run from the Persistence module with: {@code mvn -P benchmark test-compile exec:java
+ * -Dexec.args="SenMLDecoderBenchmark -prof gc"}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SenMLDecoderBenchmark {
+
+    private static final byte[] PAYLOAD = ("{\"bn\":\"urn:dev:mac:f4ce3670c5b1a2e0:\",\"bu\":\"m3/s\", " +
+            "\"e\": [{\"n\":\"outflow-1\", \"v\":4217e-2}]}").getBytes(StandardCharsets.UTF_8);
+
+    // [{-2: "urn:dev:mac:f4ce3670c5b1a2e0:", -4: "m3/s", 0: "outflow-1", 2: 42.17}]
+    private static final byte[] CBOR_PAYLOAD = fromHex("81a421781d75726e3a6465763a6d61633a663463653336373063" +
+            "356231613265303a23646d332f7300696f7574666c6f772d3102fa4228ae14");
+
+    private final ObjectMapper sharedMapper = new ObjectMapper();
+    private final SenMLDecoder decoder = new SenMLDecoder();
+    private final SenMLCborDecoder cborDecoder = new SenMLCborDecoder();
+    private final SenMLPack pack = new SenMLPack();
+
+    @Benchmark
+    public void dataBindingNewMapper(Blackhole blackhole) throws IOException {
+        JsonNode record = new ObjectMapper().readTree(PAYLOAD);
+        consume(record, blackhole);
+    }
+
+    @Benchmark
+    public void dataBindingSharedMapper(Blackhole blackhole) throws IOException {
+        JsonNode record = sharedMapper.readTree(PAYLOAD);
+        consume(record, blackhole);
+    }
+
+    @Benchmark
+    public void streamingDecoder(Blackhole blackhole) throws IOException {
+        decoder.decode(PAYLOAD, pack);
+        consume(pack, blackhole);
+    }
+
+    @Benchmark
+    public void streamingCborDecoder(Blackhole blackhole) throws IOException {
+        cborDecoder.decode(CBOR_PAYLOAD, pack);
+        consume(pack, blackhole);
+    }
+
+    private static void consume(SenMLPack pack, Blackhole blackhole){
+        blackhole.consume(pack.getBaseUnit());
+        for(int i = 0; i < pack.size(); i++){
+            blackhole.consume(pack.getName(i));
+            blackhole.consume(pack.getValue(i));
+        }
+    }
+
+    private static void consume(JsonNode record, Blackhole blackhole){
+        blackhole.consume(record.path("bu").asText());
+        for(JsonNode measurement: record.path("e")){
+            blackhole.consume(measurement.path("n").asText());
+            blackhole.consume(measurement.path("v").floatValue());
+        }
+    }
+
+    private static byte[] fromHex(String hex){
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+}
@@ -213,7 +213,10 @@ int state_machine(){
     LOG_DBG("Publish message on topic \"%s\"\n", _pub_topic);
 
     strncpy(app_buffer, build_message(), APP_BUFFER_SIZE);		
-    mqtt_publish(&conn, NULL, _pub_topic, (uint8_t *)app_buffer, strlen(app_buffer), MQTT_QOS_LEVEL_0, MQTT_RETAIN_OFF);     
+    status = mqtt_publish(&conn, NULL, _pub_topic, (uint8_t *)app_buffer, strlen(app_buffer), PUB_QOS_LEVEL, MQTT_RETAIN_OFF);
+    if(status == MQTT_STATUS_OUT_QUEUE_FULL) {
+      LOG_WARN("Previous message not yet acknowledged, measurement skipped\n");
+    }
             
     time_period = _publish_time_period;
 
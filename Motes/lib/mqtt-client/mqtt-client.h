@@ -20,6 +20,11 @@
 #define DEFAULT_BROKER_PORT         1883
 #define DEFAULT_TIME_PERIOD        (CLOCK_SECOND * 1)
 
+// QoS of the published measurements (the Collector acknowledges them once queued for storage)
+#ifndef PUB_QOS_LEVEL
+  #define PUB_QOS_LEVEL            MQTT_QOS_LEVEL_1
+#endif
+
 // We assume that the broker does not require authentication
 
 // Various states
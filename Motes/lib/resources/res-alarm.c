@@ -20,15 +20,18 @@
 
 static void res_get_handler(coap_message_t*, coap_message_t*, uint8_t*, uint16_t, int32_t*);
 static void res_put_handler(coap_message_t*, coap_message_t*, uint8_t*, uint16_t, int32_t*);
+static void res_event_handler(void);
 void log_request(const char*, coap_message_t*);
 
-RESOURCE(
+/* Observable: the observers are notified when the state changes */
+EVENT_RESOURCE(
     res_alarm,
-    "title=\"Controls the alarm state: GET,PUT state=(true|false)\";rt=\"Alarm controller\";ct=50",
+    "title=\"Controls the alarm state: GET,PUT state=(true|false)\";rt=\"Alarm controller\";ct=50;obs",
     res_get_handler,
     NULL,
     res_put_handler,
-    NULL
+    NULL,
+    res_event_handler
 );
 
 static char response_buffer[BUFFER_LEN];
@@ -45,6 +48,10 @@ static void blink(void* data){
   ctimer_reset(&alarm.timer);
 }
 
+static void res_event_handler(void){
+  coap_notify_observers(&res_alarm);
+}
+
 static void res_get_handler(coap_message_t *request, coap_message_t *response, uint8_t *buffer, uint16_t preferred_size, int32_t *offset){
   log_request("GET", request);
 
@@ -126,6 +133,9 @@ static void res_put_handler(coap_message_t *request, coap_message_t *response, u
       ctimer_stop(&alarm.timer);
       leds_off(alarm.led);
     }
+
+    // Notify the observers of the new state
+    res_alarm.trigger();
   }
 
   coap_set_status_code(response, CHANGED_2_04);
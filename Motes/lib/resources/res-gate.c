@@ -21,25 +21,32 @@
 
 
 void res_get_handler(coap_message_t*, coap_message_t*, uint8_t*, uint16_t, int32_t*);
-void res_put_handler(coap_message_t*, coap_message_t*, uint8_t*, uint16_t, int32_t*);
+void res_put_handler(coap_resource_t*, coap_message_t*, coap_message_t*, uint8_t*, uint16_t, int32_t*);
 void log_request(const char*, coap_message_t*);
+static void res_gate_1_put_handler(coap_message_t*, coap_message_t*, uint8_t*, uint16_t, int32_t*);
+static void res_gate_2_put_handler(coap_message_t*, coap_message_t*, uint8_t*, uint16_t, int32_t*);
+static void res_gate_1_event_handler(void);
+static void res_gate_2_event_handler(void);
 
-RESOURCE(
+/* Observable: the observers are notified when the opening level changes */
+EVENT_RESOURCE(
   res_gate_1,
-  "title=\"Controls the gate opening: GET,PUT opening_level=<opening-level>\";rt=\"Gate actuator\";ct=50",
+  "title=\"Controls the gate opening: GET,PUT opening_level=<opening-level>\";rt=\"Gate actuator\";ct=50;obs",
   res_get_handler,
   NULL,
-  res_put_handler,
-  NULL
+  res_gate_1_put_handler,
+  NULL,
+  res_gate_1_event_handler
 );
 
-RESOURCE(
+EVENT_RESOURCE(
   res_gate_2,
-  "title=\"Controls the gate opening: GET,PUT opening_level=<opening-level>\";rt=\"Gate actuator\";ct=50",
+  "title=\"Controls the gate opening: GET,PUT opening_level=<opening-level>\";rt=\"Gate actuator\";ct=50;obs",
   res_get_handler,
   NULL,
-  res_put_handler,
-  NULL
+  res_gate_2_put_handler,
+  NULL,
+  res_gate_2_event_handler
 );
 
 static char response_buffer[BUFFER_LEN];
@@ -65,6 +72,23 @@ void blink(void* gate_ptr){
   }
 }
 
+static void res_gate_1_event_handler(void){
+  coap_notify_observers(&res_gate_1);
+}
+
+static void res_gate_2_event_handler(void){
+  coap_notify_observers(&res_gate_2);
+}
+
+/* Each resource passes itself to the PUT handler: the firmwares may serve any gate with either resource */
+static void res_gate_1_put_handler(coap_message_t *request, coap_message_t *response, uint8_t *buffer, uint16_t preferred_size, int32_t *offset){
+  res_put_handler(&res_gate_1, request, response, buffer, preferred_size, offset);
+}
+
+static void res_gate_2_put_handler(coap_message_t *request, coap_message_t *response, uint8_t *buffer, uint16_t preferred_size, int32_t *offset){
+  res_put_handler(&res_gate_2, request, response, buffer, preferred_size, offset);
+}
+
 void res_get_handler(coap_message_t *request, coap_message_t *response, uint8_t *buffer, uint16_t preferred_size, int32_t *offset){
 
   int res_index = (int)((request->uri_path[request->uri_path_len-1])-'0') - 1;
@@ -81,7 +105,7 @@ void res_get_handler(coap_message_t *request, coap_message_t *response, uint8_t
   coap_set_payload(response, response_buffer, strlen(response_buffer));
 }
 
-void res_put_handler(coap_message_t *request, coap_message_t *response, uint8_t *buffer, uint16_t preferred_size, int32_t *offset){
+void res_put_handler(coap_resource_t *resource, coap_message_t *request, coap_message_t *response, uint8_t *buffer, uint16_t preferred_size, int32_t *offset){
 
   const char* new_level_param = NULL;
   int new_level;
@@ -145,7 +169,8 @@ void res_put_handler(coap_message_t *request, coap_message_t *response, uint8_t
   }
 
   // Success
-  if(gates[res_index].opening_level != new_level){
+  int changed = (gates[res_index].opening_level != new_level);
+  if(changed){
     // Reset led 
     ctimer_stop(&gates[res_index].timer);
     leds_off(gates[res_index].led);
@@ -160,6 +185,11 @@ void res_put_handler(coap_message_t *request, coap_message_t *response, uint8_t
   
   gates[res_index].opening_level = new_level;
   LOG_INFO("New opening level: %d\n", new_level);
+
+  // Notify the observers of the resource that handled the request
+  if(changed){
+    resource->trigger();
+  }
   
   snprintf(response_buffer, BUFFER_LEN, "{\"message\": \"Opening level set to %d%%\"}", gates[res_index].opening_level);
   coap_set_payload(response, response_buffer, strlen(response_buffer));
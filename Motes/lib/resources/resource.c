@@ -8,6 +8,10 @@
 #define LOG_LEVEL LOG_LEVEL_APP
 
 void log_request(const char* method, coap_message_t* request){
+  if(request->src_ep == NULL){ /* Notification to the observers, built locally */
+    LOG_INFO("%s for the observers\n", method);
+    return;
+  }
   LOG_INFO("%s request from <", method);
   LOG_INFO_6ADDR(&request->src_ep->ipaddr);
   if(request->content_format == APPLICATION_JSON || request->content_format == TEXT_PLAIN){
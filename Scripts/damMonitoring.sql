@@ -29,8 +29,67 @@ CREATE TABLE `flowRate` (
   `flowChannel` varchar(20) NOT NULL,
   `timestamp` datetime NOT NULL DEFAULT CURRENT_TIMESTAMP,
   `value` float NOT NULL,
-  PRIMARY KEY (`recordId`)
-) ENGINE=MyISAM AUTO_INCREMENT=15519 DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+  PRIMARY KEY (`recordId`,`timestamp`),
+  KEY `flowRate_channel_time` (`flowChannel`,`timestamp`)
+) ENGINE=InnoDB AUTO_INCREMENT=15519 DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci
+/*!50100 PARTITION BY RANGE (to_days(`timestamp`))
+(PARTITION pmax VALUES LESS THAN MAXVALUE ENGINE = InnoDB) */;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `flowRateLatest`
+--
+
+DROP TABLE IF EXISTS `flowRateLatest`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!50503 SET character_set_client = utf8mb4 */;
+CREATE TABLE `flowRateLatest` (
+  `flowChannel` varchar(20) NOT NULL,
+  `recordId` int NOT NULL,
+  `timestamp` datetime NOT NULL,
+  `value` float NOT NULL,
+  PRIMARY KEY (`flowChannel`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `flowRateRollup`
+--
+
+DROP TABLE IF EXISTS `flowRateRollup`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!50503 SET character_set_client = utf8mb4 */;
+CREATE TABLE `flowRateRollup` (
+  `flowChannel` varchar(20) NOT NULL,
+  `resolution` int NOT NULL,
+  `bucket` datetime NOT NULL,
+  `minimum` float NOT NULL,
+  `maximum` float NOT NULL,
+  `average` float NOT NULL,
+  `samples` int NOT NULL,
+  `lastValue` float NOT NULL,
+  `lastTimestamp` datetime NOT NULL,
+  PRIMARY KEY (`flowChannel`,`resolution`,`bucket`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `measurementBlock`
+--
+
+DROP TABLE IF EXISTS `measurementBlock`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!50503 SET character_set_client = utf8mb4 */;
+CREATE TABLE `measurementBlock` (
+  `blockId` int NOT NULL AUTO_INCREMENT,
+  `series` varchar(30) NOT NULL,
+  `startTime` datetime NOT NULL,
+  `endTime` datetime NOT NULL,
+  `samples` int NOT NULL,
+  `data` mediumblob NOT NULL,
+  PRIMARY KEY (`blockId`),
+  KEY `measurementBlock_series_time` (`series`,`startTime`,`endTime`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
 --
@@ -53,6 +112,20 @@ CREATE TABLE `resource` (
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
+--
+-- Table structure for table `rollupMerge`
+--
+
+DROP TABLE IF EXISTS `rollupMerge`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!50503 SET character_set_client = utf8mb4 */;
+CREATE TABLE `rollupMerge` (
+  `source` varchar(36) NOT NULL,
+  `sequence` bigint NOT NULL,
+  PRIMARY KEY (`source`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
 --
 -- Table structure for table `waterLevel`
 --
@@ -64,8 +137,47 @@ CREATE TABLE `waterLevel` (
   `recordId` int NOT NULL AUTO_INCREMENT,
   `timestamp` datetime NOT NULL DEFAULT CURRENT_TIMESTAMP,
   `value` float NOT NULL,
-  PRIMARY KEY (`recordId`)
-) ENGINE=MyISAM AUTO_INCREMENT=5208 DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+  PRIMARY KEY (`recordId`,`timestamp`),
+  KEY `waterLevel_time` (`timestamp`)
+) ENGINE=InnoDB AUTO_INCREMENT=5208 DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci
+/*!50100 PARTITION BY RANGE (to_days(`timestamp`))
+(PARTITION pmax VALUES LESS THAN MAXVALUE ENGINE = InnoDB) */;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `waterLevelLatest`
+--
+
+DROP TABLE IF EXISTS `waterLevelLatest`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!50503 SET character_set_client = utf8mb4 */;
+CREATE TABLE `waterLevelLatest` (
+  `id` int NOT NULL,
+  `recordId` int NOT NULL,
+  `timestamp` datetime NOT NULL,
+  `value` float NOT NULL,
+  PRIMARY KEY (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `waterLevelRollup`
+--
+
+DROP TABLE IF EXISTS `waterLevelRollup`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!50503 SET character_set_client = utf8mb4 */;
+CREATE TABLE `waterLevelRollup` (
+  `resolution` int NOT NULL,
+  `bucket` datetime NOT NULL,
+  `minimum` float NOT NULL,
+  `maximum` float NOT NULL,
+  `average` float NOT NULL,
+  `samples` int NOT NULL,
+  `lastValue` float NOT NULL,
+  `lastTimestamp` datetime NOT NULL,
+  PRIMARY KEY (`resolution`,`bucket`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
 /*!40101 SET character_set_client = @saved_cs_client */;
 /*!40103 SET TIME_ZONE=@OLD_TIME_ZONE */;
 
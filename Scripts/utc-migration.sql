@@ -0,0 +1,34 @@
+-- One-off migration of the measurements stored before the connection was set to UTC (connectionTimeZone=UTC):
+-- those rows hold the wall-clock time of the zone of the Collector, the new ones hold UTC, as Grafana expects.
+-- Run it once, with the applications stopped, before their first start with the new configuration: the rows cannot
+-- be told apart afterwards. Set @zone to the zone the applications ran in; named zones require the time zone tables
+-- of the server (mysql_tzinfo_to_sql), otherwise use a fixed offset such as '+02:00'.
+-- The rollups are shifted from the earliest bucket, so that a shifted bucket never meets one not shifted yet;
+-- for a zone west of UTC (negative offset) reverse the ORDER BY clauses.
+USE `damMonitoring`;
+
+SET @zone = 'Europe/Rome';
+
+START TRANSACTION;
+
+UPDATE `flowRate` SET `timestamp` = CONVERT_TZ(`timestamp`, @zone, '+00:00');
+
+UPDATE `waterLevel` SET `timestamp` = CONVERT_TZ(`timestamp`, @zone, '+00:00');
+
+UPDATE `flowRateLatest` SET `timestamp` = CONVERT_TZ(`timestamp`, @zone, '+00:00');
+
+UPDATE `waterLevelLatest` SET `timestamp` = CONVERT_TZ(`timestamp`, @zone, '+00:00');
+
+UPDATE `flowRateRollup` SET `bucket` = CONVERT_TZ(`bucket`, @zone, '+00:00'),
+    `lastTimestamp` = CONVERT_TZ(`lastTimestamp`, @zone, '+00:00')
+ORDER BY `bucket`;
+
+UPDATE `waterLevelRollup` SET `bucket` = CONVERT_TZ(`bucket`, @zone, '+00:00'),
+    `lastTimestamp` = CONVERT_TZ(`lastTimestamp`, @zone, '+00:00')
+ORDER BY `bucket`;
+
+-- The measurements inside the blocks are epoch milliseconds, only the bounds of the blocks are shifted
+UPDATE `measurementBlock` SET `startTime` = CONVERT_TZ(`startTime`, @zone, '+00:00'),
+    `endTime` = CONVERT_TZ(`endTime`, @zone, '+00:00');
+
+COMMIT;